@@ -17,19 +17,26 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
 package es.uvigo.darwin.jmodeltest;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.PushbackReader;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Vector;
 
 import pal.alignment.Alignment;
 import pal.datatype.DataType;
-import pal.tree.TreeParseException;
 import es.uvigo.darwin.jmodeltest.exception.AlignmentParseException;
+import es.uvigo.darwin.jmodeltest.exe.CpuTokenManager;
+import es.uvigo.darwin.jmodeltest.exe.ScratchWorkspace;
 import es.uvigo.darwin.jmodeltest.io.AlignmentReader;
 import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
 import es.uvigo.darwin.jmodeltest.model.Model;
@@ -63,6 +70,8 @@ public class ApplicationOptions implements Serializable {
 	private File ckpFile;
 	private File logFile;
 	private Alignment alignment;
+	/** The converted alignment, shipped to the workers with the options */
+	private byte[] workAlignment;
 	private boolean isAmbiguous;
 	private boolean forceCheckULnL = false;
 	private double unconstrainedLnL = 0.0d;
@@ -74,7 +83,7 @@ public class ApplicationOptions implements Serializable {
 	/*
 	 * Number of threads for shared memory execution or static thread scheduling
 	 */
-	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+	private int numberOfThreads = CpuTokenManager.getAvailableProcessors();
 	/*
 	 * Number of threads for dynamic thread scheduling
 	 */
@@ -121,6 +130,8 @@ public class ApplicationOptions implements Serializable {
 	// set of models will be optimized.
 	private double guidedSearchThreshold = 0.0d;
 	private boolean doClusteringSearch = false;
+	// Number of partitions kept at each step of the clustering search
+	private int clusteringBeamWidth = 1;
 	private int heuristicInformationCriterion = InformationCriterion.IC_BIC;
 
 	private int numSites;
@@ -192,6 +203,34 @@ public class ApplicationOptions implements Serializable {
 		}
 	}
 	
+	/**
+	 * Attaches the converted alignment to the options, so that the workers
+	 * receive it together with the options instead of reading the input
+	 * file from shared storage. Called by the root processor.
+	 * 
+	 * @throws IOException
+	 *             if the working copy of the alignment cannot be read
+	 */
+	public void attachWorkFiles() throws IOException {
+		File workDataFile = getAlignmentFile();
+		byte[] data = new byte[(int) workDataFile.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(
+				workDataFile));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		workAlignment = data;
+	}
+
+	/**
+	 * Releases the attached alignment, once it was sent to the workers
+	 */
+	public void detachWorkFiles() {
+		workAlignment = null;
+	}
+
 	// This method copies the input files into the scratch.
 	// It is important to speed up the I/O in distributed memory.
 	public void buildWorkFiles() throws IOException {
@@ -201,7 +240,20 @@ public class ApplicationOptions implements Serializable {
 			workDataFile.deleteOnExit();
 		}
 		try {
-			String alnStr = ModelTestService.readAlignment(inputDataFile, alignmentFile);
+			String alnStr;
+			if (workAlignment != null) {
+				// received from the root processor
+				FileOutputStream out = new FileOutputStream(workDataFile);
+				try {
+					out.write(workAlignment);
+				} finally {
+					out.close();
+				}
+				alnStr = new String(workAlignment);
+				workAlignment = null;
+			} else {
+				alnStr = ModelTestService.readAlignment(inputDataFile, alignmentFile);
+			}
 
 			PushbackReader pr = new PushbackReader(
 					new StringReader(alnStr));
@@ -396,27 +448,7 @@ public class ApplicationOptions implements Serializable {
 						&& model.getLnL() > 0.0) {
 					/* load from checkpoint */
 					Model otherModel = ModelTest.getCandidateModels()[order];
-					otherModel.setLnL(model.getLnL());
-					otherModel.setLnLIgnoringGaps(model.getLnLIgnoringGaps());
-					otherModel.setShape(model.getShape());
-					otherModel.setfA(model.getfA());
-					otherModel.setfC(model.getfC());
-					otherModel.setfG(model.getfG());
-					otherModel.setfT(model.getfT());
-					otherModel.setRa(model.getRa());
-					otherModel.setRb(model.getRb());
-					otherModel.setRc(model.getRc());
-					otherModel.setRd(model.getRd());
-					otherModel.setRe(model.getRe());
-					otherModel.setRf(model.getRf());
-					otherModel.setPinv(model.getPinv());
-					otherModel.setKappa(model.getKappa());
-					otherModel.setTitv(model.getTitv());
-					try {
-						otherModel.setTreeString(model.getTreeString());
-					} catch (TreeParseException e) {
-						e.printStackTrace();
-					}
+					otherModel.update(model);
 					model.setLnL(0.0);
 					break;
 				}
@@ -490,27 +522,7 @@ public class ApplicationOptions implements Serializable {
 						&& model.getLnL() > 0.0) {
 					/* load from checkpoint */
 					Model otherModel = ModelTest.getCandidateModels()[order];
-					otherModel.setLnL(model.getLnL());
-					otherModel.setLnLIgnoringGaps(model.getLnLIgnoringGaps());
-					otherModel.setShape(model.getShape());
-					otherModel.setfA(model.getfA());
-					otherModel.setfC(model.getfC());
-					otherModel.setfG(model.getfG());
-					otherModel.setfT(model.getfT());
-					otherModel.setRa(model.getRa());
-					otherModel.setRb(model.getRb());
-					otherModel.setRc(model.getRc());
-					otherModel.setRd(model.getRd());
-					otherModel.setRe(model.getRe());
-					otherModel.setRf(model.getRf());
-					otherModel.setPinv(model.getPinv());
-					otherModel.setKappa(model.getKappa());
-					otherModel.setTitv(model.getTitv());
-					try {
-						otherModel.setTreeString(model.getTreeString());
-					} catch (TreeParseException e) {
-						e.printStackTrace();
-					}
+					otherModel.update(model);
 					model.setLnL(0.0);
 					break;
 				}
@@ -537,8 +549,7 @@ public class ApplicationOptions implements Serializable {
 	public File getAlignmentFile() {
 		if (alignmentFile == null) {
 			try {
-				alignmentFile = File.createTempFile("jmodeltest", ".phy");
-				alignmentFile.deleteOnExit();
+				alignmentFile = ScratchWorkspace.createFile("jmodeltest", ".phy");
 			} catch (IOException e) {
 				alignmentFile = inputDataFile;
 			}
@@ -618,8 +629,7 @@ public class ApplicationOptions implements Serializable {
 	public File getTreeFile() {
 		if (treeFile == null) {
 			try {
-				treeFile = File.createTempFile("jmodeltest", ".tree");
-				treeFile.deleteOnExit();
+				treeFile = ScratchWorkspace.createFile("jmodeltest", ".tree");
 			} catch (IOException e) {
 				treeFile = inputTreeFile;
 			}
@@ -631,6 +641,10 @@ public class ApplicationOptions implements Serializable {
 	public File getCkpFile() {
 		return ckpFile;
 	}
+
+	public void setCkpFile(File ckpFile) {
+		this.ckpFile = ckpFile;
+	}
 	
 	public File getLogFile() {
 		return logFile;
@@ -721,6 +735,14 @@ public class ApplicationOptions implements Serializable {
 		this.doClusteringSearch = doClusteringSearch;
 	}
 
+	public int getClusteringBeamWidth() {
+		return clusteringBeamWidth;
+	}
+
+	public void setClusteringBeamWidth(int clusteringBeamWidth) {
+		this.clusteringBeamWidth = clusteringBeamWidth;
+	}
+
 	public int getHeuristicInformationCriterion() {
 		return heuristicInformationCriterion;
 	}
@@ -777,4 +799,60 @@ public class ApplicationOptions implements Serializable {
   public void setRngSeed(int rngSeed) {
     this.rngSeed = rngSeed;
   }
+
+	/**
+	 * Gets a hash of the input data and the options that affect the
+	 * likelihood scores, for checking that a checkpoint can be resumed.
+	 * 
+	 * @return the hexadecimal hash of the options
+	 * 
+	 * @throws IOException
+	 *             if the input files cannot be read
+	 */
+	public String getOptionsHash() throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("MD5 is not supported");
+		}
+		updateDigest(digest, getInputFile());
+		if (userTopologyExists) {
+			updateDigest(digest, getInputTreeFile());
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(substTypeCode).append(' ').append(doF).append(' ')
+				.append(doI).append(' ').append(doG).append(' ')
+				.append(numGammaCat).append(' ').append(userTopologyExists)
+				.append(' ').append(fixedTopology).append(' ')
+				.append(optimizeMLTopology).append(' ')
+				.append(treeSearchOperations).append(' ')
+				.append(guidedSearchThreshold).append(' ')
+				.append(doClusteringSearch).append(' ')
+				.append(heuristicInformationCriterion).append(' ')
+				.append(rngSeed);
+		digest.update(sb.toString().getBytes("UTF-8"));
+		byte[] hash = digest.digest();
+		sb = new StringBuilder();
+		for (byte b : hash) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static void updateDigest(MessageDigest digest, File file)
+			throws IOException {
+		if (file == null)
+			return;
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
 }
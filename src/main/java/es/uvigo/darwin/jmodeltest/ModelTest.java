@@ -44,13 +44,18 @@ import mpi.MPI;
 import mpi.MPIException;
 import pal.tree.Tree;
 import pal.tree.TreeParseException;
+import es.uvigo.darwin.jmodeltest.exe.CpuTokenManager;
 import es.uvigo.darwin.jmodeltest.exe.RunConsense;
 import es.uvigo.darwin.jmodeltest.exe.RunPhyml;
 import es.uvigo.darwin.jmodeltest.exe.RunPhymlHybrid;
 import es.uvigo.darwin.jmodeltest.exe.RunPhymlMPJ;
+import es.uvigo.darwin.jmodeltest.exe.RunPhymlSocket;
 import es.uvigo.darwin.jmodeltest.exe.RunPhymlThread;
+import es.uvigo.darwin.jmodeltest.exe.ScratchWorkspace;
+import es.uvigo.darwin.jmodeltest.exe.ThreadCalibration;
 import es.uvigo.darwin.jmodeltest.gui.XManager;
 import es.uvigo.darwin.jmodeltest.io.AlignmentReader;
+import es.uvigo.darwin.jmodeltest.io.CheckpointJournal;
 import es.uvigo.darwin.jmodeltest.io.HtmlReporter;
 import es.uvigo.darwin.jmodeltest.io.TextInputStream;
 import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
@@ -114,6 +119,10 @@ public class ModelTest {
 	private static boolean AICcwasCalculated = false;
 	private static boolean BICwasCalculated = false;
 	private static boolean DTwasCalculated = false;
+	/** Whether the threads per model are calibrated instead of running */
+	private static boolean calibrate = false;
+	/** The port where the coordinator listens for workers, or -1 */
+	private static int coordinatorPort = -1;
 
 	public static Vector<String> testingOrder; // order of the hLRTs
 	public static String averagedTreeString; // model-averaged phylogeny in
@@ -205,6 +214,11 @@ public class ModelTest {
 				sim.run();
 			} else
 				runCommandLine();
+			String workspaceReport = ScratchWorkspace.release();
+			if (workspaceReport != null && MPJ_ME == 0) {
+				MAIN_CONSOLE.println(" ");
+				MAIN_CONSOLE.println(workspaceReport);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -217,18 +231,23 @@ public class ModelTest {
 
 	public static boolean loadCheckpoint (File ckpFile) {
 		try {
-			InputStream file = new FileInputStream(ckpFile);
-			InputStream buffer = new BufferedInputStream(file);
-			ObjectInput input = new ObjectInputStream(buffer);
-			loadedModels = (Model[]) input.readObject();
+			if (CheckpointJournal.isJournal(ckpFile)) {
+				loadedModels = CheckpointJournal.replay(ckpFile);
+			} else {
+				/* former checkpoint format: serialized array of models */
+				InputStream file = new FileInputStream(ckpFile);
+				InputStream buffer = new BufferedInputStream(file);
+				ObjectInput input = new ObjectInputStream(buffer);
+				loadedModels = (Model[]) input.readObject();
+				ApplicationOptions.getInstance().setNumModels(loadedModels.length);
+				input.close();
+			}
 			int numModels = 0;
 			for (Model model : loadedModels) {
 				if (model.getLnL() > 0.0) numModels++;
 			}
 			MAIN_CONSOLE.println(" ok!");
 			MAIN_CONSOLE.println("Loaded "+ numModels +" models");
-			ApplicationOptions.getInstance().setNumModels(loadedModels.length);
-			input.close();
 		} catch (ClassNotFoundException ex) {
 			MAIN_CONSOLE.println(" cannot perform input.");
 			return false;
@@ -239,6 +258,51 @@ public class ModelTest {
 		return true;
 	}
 	
+	/**
+	 * Finds the most recent checkpoint file of an input alignment in the log
+	 * directory
+	 * 
+	 * @param inputFile
+	 *            the input alignment
+	 * 
+	 * @return the checkpoint file, or null if there is no checkpoint
+	 */
+	private static File findLastCheckpoint(File inputFile) {
+		File logDir = new File(ModelTestConfiguration.getLogDir());
+		File[] files = logDir.listFiles();
+		if (inputFile == null || files == null)
+			return null;
+		String prefix = inputFile.getName() + ".";
+		File lastCheckpoint = null;
+		for (File file : files) {
+			if (file.getName().startsWith(prefix)
+					&& file.getName().endsWith(".ckp")
+					&& file.length() > 0
+					&& (lastCheckpoint == null || file.lastModified() > lastCheckpoint
+							.lastModified())) {
+				lastCheckpoint = file;
+			}
+		}
+		return lastCheckpoint;
+	}
+
+	/**
+	 * Checks whether a checkpoint was created with the current input data and
+	 * options. Checkpoints without options information (i.e., former
+	 * checkpoint format) are accepted.
+	 */
+	private boolean isResumable(File ckpFile) {
+		if (!CheckpointJournal.isJournal(ckpFile))
+			return true;
+		try {
+			String optionsHash = CheckpointJournal.readOptionsHash(ckpFile);
+			return optionsHash == null
+					|| optionsHash.equals(options.getOptionsHash());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
 	public static void main(String[] args) {
 		// initializing MPJ environment (if available)
 		System.err.println("[MPI] Testing MPI environment... (" + hostname
@@ -278,7 +342,10 @@ public class ModelTest {
 			arguments = args;
 		}
 
-		if (arguments.length < 1) {
+		if (Arrays.asList(arguments).contains("--worker")) {
+			buildGUI = false;
+			runWorker(arguments);
+		} else if (arguments.length < 1) {
 			buildGUI = true;
 			new ModelTest();
 		} else {
@@ -289,6 +356,59 @@ public class ModelTest {
 		ApplicationOptions.getInstance().getLogFile().delete();
 	}
 
+	/**
+	 * Runs this process as a worker of a remote coordinator, which sends the
+	 * options of the analysis and the models to compute
+	 * 
+	 * @param args
+	 *            the arguments: --worker host:port [-tr numberOfThreads]
+	 */
+	private static void runWorker(String[] args) {
+		String error = "\nCOMMAND LINE ERROR: ";
+		String host = null;
+		int port = -1;
+		int cores = CpuTokenManager.getAvailableProcessors();
+		int i = 0;
+		while (i < args.length) {
+			String arg = args[i++];
+			if (arg.equals("--worker") && i < args.length) {
+				String[] address = args[i++].split(":");
+				try {
+					host = address[0];
+					port = address.length == 2 ? Integer.parseInt(address[1])
+							: -1;
+				} catch (NumberFormatException e) {
+					port = -1;
+				}
+			} else if (arg.equals("-tr") && i < args.length) {
+				try {
+					cores = Integer.parseInt(args[i++]);
+				} catch (NumberFormatException e) {
+					System.err.println(error
+							+ "-tr option requires the number of processors to compute.");
+					CommandLineError();
+				}
+			} else {
+				System.err.println(error + "the argument \" " + arg
+						+ "\" is not valid for a worker.");
+				CommandLineError();
+			}
+		}
+		if (host == null || port < 0) {
+			System.err.println(error
+					+ "--worker option requires the address of the coordinator (host:port)");
+			CommandLineError();
+		}
+
+		MAIN_CONSOLE = new TextOutputStream(System.out);
+		execMode = ExecMode.CONSOLE;
+		if (!RunPhyml.checkBinary())
+			finalize(-1);
+		boolean done = RunPhymlSocket.work(host, port, cores);
+		ScratchWorkspace.release();
+		finalize(done ? 0 : -1);
+	}
+
 	/****************************
 	 * runCommandLine ************************** * Organizes all the tasks that
 	 * the program needs to carry out * * *
@@ -332,6 +452,14 @@ public class ModelTest {
 		}
 		// build set of models
 
+		if (calibrate) {
+			if (MPJ_ME == 0) {
+				new ThreadCalibration(options, MAIN_CONSOLE)
+						.calibrate(getCandidateModels());
+			}
+			return;
+		}
+
 		// calculate likelihoods with phyml in the command line
 		RunPhyml runPhyml;
 		if (MPJ_RUN) {
@@ -344,6 +472,10 @@ public class ModelTest {
 						new ConsoleProgressObserver(options), options,
 						getCandidateModels());
 			}
+		} else if (coordinatorPort >= 0) {
+			runPhyml = new RunPhymlSocket(
+					new ConsoleProgressObserver(options), options,
+					getCandidateModels(), coordinatorPort);
 		} else {
 			runPhyml = new RunPhymlThread(new ConsoleProgressObserver(options),
 					options, getCandidateModels());
@@ -592,6 +724,7 @@ public class ModelTest {
 		String arg = "";
 		String error = "\nCOMMAND LINE ERROR: ";
 		File ckpFile = null;
+		boolean resume = false;
 		boolean isInputFile = false;
 		boolean isIcForHcSet = false;
 		boolean getPhylip = false;
@@ -688,6 +821,9 @@ public class ModelTest {
 						CommandLineError();
 					}
 				}
+				else if (arg.equals("-resume")) {
+					resume = true;
+				}
 				else if (arg.equals("-f")) {
 					options.doF = true;
 				}
@@ -776,6 +912,26 @@ public class ModelTest {
 										+ "-H option requires an argument (AIC, BIC, AICc).");
 						CommandLineError();
 					}
+				} else if (arg.equals("-beam")) {
+					if (i < arguments.length) {
+						try {
+							int beamWidth = Integer.parseInt(arguments[i++]);
+							if (beamWidth < 1) {
+								throw new NumberFormatException();
+							}
+							options.setClusteringBeamWidth(beamWidth);
+						} catch (NumberFormatException e) {
+							System.err
+									.println(error
+											+ "-beam option requires a positive number of partitions.");
+							CommandLineError();
+						}
+					} else {
+						System.err
+								.println(error
+										+ "-beam option requires a number of partitions.");
+						CommandLineError();
+					}
 				} else if (arg.equals("-t")) {
 					if (i < arguments.length) {
 						String type = arguments[i++];
@@ -1149,6 +1305,21 @@ public class ModelTest {
 								+ "--set-local-config option requires a config file.");
 						CommandLineError();
 					}
+				} else if (arg.equals("--calibrate")) {
+					calibrate = true;
+				} else if (arg.equals("--coordinator")) {
+					if (i < arguments.length) {
+						try {
+							coordinatorPort = Integer.parseInt(arguments[i++]);
+						} catch (NumberFormatException e) {
+							coordinatorPort = -1;
+						}
+					}
+					if (coordinatorPort < 0) {
+						System.err.println(error
+								+ "--coordinator option requires the port where workers connect.");
+						CommandLineError();
+					}
 				}  else if (arg.equals("--set-property")) {
 					if (i < arguments.length) {
 						String propertyDef = arguments[i++];
@@ -1213,6 +1384,27 @@ public class ModelTest {
 				finalize(0);
 			}
 			
+			if (resume) {
+				if (ckpFile == null) {
+					ckpFile = findLastCheckpoint(options.getInputFile());
+				}
+				if (ckpFile == null || !ckpFile.exists()) {
+					System.err.println("\nWARNING: No checkpoint found for \""
+							+ options.getInputFile().getName()
+							+ "\". Starting from scratch\n");
+					ckpFile = null;
+				} else if (!isResumable(ckpFile)) {
+					System.err.println("\nWARNING: Checkpoint \""
+							+ ckpFile.getAbsolutePath()
+							+ "\" was created with different data or options. Starting from scratch\n");
+					ckpFile = null;
+				} else if (CheckpointJournal.isJournal(ckpFile)) {
+					/* keep on appending to the same journal */
+					options.setCkpFile(ckpFile);
+					CheckpointJournal.setResumedFile(ckpFile);
+				}
+			}
+			
 			if (ckpFile != null) {
 				if (!loadCheckpoint(ckpFile)) {
 					System.err.println("\nThe specified checkpoint file \""
@@ -1253,17 +1445,19 @@ public class ModelTest {
 			System.err.println(
 			    "java -jar jModelTest.jar -d sequenceFileName"
 			+ "\n                        [-getPhylip]"
-			+ "\n                        [-ckp checkpointFileName.ckp]"
+			+ "\n                        [-ckp checkpointFileName.ckp] [-resume]"
 			+ "\n                        [-n executionName]"
 			+ "\n                        [-t fixed|BIONJ|ML] [-u userTreeFileName] [-o outputFileName]"
 			+ "\n                        [-S NNI|SPR|BEST]"
 			+ "\n                        [-AIC] [-AICc] [-BIC] [-DT] [-c confidenceInterval]"
-			+ "\n                        [-s 3|5|7|11|203]"
+			+ "\n                        [-s 3|5|7|11|203] [-beam beamWidth]"
 			+ "\n                        [-f] [-i] [-g numberOfCategories]"
 			+ "\n                        [-uLNL]"
 			+ "\n                        [-dLRT] [-h confidenceInterval] [-hLRT] [-O {ftvwxgp}]"
 			+ "\n                        [-a] [-z] [-p] [-v] [-w]"
 			+ "\n                        [-tr numberOfThreads] [-machinesfile machinesFileName]"
+			+ "\n                        [--calibrate] [--coordinator port]"
+			+ "\n\n                    or: java -jar jModelTest.jar --worker host:port [-tr numberOfThreads]"
 			);
 			String usage = 
 					  "\n     -a"
@@ -1272,14 +1466,23 @@ public class ModelTest {
 					+ "\n         calculate the Akaike Information Criterion (e.g., -AIC) (default is false)"
 					+ "\n\n     -AICc"
 					+ "\n         calculate the corrected Akaike Information Criterion (e.g., -AICc) (default is false)"
+					+ "\n\n     -beam beamWidth"
+					+ "\n         number of partitions kept at each step of the clustering search (e.g., -beam 4) (default is 1, greedy search)"
+					+ "\n         this argument applies only for 203 substitution schemes. Wider beams use the spare threads for exploring alternative paths"
 					+ "\n\n     -BIC"
 					+ "\n         calculate the Bayesian Information Criterion (e.g., -BIC) (default is false)"
 					+ "\n\n     -DT"
 					+ "\n         calculate the decision theory criterion (e.g., -DT) (default is false)"
 					+ "\n\n     -c confidenceInterval"
 					+ "\n         confidence interval (e.g., -c 90) (default is 100)"
+					+ "\n\n     --calibrate"
+					+ "\n         measures the best number of PhyML threads for each sort of model (+G, +I, uniform) in this machine with short runs on the input data, and stores them next to the configuration file for later executions"
 					+ "\n\n     -ckp checkpointFileName"
 					+ "\n         Loads a checkpointing file"
+					+ "\n\n     -resume"
+					+ "\n         resumes an interrupted execution from its checkpoint, optimizing only the missing models. If no checkpoint is specified with -ckp, the most recent one for the input file is used"
+					+ "\n\n     --coordinator port"
+					+ "\n         distributes the models among this process and the workers connected to this port through TCP sockets, without MPJ Express. Workers can join at any time during the execution"
 					+ "\n\n     -d sequenceFileName"
 					+ "\n         input data file (e.g., -d data.phy)"
 					+ "\n\n     -dLRT"
@@ -1349,6 +1552,8 @@ public class ModelTest {
 					+ "\n         do model averaging and parameter importances (e.g., -v) (default is false)"
 					+ "\n\n     -w"
 					+ "\n         write PAUP block (e.g., -w) (default is false)"
+					+ "\n\n     --worker host:port"
+					+ "\n         runs this process as a worker of the coordinator at host:port (see --coordinator), computing as many models at once as threads (-tr). The options of the analysis are received from the coordinator"
 					+ "\n\n     -z"
 					+ "\n         strict consensus type for model-averaged phylogeny (e.g., -z) (default is majority rule)"
 					+ "\n\n Command line: java -jar jModeltest.jar -d sequenceFileName [arguments]"
@@ -88,6 +88,31 @@ public abstract class ModelTestConfiguration {
     public static final String G_THREADS = "gamma-threads";
     public static final String I_THREADS = "inv-threads";
     public static final String U_THREADS = "uniform-threads";
+    public static final String COST_SCHEDULING = "cost-scheduling";
+    public static final String RUNTIME_HISTORY = "runtime-history";
+    public static final String ELASTIC_THREADS = "elastic-threads";
+    public static final String CPU_AFFINITY = "cpu-affinity";
+    public static final String MEMORY_BUDGET = "memory-budget";
+    public static final String SPECULATIVE_CLUSTERING = "speculative-clustering";
+    public static final String PIPELINED_GUIDED_SEARCH = "pipelined-guided-search";
+    public static final String HEDGED_EXECUTION = "hedged-execution";
+    public static final String RESULT_CACHE = "result-cache";
+    public static final String RESULT_CACHE_DIR = "result-cache-dir";
+    public static final String RESULT_CACHE_SIZE = "result-cache-size";
+    public static final String SCRATCH_DIR = "scratch-dir";
+    public static final String BROADCAST_INPUT = "broadcast-input";
+    public static final String CALIBRATION_PROCESSORS = "calibration-processors";
+    /** File with the thread calibration, next to the configuration file */
+    public static final String CALIBRATION_FILE = "jmodeltest.calibration";
+    
+    public static final String DEFAULT_RESULT_CACHE_DIR = "cache";
+    /** Default maximum size of the result cache, in MB */
+    public static final long DEFAULT_RESULT_CACHE_SIZE = 256;
+    
+    /** Whether the thread counts come from a calibration of this machine */
+    private static boolean calibrated;
+    /** Calibration read from the calibration file, until it is applied */
+    private static Properties pendingCalibration;
     
     static {
       APPLICATION_PROPERTIES = new Properties();
@@ -109,6 +134,8 @@ public abstract class ModelTestConfiguration {
         FileInputStream prop = new FileInputStream(
             convertPathToAbsolute(ModelTest.CONFIG_FILE));
         APPLICATION_PROPERTIES.load(prop);
+        /* thread counts calibrated for this machine, if any */
+        loadCalibration();
         /* load also user definitions */
         for (Object key : ModelTest.USERDEF_PROPERTIES.keySet()) {
           String strKey = (String) key;
@@ -211,6 +238,195 @@ public abstract class ModelTestConfiguration {
     	return getProperty(CKP_LOG).equalsIgnoreCase("enabled");
     }
     
+    public static boolean isCostSchedulingEnabled() {
+    	return !getProperty(COST_SCHEDULING).equalsIgnoreCase("disabled");
+    }
+    
+    public static boolean isElasticThreadsEnabled() {
+    	return getProperty(ELASTIC_THREADS).equalsIgnoreCase("enabled");
+    }
+    
+    public static boolean isCpuAffinityEnabled() {
+    	return getProperty(CPU_AFFINITY).equalsIgnoreCase("enabled");
+    }
+    
+    /**
+     * Gets the memory budget for the concurrent PhyML processes
+     * 
+     * @return the budget in bytes, 0 for using most of the available
+     *         memory, or -1 if there is no budget
+     */
+    public static long getMemoryBudget() {
+    	if (!existsKey(MEMORY_BUDGET)
+    			|| getProperty(MEMORY_BUDGET).equalsIgnoreCase("disabled")) {
+    		return -1;
+    	}
+    	if (getProperty(MEMORY_BUDGET).equalsIgnoreCase("auto")) {
+    		return 0;
+    	}
+    	try {
+    		return Long.parseLong(getProperty(MEMORY_BUDGET).trim()) * 1024 * 1024;
+    	} catch (NumberFormatException e) {
+    		return 0;
+    	}
+    }
+    
+    public static boolean isSpeculativeClusteringEnabled() {
+    	return getProperty(SPECULATIVE_CLUSTERING).equalsIgnoreCase("enabled");
+    }
+    
+    public static boolean isPipelinedGuidedSearchEnabled() {
+    	return getProperty(PIPELINED_GUIDED_SEARCH).equalsIgnoreCase("enabled");
+    }
+    
+    public static boolean isHedgedExecutionEnabled() {
+    	return getProperty(HEDGED_EXECUTION).equalsIgnoreCase("enabled");
+    }
+    
+    public static void disableResultCache() {
+    	APPLICATION_PROPERTIES.setProperty(RESULT_CACHE, "disabled");
+    }
+    
+    public static File getResultCacheDir() {
+    	if (!getProperty(RESULT_CACHE).equalsIgnoreCase("enabled")) {
+    		return null;
+    	}
+    	String cacheDir = existsKey(RESULT_CACHE_DIR) ? getProperty(RESULT_CACHE_DIR)
+    			: DEFAULT_RESULT_CACHE_DIR;
+    	return new File(convertPathToAbsolute(cacheDir));
+    }
+    
+    public static long getResultCacheSize() {
+    	long size = DEFAULT_RESULT_CACHE_SIZE;
+    	if (existsKey(RESULT_CACHE_SIZE)) {
+    		try {
+    			size = Long.parseLong(getProperty(RESULT_CACHE_SIZE).trim());
+    		} catch (NumberFormatException e) {
+    			size = DEFAULT_RESULT_CACHE_SIZE;
+    		}
+    	}
+    	return size * 1024 * 1024;
+    }
+    
+    public static boolean isInputBroadcastEnabled() {
+    	return getProperty(BROADCAST_INPUT).equalsIgnoreCase("enabled");
+    }
+    
+    public static void disableScratchDir() {
+    	APPLICATION_PROPERTIES.setProperty(SCRATCH_DIR, "disabled");
+    }
+    
+    /**
+     * Gets the directory where the per-run scratch workspaces are created.
+     * Several comma-separated candidates can be configured, and the first
+     * writable one is used.
+     * 
+     * @return the scratch directory, or null if there is no usable one
+     */
+    public static File getScratchDir() {
+    	if (!existsKey(SCRATCH_DIR)
+    			|| getProperty(SCRATCH_DIR).equalsIgnoreCase("disabled")) {
+    		return null;
+    	}
+    	for (String candidate : getProperty(SCRATCH_DIR).split(",")) {
+    		if (candidate.trim().length() == 0)
+    			continue;
+    		File scratchDir = new File(convertPathToAbsolute(candidate.trim()));
+    		if (scratchDir.isDirectory() && scratchDir.canWrite()) {
+    			return scratchDir;
+    		}
+    	}
+    	return null;
+    }
+    
+    /**
+     * Gets the file where the thread calibration of this machine is stored,
+     * in the directory of the configuration file
+     * 
+     * @return the calibration file
+     */
+    public static File getCalibrationFile() {
+    	File configFile = new File(convertPathToAbsolute(ModelTest.CONFIG_FILE));
+    	return new File(configFile.getAbsoluteFile().getParentFile(),
+    			CALIBRATION_FILE);
+    }
+    
+    public static boolean isCalibrated() {
+    	return calibrated;
+    }
+    
+    /**
+     * Reads the number of threads per sort of model from the calibration
+     * file. They are applied once the number of processors of the analysis
+     * is known (see applyCalibration).
+     */
+    private static void loadCalibration() {
+    	File calibrationFile = getCalibrationFile();
+    	if (!calibrationFile.canRead()) {
+    		return;
+    	}
+    	Properties calibration = new Properties();
+    	try {
+    		FileInputStream in = new FileInputStream(calibrationFile);
+    		try {
+    			calibration.load(in);
+    		} finally {
+    			in.close();
+    		}
+    	} catch (IOException e) {
+    		System.err.println("WARNING: Cannot read the thread calibration ("
+    				+ calibrationFile.getAbsolutePath() + "): It will be ignored");
+    		return;
+    	}
+    	pendingCalibration = calibration;
+    }
+    
+    /**
+     * Replaces the number of threads per sort of model of the configuration
+     * file with those of the calibration file, unless they are defined in
+     * the command line. The calibration is ignored if it was measured on a
+     * different number of processors. Only the first call has any effect.
+     * 
+     * @param processors
+     *            the number of processors of the analysis, as measured by
+     *            ThreadCalibration.getProcessors
+     */
+    public static synchronized void applyCalibration(int processors) {
+    	Properties calibration = pendingCalibration;
+    	if (calibration == null) {
+    		return;
+    	}
+    	pendingCalibration = null;
+    	if (!String.valueOf(processors).equals(
+    			calibration.getProperty(CALIBRATION_PROCESSORS, "").trim())) {
+    		System.err.println("WARNING: The thread calibration ("
+    				+ getCalibrationFile().getAbsolutePath()
+    				+ ") was measured on a different number of processors: It will be ignored");
+    		System.err.println("         Run jModelTest with --calibrate for calibrating this machine again");
+    		return;
+    	}
+    	for (String key : new String[] { G_THREADS, I_THREADS, U_THREADS }) {
+    		String value = calibration.getProperty(key);
+    		if (value != null && !ModelTest.USERDEF_PROPERTIES.containsKey(key)) {
+    			APPLICATION_PROPERTIES.setProperty(key, value.trim());
+    		}
+    	}
+    	calibrated = true;
+    }
+    
+    public static File getRuntimeHistoryFile() {
+    	if (!existsKey(RUNTIME_HISTORY)
+    			|| getProperty(RUNTIME_HISTORY).equalsIgnoreCase("disabled")) {
+    		return null;
+    	}
+    	File historyFile = new File(convertPathToAbsolute(getProperty(RUNTIME_HISTORY)));
+    	File parentDir = historyFile.getAbsoluteFile().getParentFile();
+    	if (parentDir == null || !parentDir.canWrite()) {
+    		return null;
+    	}
+    	return historyFile;
+    }
+    
     public static String getLogDir() {
     	String logDir = getProperty(LOG_DIR);
     	if (logDir == null) {
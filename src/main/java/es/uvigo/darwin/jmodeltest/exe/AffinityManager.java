@@ -0,0 +1,312 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
+import es.uvigo.darwin.jmodeltest.utilities.Utilities;
+
+/**
+ * Placement of the PhyML processes on the CPUs of a Linux machine.
+ *
+ * The logical CPUs are partitioned among the concurrent PhyML processes.
+ * Each process gets as many CPUs as PhyML threads, within a single NUMA
+ * node whenever possible, and using one hardware thread per physical core
+ * before sharing cores. Processes are bound to their CPUs with numactl
+ * (with local memory allocation) or taskset. If there are not enough free
+ * CPUs, the process runs unbound.
+ *
+ * Both tools are tested on the CPUs of the machine before being used, so
+ * if they fail (e.g., within a restrictive cpuset) every process runs
+ * unbound.
+ *
+ * @author Diego Darriba
+ */
+public class AffinityManager {
+
+	private static final String NUMACTL = "numactl";
+	private static final String TASKSET = "taskset";
+
+	private static AffinityManager instance;
+	private static boolean initialized = false;
+
+	private CpuTopology topology;
+	private String numactl, taskset;
+	private Set<CpuTopology.Cpu> busyCpus = new HashSet<CpuTopology.Cpu>();
+
+	/* statistics */
+	private int boundProcesses, localProcesses, unboundProcesses;
+	private long boundTime, unboundTime;
+
+	private AffinityManager(CpuTopology topology, String numactl,
+			String taskset) {
+		this.topology = topology;
+		this.numactl = numactl;
+		this.taskset = taskset;
+	}
+
+	/**
+	 * Gets the affinity manager
+	 *
+	 * @return the affinity manager, or null if the placement is disabled or
+	 *         not supported in this machine
+	 */
+	public static synchronized AffinityManager getInstance() {
+		if (!initialized) {
+			initialized = true;
+			if (ModelTestConfiguration.isCpuAffinityEnabled()
+					&& !Utilities.isWindows()) {
+				CpuTopology topology = CpuTopology.read();
+				String numactl = findExecutable(NUMACTL);
+				String taskset = findExecutable(TASKSET);
+				if (topology != null) {
+					String cpuList = CpuTopology.toCpuList(topology.getCpus());
+					if (numactl != null
+							&& !canBind(getBinding(numactl, null, cpuList))) {
+						System.err.println("WARNING: Cannot bind processes with numactl: trying taskset");
+						numactl = null;
+					}
+					if (numactl == null && taskset != null
+							&& !canBind(getBinding(null, taskset, cpuList))) {
+						System.err.println("WARNING: Cannot bind processes with taskset: PhyML processes will not be bound");
+						taskset = null;
+					}
+				}
+				if (topology == null) {
+					System.err.println("WARNING: Cannot read the CPU topology: PhyML processes will not be bound");
+				} else if (numactl == null && taskset == null) {
+					System.err.println("WARNING: Neither numactl nor taskset are available: PhyML processes will not be bound");
+				} else {
+					instance = new AffinityManager(topology, numactl, taskset);
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Reserves a set of CPUs for a process
+	 *
+	 * @param threads
+	 *            the number of threads of the process
+	 *
+	 * @return the CPUs, or null if there are not enough free CPUs
+	 */
+	public synchronized Placement acquire(int threads) {
+		threads = Math.max(threads, 1);
+
+		/* the NUMA node with fewer free CPUs where the process fits */
+		int[] freeInNode = new int[maxNode() + 1];
+		int totalFree = 0;
+		for (CpuTopology.Cpu cpu : topology.getCpus()) {
+			if (!busyCpus.contains(cpu)) {
+				freeInNode[cpu.getNode()]++;
+				totalFree++;
+			}
+		}
+		if (totalFree < threads) {
+			unboundProcesses++;
+			return null;
+		}
+		int targetNode = -1;
+		for (int node = 0; node < freeInNode.length; node++) {
+			if (freeInNode[node] >= threads
+					&& (targetNode < 0 || freeInNode[node] < freeInNode[targetNode])) {
+				targetNode = node;
+			}
+		}
+
+		List<CpuTopology.Cpu> selected = new ArrayList<CpuTopology.Cpu>(
+				threads);
+		/* first, CPUs whose physical core is completely idle */
+		for (int pass = 0; pass < 2 && selected.size() < threads; pass++) {
+			for (CpuTopology.Cpu cpu : topology.getCpus()) {
+				if (selected.size() == threads)
+					break;
+				if (busyCpus.contains(cpu) || selected.contains(cpu)
+						|| (targetNode >= 0 && cpu.getNode() != targetNode))
+					continue;
+				if (pass == 0 && hasBusySibling(cpu, selected))
+					continue;
+				selected.add(cpu);
+			}
+		}
+		busyCpus.addAll(selected);
+		boundProcesses++;
+		if (targetNode >= 0)
+			localProcesses++;
+		return new Placement(selected, targetNode);
+	}
+
+	/**
+	 * Releases the CPUs of a finished process
+	 *
+	 * @param placement
+	 *            the CPUs of the process, or null if it was not bound
+	 * @param time
+	 *            the running time of the process, in ms
+	 */
+	public synchronized void release(Placement placement, long time) {
+		if (placement != null) {
+			busyCpus.removeAll(placement.cpus);
+			boundTime += time;
+		} else {
+			unboundTime += time;
+		}
+	}
+
+	/**
+	 * Builds the command line binding a process to its CPUs
+	 *
+	 * @param placement
+	 *            the CPUs of the process
+	 * @param cmd
+	 *            the command line of the process
+	 *
+	 * @return the new command line
+	 */
+	public String[] bind(Placement placement, String[] cmd) {
+		if (placement == null)
+			return cmd;
+		String[] binding = getBinding(numactl, taskset, CpuTopology
+				.toCpuList(placement.cpus));
+		String[] boundCmd = new String[binding.length + cmd.length];
+		System.arraycopy(binding, 0, boundCmd, 0, binding.length);
+		System.arraycopy(cmd, 0, boundCmd, binding.length, cmd.length);
+		return boundCmd;
+	}
+
+	/**
+	 * Prints the placement of the processes
+	 *
+	 * @param stream
+	 *            the output stream
+	 */
+	public synchronized void printSummary(TextOutputStream stream) {
+		if (stream == null || boundProcesses + unboundProcesses == 0)
+			return;
+		stream.println("[Affinity] " + topology.getCpus().size() + " CPUs, "
+				+ topology.getNumSockets() + " sockets, "
+				+ topology.getNumNodes() + " NUMA nodes: " + boundProcesses
+				+ " processes bound with " + (numactl != null ? NUMACTL : TASKSET)
+				+ " (" + localProcesses + " within a NUMA node), "
+				+ unboundProcesses + " unbound");
+		stream.println("[Affinity] Mean PhyML time: "
+				+ (boundProcesses > 0 ? Utilities.displayRuntime(boundTime
+						/ boundProcesses) : "-")
+				+ " bound, "
+				+ (unboundProcesses > 0 ? Utilities.displayRuntime(unboundTime
+						/ unboundProcesses) : "-") + " unbound");
+	}
+
+	private boolean hasBusySibling(CpuTopology.Cpu cpu,
+			List<CpuTopology.Cpu> selected) {
+		for (CpuTopology.Cpu other : topology.getCpus()) {
+			if (cpu.isSibling(other)
+					&& (busyCpus.contains(other) || selected.contains(other)))
+				return true;
+		}
+		return false;
+	}
+
+	private int maxNode() {
+		int maxNode = 0;
+		for (CpuTopology.Cpu cpu : topology.getCpus()) {
+			maxNode = Math.max(maxNode, cpu.getNode());
+		}
+		return maxNode;
+	}
+
+	/**
+	 * Builds the command binding a process to a list of CPUs, with numactl
+	 * if it is available, or with taskset otherwise
+	 */
+	private static String[] getBinding(String numactl, String taskset,
+			String cpuList) {
+		if (numactl != null) {
+			return new String[] { numactl, "--physcpubind=" + cpuList,
+					"--localalloc" };
+		} else {
+			return new String[] { taskset, "-c", cpuList };
+		}
+	}
+
+	/**
+	 * Tests a binding command with a process that does nothing
+	 *
+	 * @return true, if the binding command succeeded
+	 */
+	private static boolean canBind(String[] binding) {
+		String[] cmd = new String[binding.length + 1];
+		System.arraycopy(binding, 0, cmd, 0, binding.length);
+		cmd[binding.length] = "true";
+		try {
+			Process proc = Runtime.getRuntime().exec(cmd);
+			proc.getInputStream().close();
+			proc.getErrorStream().close();
+			return proc.waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static String findExecutable(String name) {
+		String path = System.getenv("PATH");
+		if (path == null)
+			return null;
+		for (String dir : path.split(File.pathSeparator)) {
+			File executable = new File(dir, name);
+			if (executable.isFile() && executable.canExecute())
+				return executable.getAbsolutePath();
+		}
+		return null;
+	}
+
+	/**
+	 * The CPUs reserved for a process
+	 */
+	public static class Placement {
+
+		private List<CpuTopology.Cpu> cpus;
+		private int node;
+
+		Placement(List<CpuTopology.Cpu> cpus, int node) {
+			this.cpus = cpus;
+			this.node = node;
+		}
+
+		/**
+		 * Gets the NUMA node of the CPUs
+		 *
+		 * @return the node, or -1 if the CPUs span several nodes
+		 */
+		public int getNode() {
+			return node;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.ModelTest;
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.model.Model;
+import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
+import es.uvigo.darwin.jmodeltest.selection.AIC;
+import es.uvigo.darwin.jmodeltest.selection.AICc;
+import es.uvigo.darwin.jmodeltest.selection.BIC;
+import es.uvigo.darwin.jmodeltest.selection.InformationCriterion;
+
+/**
+ * Hill-climbing hierarchical clustering search for the 203 substitution
+ * schemes.
+ *
+ * The search runs in up to 6 steps. At each step, the rate groups of the
+ * best partitions of the previous step are merged in every possible way, and
+ * the resulting models are optimized in parallel. With a beam width of 1 the
+ * search follows a single greedy path. Wider beams keep the best k partitions
+ * of each step, so that spare threads explore alternative paths at no extra
+ * cost in wall-clock time.
+ *
+ * In speculative mode, the models of the next step are started before the
+ * current step finishes, either because its best partitions cannot be
+ * overturned by the models still running, or because there are idle
+ * threads. A model cannot fit better than the model it is nested in, so
+ * the score of a running model is bounded by the likelihood of its parent.
+ * Speculative models are cancelled if the result of the step changes.
+ *
+ * @author Diego Darriba
+ */
+public class ClusteringSearch {
+
+	private static final int NUM_STEPS = 6;
+
+	private RunPhyml runPhyml;
+	private ApplicationOptions options;
+	private int beamWidth;
+	private Model bestModel;
+
+	/* speculative execution */
+	private ModelScheduler scheduler;
+	private Map<Model, PhymlSingleModel> tasks;
+	private Set<Model> restoredModels;
+	private Set<Model> speculativeModels;
+	private int taskIndex;
+	private int speculativeSteps, confirmedModels, cancelledModels;
+
+	public ClusteringSearch(RunPhyml runPhyml, ApplicationOptions options) {
+		this.runPhyml = runPhyml;
+		this.options = options;
+		this.beamWidth = Math.max(options.getClusteringBeamWidth(), 1);
+	}
+
+	/**
+	 * Executes the clustering search
+	 *
+	 * @param models
+	 *            the candidate models
+	 * @param gtrModel
+	 *            the GTR model, or null if it is not available
+	 *
+	 * @return true, if every model was successfully optimized
+	 */
+	public boolean search(Model[] models, Model gtrModel) {
+		boolean success = true;
+		bestModel = gtrModel;
+		if (gtrModel == null) {
+			bestModel = models[models.length - 1];
+		}
+		double bestScore = Double.MAX_VALUE;
+		List<String> beam = new ArrayList<String>();
+		beam.add(bestModel == null ? "012345" : bestModel.getPartition());
+
+		ExecutorService threadPool = runPhyml.getThreadPool();
+		if (ModelTestConfiguration.isSpeculativeClusteringEnabled()
+				&& threadPool != null) {
+			scheduler = runPhyml.createScheduler(threadPool);
+			tasks = new HashMap<Model, PhymlSingleModel>();
+			restoredModels = new HashSet<Model>();
+			speculativeModels = new LinkedHashSet<Model>();
+			scheduler.start();
+		}
+
+		for (int groups = NUM_STEPS; groups > 0; groups--) {
+			Model[] currentModels = GuidedSearchManager.getModelsSubset(
+					models, beam, groups);
+			runPhyml.setClusteringStage(NUM_STEPS + 1 - groups,
+					currentModels.length);
+			if (scheduler != null) {
+				resolveSpeculation(currentModels);
+			}
+
+			if (currentModels.length > 0) {
+				// Optimize the current models
+				if (scheduler != null) {
+					success &= optimizeSpeculatively(models, currentModels,
+							beam, groups, bestScore);
+				} else {
+					success &= runPhyml.parallelExecute(currentModels, false);
+				}
+
+				// Rank the partitions according to their best model
+				final Map<String, Double> partitionScores = new LinkedHashMap<String, Double>();
+				Model stepBestModel = currentModels[0];
+				double stepBestScore = Double.MAX_VALUE;
+				for (Model model : currentModels) {
+					double currentScore = getScore(model);
+					if (currentScore < stepBestScore) {
+						stepBestModel = model;
+						stepBestScore = currentScore;
+					}
+					Double partitionScore = partitionScores.get(model
+							.getPartition());
+					if (partitionScore == null || currentScore < partitionScore) {
+						partitionScores.put(model.getPartition(), currentScore);
+					}
+				}
+
+				// Check LnL
+				if (bestModel.getLnL() > 0 && stepBestScore > bestScore) {
+					// End of algorithm
+					break;
+				} else {
+					bestModel = stepBestModel;
+					bestScore = stepBestScore;
+				}
+
+				beam = new ArrayList<String>(partitionScores.keySet());
+				Collections.sort(beam, new Comparator<String>() {
+					public int compare(String p1, String p2) {
+						return Double.compare(partitionScores.get(p1),
+								partitionScores.get(p2));
+					}
+				});
+				if (beam.size() > beamWidth) {
+					beam = beam.subList(0, beamWidth);
+				}
+			}
+		}
+
+		if (scheduler != null) {
+			resolveSpeculation(new Model[0]);
+			scheduler.close();
+			success &= scheduler.await();
+			if (!success) {
+				runPhyml.notifyObservers(ProgressInfo.INTERRUPTED, 0, null,
+						null);
+			}
+			scheduler.printSummary(ModelTest.getMainConsole());
+			if (speculativeSteps > 0) {
+				ModelTest.getMainConsole().println(
+						"[Clustering search] Speculative steps: "
+								+ speculativeSteps + " (" + confirmedModels
+								+ " models confirmed, " + cancelledModels
+								+ " cancelled)");
+			}
+		}
+
+		if (beamWidth > 1) {
+			ModelTest.getMainConsole().println(
+					"[Clustering search] Best model found with beam width "
+							+ beamWidth + ": " + bestModel.getName());
+		}
+		return success;
+	}
+
+	/**
+	 * Gets the best model found in the last search
+	 *
+	 * @return the best model
+	 */
+	public Model getBestModel() {
+		return bestModel;
+	}
+
+	/**
+	 * Optimizes the models of a step, starting the models of the next step
+	 * as soon as its best partitions are known, or there are idle threads
+	 *
+	 * @return true, if every model was successfully optimized
+	 */
+	private boolean optimizeSpeculatively(Model[] models,
+			Model[] currentModels, List<String> parents, int groups,
+			double bestScore) {
+		for (Model model : currentModels) {
+			submit(model);
+		}
+		boolean speculated = false;
+		while (true) {
+			int finishedCount = scheduler.getFinishedCount();
+			if (isFinished(currentModels))
+				return true;
+			if (!speculated && groups > 1) {
+				List<String> leaders = getLeaders(models, currentModels,
+						parents, bestScore, true);
+				if (leaders == null && scheduler.getIdleWorkers() > 0) {
+					leaders = getLeaders(models, currentModels, parents,
+							bestScore, false);
+				}
+				if (leaders != null) {
+					speculated = true;
+					speculativeSteps++;
+					Model[] nextModels = GuidedSearchManager.selectModels(
+							models, leaders, groups - 1);
+					ModelTest.getMainConsole().println(
+							"[Clustering search] Speculatively starting step "
+									+ (NUM_STEPS + 2 - groups) + "/6: "
+									+ nextModels.length + " models.");
+					for (Model model : nextModels) {
+						if (submit(model)) {
+							speculativeModels.add(model);
+						}
+					}
+				}
+			}
+			if (!scheduler.awaitFinishedCount(finishedCount + 1))
+				return false;
+		}
+	}
+
+	/**
+	 * Gets the partitions that lead the current step, or null if there is
+	 * no optimized model yet
+	 *
+	 * @param decidedOnly
+	 *            if true, the partitions are returned only if the models
+	 *            still running cannot change them, and the search will
+	 *            certainly continue
+	 */
+	private List<String> getLeaders(Model[] models, Model[] currentModels,
+			List<String> parents, double bestScore, boolean decidedOnly) {
+		final Map<String, Double> partitionScores = new HashMap<String, Double>();
+		Set<String> partitions = new LinkedHashSet<String>();
+		double stepBestScore = Double.MAX_VALUE;
+		double minBound = Double.MAX_VALUE;
+		for (Model model : currentModels) {
+			partitions.add(model.getPartition());
+			if (isFinished(model)) {
+				if (model.getLnL() <= 0.0)
+					continue;
+				double score = getScore(model);
+				stepBestScore = Math.min(stepBestScore, score);
+				Double partitionScore = partitionScores.get(model
+						.getPartition());
+				if (partitionScore == null || score < partitionScore) {
+					partitionScores.put(model.getPartition(), score);
+				}
+			} else {
+				minBound = Math.min(minBound,
+						getLowerBound(models, model, parents));
+			}
+		}
+		if (partitionScores.isEmpty())
+			return null;
+		if (partitions.size() <= beamWidth) {
+			/* every partition goes to the next step */
+			return (decidedOnly && stepBestScore >= bestScore) ? null
+					: new ArrayList<String>(partitions);
+		}
+
+		List<String> leaders = new ArrayList<String>(partitionScores.keySet());
+		Collections.sort(leaders, new Comparator<String>() {
+			public int compare(String p1, String p2) {
+				return Double.compare(partitionScores.get(p1),
+						partitionScores.get(p2));
+			}
+		});
+		if (leaders.size() > beamWidth) {
+			leaders = leaders.subList(0, beamWidth);
+		}
+		if (decidedOnly
+				&& (stepBestScore >= bestScore || leaders.size() < beamWidth || partitionScores
+						.get(leaders.get(leaders.size() - 1)) >= minBound)) {
+			return null;
+		}
+		return leaders;
+	}
+
+	/**
+	 * Gets a lower bound for the score of a model being optimized. A model
+	 * cannot fit better than the models of the previous step it is nested
+	 * in.
+	 */
+	private double getLowerBound(Model[] models, Model model,
+			List<String> parents) {
+		double parentLnL = -1.0;
+		for (Model parent : models) {
+			if (parent != model && parent.getLnL() > 0.0
+					&& parent.ispF() == model.ispF()
+					&& parent.ispI() == model.ispI()
+					&& parent.ispG() == model.ispG()
+					&& parents.contains(parent.getPartition())
+					&& GuidedSearchManager.isNested(model.getPartition(),
+							parent.getPartition())) {
+				parentLnL = Math.max(parentLnL, parent.getLnL());
+			}
+		}
+		if (parentLnL < 0.0)
+			return -Double.MAX_VALUE;
+		return getScore(parentLnL, model.getK());
+	}
+
+	/**
+	 * Confirms the speculative models included in the current step, and
+	 * cancels the rest
+	 */
+	private void resolveSpeculation(Model[] currentModels) {
+		Set<Model> stepModels = new HashSet<Model>();
+		Collections.addAll(stepModels, currentModels);
+		for (Model model : speculativeModels) {
+			if (stepModels.contains(model)) {
+				confirmedModels++;
+			} else if (scheduler.cancel(tasks.get(model))) {
+				cancelledModels++;
+			}
+		}
+		speculativeModels.clear();
+	}
+
+	/**
+	 * Submits a model to the scheduler, unless it was already submitted
+	 *
+	 * @return true, if the model was submitted
+	 */
+	private boolean submit(Model model) {
+		if (restoredModels.contains(model))
+			return false;
+		PhymlSingleModel task = tasks.get(model);
+		if (task != null && !task.isCancelled())
+			return false;
+		task = runPhyml.submitModel(scheduler, model, taskIndex++, false);
+		if (task == null) {
+			restoredModels.add(model);
+		} else {
+			tasks.put(model, task);
+		}
+		return true;
+	}
+
+	private boolean isFinished(Model model) {
+		if (restoredModels.contains(model))
+			return true;
+		PhymlSingleModel task = tasks.get(model);
+		return task != null && scheduler.isFinished(task);
+	}
+
+	private boolean isFinished(Model[] models) {
+		for (Model model : models) {
+			if (!isFinished(model))
+				return false;
+		}
+		return true;
+	}
+
+	private double getScore(Model model) {
+		return getScore(model.getLnL(), model.getK());
+	}
+
+	private double getScore(double lnL, int k) {
+		switch (options.getHeuristicInformationCriterion()) {
+		case InformationCriterion.IC_AIC:
+			return AIC.computeAic(lnL, k, options);
+		case InformationCriterion.IC_BIC:
+			return BIC.computeBic(lnL, k, options);
+		case InformationCriterion.IC_AICc:
+			return AICc.computeAicc(lnL, k, options);
+		default:
+			return Double.MAX_VALUE - 1.0;
+		}
+	}
+}
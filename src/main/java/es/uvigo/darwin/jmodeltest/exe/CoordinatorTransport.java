@@ -0,0 +1,125 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+/**
+ * Coordinator side of the communication between the distributor and the
+ * remote workers.
+ *
+ * Workers are numbered consecutively from 1 (0 is the local worker of the
+ * coordinator, which is served through a ModelHandoff). The messages are
+ * encoded with the ModelWireCodec: each worker sends requests with its
+ * computed models, and the coordinator answers every request with exactly
+ * one batch of models.
+ *
+ * A transport that detects failed workers reports each worker that
+ * disconnects once, with a message without data. The distributor then
+ * leases the models the worker did not return to the others.
+ *
+ * @author Diego Darriba
+ */
+public abstract class CoordinatorTransport {
+
+	/**
+	 * Gets the number of workers that joined the execution so far
+	 */
+	public abstract int getNumberOfWorkers();
+
+	/**
+	 * Checks whether new workers can still join the execution
+	 */
+	public abstract boolean acceptsWorkers();
+
+	/**
+	 * Receives a request of any worker, if there is one
+	 *
+	 * @return the request, or null if there is no pending request
+	 */
+	public abstract Message poll();
+
+	/**
+	 * Waits for a request of any worker
+	 *
+	 * @return the request
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public abstract Message take() throws InterruptedException;
+
+	/**
+	 * Checks whether wakeUp() is supported. Otherwise, the distributor tests
+	 * the transport between short waits for the root worker.
+	 *
+	 * @return true, if the transport can be woken up (false by default)
+	 */
+	public boolean supportsWakeUp() {
+		return false;
+	}
+
+	/**
+	 * Makes the current or next take() return a message of the root worker
+	 * (0) without data, so that the distributor checks the requests of the
+	 * root worker. Called from any thread. By default, it does nothing.
+	 */
+	public void wakeUp() {
+	}
+
+	/**
+	 * Sends a batch of models to a worker
+	 *
+	 * @param worker
+	 *            the worker
+	 * @param data
+	 *            the encoded batch
+	 */
+	public abstract void send(int worker, byte[] data);
+
+	/**
+	 * Closes the communication with the workers
+	 */
+	public abstract void close();
+
+	/**
+	 * A message received from a worker
+	 */
+	public static class Message {
+
+		private int worker;
+		private byte[] data;
+
+		public Message(int worker, byte[] data) {
+			this.worker = worker;
+			this.data = data;
+		}
+
+		public int getWorker() {
+			return worker;
+		}
+
+		/**
+		 * Gets the encoded request
+		 *
+		 * @return the request, or null if the worker was lost (or, for the
+		 *         root worker, if the transport was woken up)
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
+
+/**
+ * Budget of CPU tokens shared by every PhyML process of this jModelTest
+ * instance.
+ *
+ * Each PhyML launch acquires one token per PhyML thread, and releases them
+ * when the process finishes. If fewer tokens than requested are free, the
+ * process is launched with the free ones, and if there are none it waits,
+ * so the machine is never oversubscribed.
+ *
+ * The number of tokens is the number of processors available to the JVM,
+ * limited by the CPU quota of the Linux control group (cgroups v1 or v2)
+ * where jModelTest runs, e.g., inside a container.
+ *
+ * @author Diego Darriba
+ */
+public class CpuTokenManager {
+
+	private static final String CGROUP_ROOT = "/sys/fs/cgroup";
+	private static final String PROC_CGROUP = "/proc/self/cgroup";
+
+	private static CpuTokenManager instance;
+	private static int availableProcessors = -1;
+	private static boolean quotaLimited = false;
+
+	private int capacity;
+	private int usedTokens = 0;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition tokensReleased = lock.newCondition();
+
+	/* statistics */
+	private long startTime = -1;
+	private long lastUpdate;
+	/** Integral of the used tokens over time, in token-ms */
+	private double usedTokenTime = 0.0;
+	private int peakTokens = 0;
+	private int waits = 0, shrinks = 0;
+
+	private CpuTokenManager(int capacity) {
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	public static synchronized CpuTokenManager getInstance() {
+		if (instance == null) {
+			instance = new CpuTokenManager(getAvailableProcessors());
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the number of processors that can be used, according to the JVM
+	 * and to the CPU quota of the control group
+	 *
+	 * @return the number of usable processors
+	 */
+	public static synchronized int getAvailableProcessors() {
+		if (availableProcessors < 0) {
+			availableProcessors = Runtime.getRuntime().availableProcessors();
+			int quota = readCgroupQuota();
+			if (quota > 0 && quota < availableProcessors) {
+				availableProcessors = quota;
+				quotaLimited = true;
+			}
+		}
+		return availableProcessors;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Acquires the tokens for a PhyML process, waiting until at least one
+	 * token is free
+	 *
+	 * @param requested
+	 *            the number of threads requested by the process
+	 *
+	 * @return the number of granted tokens, between 1 and the requested
+	 *         ones
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public int acquire(int requested) throws InterruptedException {
+		requested = Math.max(requested, 1);
+		lock.lock();
+		try {
+			if (usedTokens >= capacity) {
+				waits++;
+				while (usedTokens >= capacity) {
+					tokensReleased.await();
+				}
+			}
+			int granted = Math.min(requested, capacity - usedTokens);
+			if (granted < requested)
+				shrinks++;
+			update(granted);
+			return granted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the tokens of a finished process
+	 *
+	 * @param tokens
+	 *            the number of granted tokens
+	 */
+	public void release(int tokens) {
+		lock.lock();
+		try {
+			update(-tokens);
+			tokensReleased.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of tokens in use
+	 */
+	public int getUsedTokens() {
+		lock.lock();
+		try {
+			return usedTokens;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the mean fraction of tokens in use since the first acquisition
+	 *
+	 * @return the utilization, between 0 and 1
+	 */
+	public double getUtilization() {
+		lock.lock();
+		try {
+			if (startTime < 0)
+				return 0.0;
+			update(0);
+			long elapsed = lastUpdate - startTime;
+			return elapsed > 0 ? usedTokenTime / (elapsed * capacity) : 0.0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Prints the usage of the tokens
+	 *
+	 * @param stream
+	 *            the output stream
+	 */
+	public void printSummary(TextOutputStream stream) {
+		if (stream == null || startTime < 0)
+			return;
+		double utilization = getUtilization();
+		lock.lock();
+		try {
+			stream.println("[CPU] " + capacity + " tokens"
+					+ (quotaLimited ? " (limited by the cgroup CPU quota)" : "")
+					+ ", mean utilization "
+					+ String.format("%.1f", utilization * 100) + "%, peak "
+					+ peakTokens + ", " + waits + " launches waited, "
+					+ shrinks + " launched with fewer threads");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void update(int delta) {
+		long now = System.currentTimeMillis();
+		if (startTime < 0) {
+			startTime = lastUpdate = now;
+		}
+		usedTokenTime += (double) usedTokens * (now - lastUpdate);
+		lastUpdate = now;
+		usedTokens += delta;
+		peakTokens = Math.max(peakTokens, usedTokens);
+	}
+
+	/**
+	 * Reads the CPU quota of the control group of this process
+	 *
+	 * @return the number of processors allowed by the quota, or -1 if there
+	 *         is no quota
+	 */
+	private static int readCgroupQuota() {
+		String v1Path = "/", v2Path = "/";
+		for (String line : readLines(new File(PROC_CGROUP))) {
+			String[] fields = line.split(":", 3);
+			if (fields.length < 3)
+				continue;
+			if (fields[0].equals("0") && fields[1].length() == 0) {
+				v2Path = fields[2];
+			} else {
+				for (String controller : fields[1].split(",")) {
+					if (controller.equals("cpu"))
+						v1Path = fields[2];
+				}
+			}
+		}
+
+		/* cgroups v2: "<quota> <period>" or "max <period>" */
+		String[] v2Files = { CGROUP_ROOT + v2Path + "/cpu.max",
+				CGROUP_ROOT + "/cpu.max" };
+		for (String fileName : v2Files) {
+			List<String> lines = readLines(new File(fileName));
+			if (!lines.isEmpty()) {
+				String[] fields = lines.get(0).trim().split("\\s+");
+				if (fields.length == 2 && !fields[0].equals("max")) {
+					return toProcessors(fields[0], fields[1]);
+				}
+				return -1;
+			}
+		}
+
+		/* cgroups v1: quota and period in separate files, -1 for no quota */
+		String[] v1Dirs = { CGROUP_ROOT + "/cpu" + v1Path,
+				CGROUP_ROOT + "/cpu,cpuacct" + v1Path, CGROUP_ROOT + "/cpu" };
+		for (String dirName : v1Dirs) {
+			List<String> quota = readLines(new File(dirName, "cpu.cfs_quota_us"));
+			List<String> period = readLines(new File(dirName,
+					"cpu.cfs_period_us"));
+			if (!quota.isEmpty() && !period.isEmpty()) {
+				return toProcessors(quota.get(0).trim(), period.get(0).trim());
+			}
+		}
+		return -1;
+	}
+
+	private static int toProcessors(String quota, String period) {
+		try {
+			long quotaUs = Long.parseLong(quota);
+			long periodUs = Long.parseLong(period);
+			if (quotaUs <= 0 || periodUs <= 0)
+				return -1;
+			return (int) Math.max(1, (quotaUs + periodUs - 1) / periodUs);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static List<String> readLines(File file) {
+		List<String> lines = new ArrayList<String>();
+		if (!file.canRead())
+			return lines;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					lines.add(line);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			lines.clear();
+		}
+		return lines;
+	}
+}
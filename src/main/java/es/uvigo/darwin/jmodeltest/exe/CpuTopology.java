@@ -0,0 +1,242 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Processor topology of a Linux machine: the online logical CPUs this
+ * process is allowed to run on (e.g., within the cpuset of a batch job),
+ * and the physical core, socket and NUMA node of each one, as reported by
+ * the kernel in /sys and /proc.
+ *
+ * @author Diego Darriba
+ */
+public class CpuTopology {
+
+	private static final String CPU_DIR = "/sys/devices/system/cpu";
+	private static final String NODE_DIR = "/sys/devices/system/node";
+	private static final String PROCESS_STATUS = "/proc/self/status";
+	private static final String ALLOWED_CPUS = "Cpus_allowed_list:";
+
+	private List<Cpu> cpus;
+	private int numSockets;
+	private int numNodes;
+
+	private CpuTopology(List<Cpu> cpus) {
+		this.cpus = cpus;
+		Set<Integer> sockets = new HashSet<Integer>();
+		Set<Integer> nodes = new HashSet<Integer>();
+		for (Cpu cpu : cpus) {
+			sockets.add(cpu.socket);
+			nodes.add(cpu.node);
+		}
+		this.numSockets = sockets.size();
+		this.numNodes = nodes.size();
+	}
+
+	/**
+	 * Reads the topology of this machine
+	 *
+	 * @return the topology, or null if it is not available (e.g., the
+	 *         system is not Linux)
+	 */
+	public static CpuTopology read() {
+		File cpuDir = new File(CPU_DIR);
+		if (!cpuDir.isDirectory())
+			return null;
+		try {
+			List<Integer> online = parseCpuList(readLine(new File(cpuDir,
+					"online")));
+			/* CPUs out of the affinity mask cannot be bound */
+			List<Integer> allowed = readAllowedCpus();
+			if (allowed != null)
+				online.retainAll(allowed);
+			List<Cpu> cpus = new ArrayList<Cpu>(online.size());
+			for (int id : online) {
+				File topologyDir = new File(cpuDir, "cpu" + id + File.separator
+						+ "topology");
+				int socket = Integer.parseInt(readLine(new File(topologyDir,
+						"physical_package_id")));
+				int core = Integer.parseInt(readLine(new File(topologyDir,
+						"core_id")));
+				cpus.add(new Cpu(id, socket, core));
+			}
+
+			/* NUMA nodes are optional: a single node otherwise */
+			File[] nodeDirs = new File(NODE_DIR).listFiles();
+			if (nodeDirs != null) {
+				for (File nodeDir : nodeDirs) {
+					if (!nodeDir.getName().matches("node[0-9]+"))
+						continue;
+					int node = Integer.parseInt(nodeDir.getName().substring(4));
+					List<Integer> nodeCpus = parseCpuList(readLine(new File(
+							nodeDir, "cpulist")));
+					for (Cpu cpu : cpus) {
+						if (nodeCpus.contains(cpu.id))
+							cpu.node = node;
+					}
+				}
+			}
+			return cpus.isEmpty() ? null : new CpuTopology(cpus);
+		} catch (IOException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public List<Cpu> getCpus() {
+		return Collections.unmodifiableList(cpus);
+	}
+
+	public int getNumSockets() {
+		return numSockets;
+	}
+
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * Parses a list of CPUs in the kernel format (e.g., "0-3,8,10-11")
+	 *
+	 * @param cpuList
+	 *            the list
+	 *
+	 * @return the CPU ids
+	 */
+	public static List<Integer> parseCpuList(String cpuList) {
+		List<Integer> ids = new ArrayList<Integer>();
+		if (cpuList == null)
+			return ids;
+		for (String range : cpuList.trim().split(",")) {
+			if (range.length() == 0)
+				continue;
+			int dash = range.indexOf('-');
+			if (dash < 0) {
+				ids.add(Integer.parseInt(range.trim()));
+			} else {
+				int first = Integer.parseInt(range.substring(0, dash).trim());
+				int last = Integer.parseInt(range.substring(dash + 1).trim());
+				for (int id = first; id <= last; id++) {
+					ids.add(id);
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Formats a list of CPUs in the kernel format
+	 *
+	 * @param cpus
+	 *            the CPUs
+	 *
+	 * @return the comma-separated list of CPU ids
+	 */
+	public static String toCpuList(List<Cpu> cpus) {
+		StringBuilder sb = new StringBuilder();
+		for (Cpu cpu : cpus) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(cpu.id);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the CPUs this process is allowed to run on
+	 *
+	 * @return the CPU ids, or null if they are not available
+	 */
+	private static List<Integer> readAllowedCpus() throws IOException {
+		File status = new File(PROCESS_STATUS);
+		if (!status.canRead())
+			return null;
+		BufferedReader reader = new BufferedReader(new FileReader(status));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(ALLOWED_CPUS))
+					return parseCpuList(line.substring(ALLOWED_CPUS.length()));
+			}
+			return null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String readLine(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			if (line == null)
+				throw new IOException("Empty file " + file.getAbsolutePath());
+			return line.trim();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * A logical CPU
+	 */
+	public static class Cpu {
+
+		private int id;
+		private int socket;
+		private int core;
+		private int node = 0;
+
+		Cpu(int id, int socket, int core) {
+			this.id = id;
+			this.socket = socket;
+			this.core = core;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public int getSocket() {
+			return socket;
+		}
+
+		public int getNode() {
+			return node;
+		}
+
+		/**
+		 * Checks whether two logical CPUs are hardware threads of the same
+		 * physical core
+		 */
+		public boolean isSibling(Cpu other) {
+			return other != this && other.socket == socket
+					&& other.core == core;
+		}
+	}
+}
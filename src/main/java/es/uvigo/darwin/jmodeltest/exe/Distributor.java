@@ -17,174 +17,319 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
 package es.uvigo.darwin.jmodeltest.exe;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
+import java.util.Set;
 
 import javax.management.RuntimeErrorException;
 
-import mpi.MPI;
-import mpi.Request;
-import mpi.Status;
-import es.uvigo.darwin.jmodeltest.exception.InternalException;
 import es.uvigo.darwin.jmodeltest.model.Model;
 import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
 import es.uvigo.darwin.jmodeltest.utilities.Utilities;
 
 public class Distributor extends Observable implements Runnable {
 
-	/** MPJ Tag for requesting a new model. */
-	public static final int TAG_SEND_REQUEST = 1;
+	/**
+	 * Number of models held by a worker apart from the running ones: the
+	 * last started one and the prefetched ones.
+	 */
+	public static final int PREFETCH_WINDOW = 4;
 
-	/** MPJ Tag for sending a new model. */
-	public static final int TAG_SEND_MODEL = 2;
+	/** Time between tests of a pending worker request, in ms */
+	private static final long TEST_INTERVAL = 5;
 
 	private List<Model> models;
-	private RunPhymlMPJ caller;
-	/** MPJ Rank of the processor. */
-	private int mpjMe;
+	/** The position of each model in the list, by id */
+	private Map<Integer, Integer> modelIndex;
+	/** Handoff of models with the local worker */
+	private ModelHandoff handoff;
+	/** Communication with the remote workers */
+	private CoordinatorTransport transport;
 
-	/** MPJ Size of the communicator. */
-	private int mpjSize;
-
-	/**
-	 * The number of models per processor. It will be necessary by the root
-	 * process to do the non-uniform gathering
-	 */
-	private int[] itemsPerProc;
+	/** The number of models sent to each worker (0 is the local one) */
+	private Map<Integer, Integer> itemsPerWorker = new HashMap<Integer, Integer>();
 
-	/**
-	 * The array of displacements after the distribution. It will be necessary
-	 * by the root process to do the non-uniform gathering
-	 */
-	private int[] displs;
+	/** The position of the next model never sent */
+	private int next = 0;
+	/** The models of lost workers, sent again before the others */
+	private LinkedList<Integer> redispatched = new LinkedList<Integer>();
+	/** The number of models neither leased to a worker nor completed */
+	private int pendingModels;
+	/** The positions of the completed models */
+	private Set<Integer> completed = new HashSet<Integer>();
 
-	public Distributor(List<Model> models, RunPhymlMPJ caller, int mpjMe,
-			int mpjSize) {
-		this.mpjMe = mpjMe;
-		this.mpjSize = mpjSize;
+	public Distributor(List<Model> models, ModelHandoff handoff,
+			CoordinatorTransport transport) {
 		this.models = models;
-		this.caller = caller;
-		this.itemsPerProc = new int[mpjSize];
-		this.displs = new int[mpjSize];
+		this.handoff = handoff;
+		this.transport = transport;
 
 		Collections.sort(this.models, new ModelComparator());
+		this.modelIndex = ModelWireCodec.indexById(this.models);
+		if (transport.supportsWakeUp()) {
+			handoff.setTransport(transport);
+		}
 	}
 
 	public void distribute(List<Model> models) throws InterruptedException {
-		int index = 0;
-		for (Model model : models) {
-			// check root processor
-			//
-			// This strategy is an easy way to avoid the problem of
-			// thread-safety in MPJ-Express. It works correctly, but
-			// it also causes to introduce coupling between this class
-			// and RunPhymlMPJ having to define two volatile attributes:
-			// rootModelRequest and rootModel.
-			if (caller.rootModelRequest || mpjSize == 1) {
-				while (!caller.rootModelRequest) {
-					try {
-						Thread.sleep(200);
-					} catch (InterruptedException e) {
-						throw new InternalException(
-								"Thread interrupted");
-					}
-				}
-				if (caller.rootModel != null) {
-					// finalized model optimization
-					notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED,
-							index, caller.rootModel,
-							Utilities.displayRuntime(caller.rootModel
-									.getComputationTime()));
-				}
+		/* models leased to each worker and not returned yet */
+		Map<Integer, Set<Integer>> leases = new HashMap<Integer, Set<Integer>>();
+		/* cores of each worker, and workers with no more models */
+		Map<Integer, Integer> workerCores = new HashMap<Integer, Integer>();
+		Set<Integer> finishedWorkers = new HashSet<Integer>();
+		pendingModels = models.size();
+		for (int index = 0; index < models.size(); index++) {
+			Model model = models.get(index);
+			if (model.getLnL() > 0.0) {
+				// restored from the checkpoint of a previous execution
 				notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_INIT, index,
 						model, null);
-
-				caller.rootModel = model;
-				caller.rootModelRequest = false;
-				itemsPerProc[mpjMe]++;
+				complete(models, model);
+				pendingModels--;
+			}
+		}
+		boolean rootActive = true;
+		/* the root worker is kept until no leased model can be lost */
+		boolean rootWaiting = false;
+		while (rootActive
+				|| finishedWorkers.size() < transport.getNumberOfWorkers()) {
+			if (rootWaiting
+					&& (pendingModels > 0 || completed.size() == models.size())) {
+				rootWaiting = false;
+				rootActive = serveRoot(models);
+				continue;
+			}
+			boolean workersActive = transport.acceptsWorkers()
+					|| finishedWorkers.size() < transport.getNumberOfWorkers();
+			CoordinatorTransport.Message request = (rootActive && !rootWaiting) ? awaitRequest(workersActive)
+					: takeRemoteRequest();
+			if (request == null) {
+				// request of the root worker
+				Model rootModel = handoff.getComputedModel();
+				if (rootModel != null) {
+					// finalized model optimization
+					complete(models, rootModel);
+				}
+				if (pendingModels == 0 && completed.size() < models.size()) {
+					// a remote worker might be lost before returning them
+					rootWaiting = true;
+				} else {
+					rootActive = serveRoot(models);
+				}
+			} else if (request.getData() == null) {
+				// lost worker: lease its models to the others
+				int worker = request.getWorker();
+				Set<Integer> lease = leases.remove(worker);
+				if (lease != null && !lease.isEmpty()) {
+					System.err.println("WARNING: Worker " + worker
+							+ " was lost. Sending its " + lease.size()
+							+ " models to other workers");
+					redispatched.addAll(lease);
+					pendingModels += lease.size();
+				}
+				finishedWorkers.add(worker);
 			} else {
-				Model[] computedModel = new Model[1];
-				// getModel request
-				Request modelRequest = MPI.COMM_WORLD.Irecv(computedModel, 0,
-						1, MPI.OBJECT, MPI.ANY_SOURCE, TAG_SEND_REQUEST);
-				// prepare model
-				Model[] modelToSend = new Model[1];
-				modelToSend[0] = model;
-				// wait for request
-				Status requestStatus = modelRequest.Wait();
-				if (computedModel[0] != null) {
+				int worker = request.getWorker();
+				Set<Integer> lease = leases.get(worker);
+				if (lease == null) {
+					lease = new HashSet<Integer>();
+					leases.put(worker, lease);
+				}
+				List<Model> computedModels = new ArrayList<Model>();
+				int cores = ModelWireCodec.decode(request.getData(),
+						computedModels);
+				for (Model computedModel : computedModels) {
 					// finalized model optimization
-					int recvIndex = models.indexOf(computedModel[0]);
-					notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED,
-							index, computedModel[0],
-							Utilities.displayRuntime(computedModel[0]
-									.getComputationTime()));
-					models.set(recvIndex, computedModel[0]);
+					lease.remove(modelIndex.get(computedModel.getId()));
+					complete(models, computedModel);
+				}
+
+				// fill the window of the worker, but leave enough models for
+				// the other workers at the end of the execution
+				int batchSize = 0;
+				if (cores > 0) {
+					workerCores.put(worker, cores);
+					int share = (int) Math.ceil((double) pendingModels * cores
+							/ getTotalCores(workerCores, finishedWorkers,
+									rootActive));
+					batchSize = Math.max(0, Math.min(cores + PREFETCH_WINDOW
+							- 1 - lease.size(), share));
+				}
+				List<Model> batch = new ArrayList<Model>(batchSize);
+				for (int i = 0; i < batchSize; i++) {
+					int index = nextModel();
+					if (index < 0)
+						break;
+					Model model = models.get(index);
+					batch.add(model);
+					lease.add(index);
+					notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_INIT,
+							index, model, null);
+				}
+				add(itemsPerWorker, worker, batch.size());
+				// send models (an empty batch when there are no more)
+				transport.send(worker, ModelWireCodec.encode(0, batch));
+				if (batch.isEmpty() && lease.isEmpty()) {
+					finishedWorkers.add(worker);
 				}
-				// send model
-				Request modelSend = MPI.COMM_WORLD.Isend(modelToSend, 0, 1,
-						MPI.OBJECT, requestStatus.source, TAG_SEND_MODEL);
-				notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_INIT, index,
-						model, null);
-				// update structures
-				itemsPerProc[requestStatus.source]++;
-				// wait for send
-				modelSend.Wait();
 			}
-			index++;
 		}
-		displs[0] = 0;
-		for (int i = 1; i < mpjSize; i++)
-			displs[i] = displs[i - 1] + itemsPerProc[i - 1];
-
-		// finalize
-		for (int i = 1; i < mpjSize; i++) {
-			Model[] computedModel = new Model[1];
-			// getModel request
-			Request modelRequest = MPI.COMM_WORLD.Irecv(computedModel, 0, 1,
-					MPI.OBJECT, MPI.ANY_SOURCE, TAG_SEND_REQUEST);
-			Model[] modelToSend = { null };
-			// wait for request
-			Status requestStatus = modelRequest.Wait();
-			if (computedModel[0] != null) {
-				int recvIndex = models.indexOf(computedModel[0]);
-				notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED,
-						index, computedModel[0],
-						Utilities.displayRuntime(computedModel[0]
-								.getComputationTime()));
-				models.set(recvIndex, computedModel[0]);
+	}
+
+	/**
+	 * Serves the next model to the root worker
+	 * 
+	 * @return false, if there were no more models
+	 */
+	private boolean serveRoot(List<Model> models) {
+		int index = nextModel();
+		Model model = null;
+		if (index >= 0) {
+			model = models.get(index);
+			notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_INIT, index,
+					model, null);
+			add(itemsPerWorker, 0, 1);
+		}
+		handoff.serve(model, 1);
+		return model != null;
+	}
+
+	/**
+	 * Takes the next model to lease: first the models of lost workers, and
+	 * then the ones never sent
+	 * 
+	 * @return the position of the model, or -1 if there are no more
+	 */
+	private int nextModel() {
+		while (!redispatched.isEmpty()) {
+			int index = redispatched.removeFirst();
+			pendingModels--;
+			if (!completed.contains(index))
+				return index;
+		}
+		while (next < models.size()) {
+			int index = next++;
+			if (!completed.contains(index)) {
+				pendingModels--;
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Stores the result of a model. Results of models already completed
+	 * (e.g., computed by a worker that was considered lost) are discarded.
+	 * 
+	 * @return false, if the result was discarded
+	 */
+	private boolean complete(List<Model> models, Model computedModel) {
+		int index = modelIndex.get(computedModel.getId());
+		if (!completed.add(index))
+			return false;
+		if (redispatched.remove(Integer.valueOf(index)))
+			pendingModels--;
+		notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED, index,
+				computedModel, Utilities.displayRuntime(computedModel
+						.getComputationTime()));
+		models.set(index, computedModel);
+		return true;
+	}
+
+	/**
+	 * Gets the number of cores among which the remaining models are shared:
+	 * those of the root worker and of the workers with pending models.
+	 * Workers that did not request models yet count as one core.
+	 */
+	private int getTotalCores(Map<Integer, Integer> workerCores,
+			Set<Integer> finishedWorkers, boolean rootActive) {
+		int total = rootActive ? 1 : 0;
+		for (int worker = 1; worker <= transport.getNumberOfWorkers(); worker++) {
+			if (!finishedWorkers.contains(worker)) {
+				Integer cores = workerCores.get(worker);
+				total += cores != null ? cores : 1;
 			}
-			// send null model
-			Request modelSend = MPI.COMM_WORLD.Isend(modelToSend, 0, 1,
-					MPI.OBJECT, requestStatus.source, TAG_SEND_MODEL);
+		}
+		return Math.max(total, 1);
+	}
 
-			modelSend.Wait();
+	/**
+	 * Waits for a model request of a remote worker, skipping the wake-ups of
+	 * the transport
+	 */
+	private CoordinatorTransport.Message takeRemoteRequest()
+			throws InterruptedException {
+		while (true) {
+			CoordinatorTransport.Message request = transport.take();
+			if (request.getWorker() != 0)
+				return request;
 		}
-		// check root
-		while (!caller.rootModelRequest) {
-			try {
-				Thread.sleep(200);
-			} catch (InterruptedException e) {
-				throw e;
+	}
+
+	/**
+	 * Waits for a model request of the root worker or of a remote worker.
+	 * 
+	 * The root worker requests its models through the handoff. If the
+	 * transport supports it, the handoff wakes it up, so the distributor
+	 * blocks on the transport. Otherwise (e.g., MPJ Express), the transport
+	 * is tested between short waits on the handoff. Either way, requests of
+	 * the root worker are served at once.
+	 * 
+	 * @param workersActive
+	 *            whether remote workers can still send requests
+	 * 
+	 * @return the request of the remote worker, or null if the root worker
+	 *         requested the model
+	 */
+	private CoordinatorTransport.Message awaitRequest(boolean workersActive)
+			throws InterruptedException {
+		if (!workersActive) {
+			handoff.awaitRequest(-1);
+			return null;
+		}
+		if (transport.supportsWakeUp()) {
+			while (!handoff.awaitRequest(0)) {
+				CoordinatorTransport.Message request = transport.take();
+				if (request.getWorker() != 0) {
+					return request;
+				}
 			}
+			return null;
 		}
-		if (caller.rootModel != null) {
-			notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED, index,
-					caller.rootModel, Utilities.displayRuntime(caller.rootModel
-							.getComputationTime()));
+		long timeout = 0;
+		while (!handoff.awaitRequest(timeout)) {
+			CoordinatorTransport.Message request = transport.poll();
+			if (request != null) {
+				return request;
+			}
+			timeout = TEST_INTERVAL;
 		}
-		caller.rootModel = null;
-		caller.rootModelRequest = false;
+		return null;
 	}
 
-	public int[] getItemsPerProc() {
-		return itemsPerProc;
+	private static int get(Map<Integer, Integer> counts, int worker) {
+		Integer count = counts.get(worker);
+		return count != null ? count : 0;
 	}
 
-	public int[] getDispls() {
-		return displs;
+	private static void add(Map<Integer, Integer> counts, int worker,
+			int delta) {
+		counts.put(worker, get(counts, worker) + delta);
+	}
+
+	/**
+	 * Gets the number of models sent to each worker, where 0 is the local
+	 * worker of the coordinator
+	 */
+	public Map<Integer, Integer> getItemsPerWorker() {
+		return itemsPerWorker;
 	}
 
 	@Override
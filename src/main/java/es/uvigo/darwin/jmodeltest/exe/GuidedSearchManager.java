@@ -19,6 +19,9 @@ package es.uvigo.darwin.jmodeltest.exe;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.model.Model;
@@ -151,23 +154,60 @@ public class GuidedSearchManager {
 	}
 	
 	public static Model[] getModelsSubset(Model[] models, String partition, int k) {
+		return getModelsSubset(models, Arrays.asList(partition), k);
+	}
+
+	public static Model[] getModelsSubset(Model[] models, List<String> parentPartitions, int k) {
+
+		Model[] modelsSubset = selectModels(models, parentPartitions, k);
+		StringBuilder parents = new StringBuilder();
+		for (String partition : parentPartitions) {
+			parents.append(parents.length() > 0 ? ", " : "").append(partition);
+		}
+		if (k < 6) {
+			ModelTest.getMainConsole().println("[Clustering search] Obtain next step models from partition" 
+					+ (parentPartitions.size() > 1 ? "s " : " ") + parents + "...");
+		}
+		ModelTest.getMainConsole().println("[Clustering search] Step " + (7-k) + "/6: " + modelsSubset.length + " models.");
+		
+		return modelsSubset;
+	}
+
+	/**
+	 * Gets the models whose partition has k groups and results from merging
+	 * the groups of any of the parent partitions
+	 */
+	static Model[] selectModels(Model[] models, List<String> parentPartitions, int k) {
 
+		Set<String> partitions = new LinkedHashSet<String>();
+		for (String partition : parentPartitions) {
+			partitions.addAll(Arrays.asList(getPartitions(partition, k)));
+		}
 		ArrayList<Model> modelsArray = new ArrayList<Model>();
-		for (String curPartition : getPartitions(partition, k)) {
+		for (String curPartition : partitions) {
 			for (Model model : models) {
 				if (model.getPartition().equals(curPartition)) {
 					modelsArray.add(model);
 				}
 			}
 		}
-		if (k < 6) {
-			ModelTest.getMainConsole().println("[Clustering search] Obtain next step models from partition " + partition + "...");
-		}
-		ModelTest.getMainConsole().println("[Clustering search] Step " + (7-k) + "/6: " + modelsArray.size() + " models.");
-		
 		return modelsArray.toArray(new Model[0]);
 	}
 
+	/**
+	 * Checks whether a partition results from merging groups of another one
+	 */
+	static boolean isNested(String partition, String parentPartition) {
+		for (int i=0; i<5; i++) {
+			for (int j=i+1; j<6; j++) {
+				if (checkRates(parentPartition, i, j) && !checkRates(partition, i, j)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	private static boolean checkRates(String partition, int p0, int p1) {
 		return partition.charAt(p0) == partition.charAt(p1);
 	}
@@ -0,0 +1,124 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
+
+/**
+ * Live throughput of the hosts of a distributed execution.
+ *
+ * The speed of a host is the estimated cost of the models it optimized
+ * (see ModelCostEstimator) divided by the PE time they took, i.e., their
+ * wall time multiplied by their number of threads. It is smoothed with an
+ * exponential moving average, so it follows changes in the load of the
+ * host. Hosts without finished models are assumed to run at the mean speed
+ * of the measured ones.
+ *
+ * @author Diego Darriba
+ */
+public class HostThroughputTracker {
+
+	/** Weight of the last finished model in the speed of a host */
+	private static final double SMOOTHING = 0.3;
+
+	/** The speed of each measured host, in cost units per PE and ms */
+	private Map<Integer, Double> speeds = new TreeMap<Integer, Double>();
+	private Map<Integer, Integer> samples = new TreeMap<Integer, Integer>();
+
+	/**
+	 * Records a model optimized by a host
+	 *
+	 * @param host
+	 *            the host (the MPJ rank of its processor)
+	 * @param cost
+	 *            the estimated cost of the model
+	 * @param time
+	 *            the wall time of the optimization, in ms
+	 * @param threads
+	 *            the number of PhyML threads
+	 */
+	public synchronized void record(int host, double cost, long time,
+			int threads) {
+		if (cost <= 0.0 || time <= 0)
+			return;
+		double speed = cost / ((double) time * Math.max(threads, 1));
+		Double current = speeds.get(host);
+		speeds.put(host, current != null ? SMOOTHING * speed
+				+ (1.0 - SMOOTHING) * current : speed);
+		Integer count = samples.get(host);
+		samples.put(host, count != null ? count + 1 : 1);
+	}
+
+	/**
+	 * Checks whether any host was measured
+	 */
+	public synchronized boolean isMeasured() {
+		return !speeds.isEmpty();
+	}
+
+	/**
+	 * Gets the speed of a host
+	 *
+	 * @return the speed in cost units per PE and ms, or the mean speed if
+	 *         the host was not measured yet, or 1 if no host was measured
+	 */
+	public synchronized double getSpeed(int host) {
+		Double speed = speeds.get(host);
+		if (speed != null)
+			return speed;
+		if (speeds.isEmpty())
+			return 1.0;
+		double sum = 0.0;
+		for (double value : speeds.values()) {
+			sum += value;
+		}
+		return sum / speeds.size();
+	}
+
+	/**
+	 * Gets the speed of the fastest host
+	 */
+	public synchronized double getMaxSpeed() {
+		double max = speeds.isEmpty() ? 1.0 : 0.0;
+		for (double value : speeds.values()) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	/**
+	 * Prints the measured speed of each host, relative to the fastest one
+	 *
+	 * @param stream
+	 *            the output stream
+	 */
+	public synchronized void printSummary(TextOutputStream stream) {
+		if (stream == null || speeds.isEmpty())
+			return;
+		double max = getMaxSpeed();
+		for (Map.Entry<Integer, Double> entry : speeds.entrySet()) {
+			stream.println("[Throughput] Processor " + entry.getKey()
+					+ ": relative speed "
+					+ String.format("%.2f", entry.getValue() / max) + " ("
+					+ samples.get(entry.getKey()) + " models)");
+		}
+	}
+}
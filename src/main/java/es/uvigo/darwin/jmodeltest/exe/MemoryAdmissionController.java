@@ -0,0 +1,400 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Admission control of PhyML processes according to their memory
+ * requirements.
+ *
+ * The memory of each fit is estimated from the size of its partial
+ * likelihood vectors: two per branch of the tree, with one entry per site
+ * pattern, state and rate category. A process is only launched if the
+ * estimated memory of the running processes fits in the budget, although a
+ * single process is always admitted.
+ *
+ * While the processes run, their actual resident size is sampled from
+ * /proc, and the size of the likelihood vectors is corrected with the ratio
+ * observed between the actual and the estimated size. The correction grows
+ * at once with a larger ratio, and decays towards smaller ones, within
+ * bounds.
+ *
+ * @author Diego Darriba
+ */
+public class MemoryAdmissionController {
+
+	private static final String MEMINFO = "/proc/meminfo";
+	/** Fraction of the available memory used by default */
+	private static final double AUTO_BUDGET_FRACTION = 0.8;
+	/** Memory of a PhyML process apart from the likelihood vectors */
+	private static final long BASE_MEMORY = 16L * 1024 * 1024;
+	private static final int NUM_STATES = 4;
+	/** Interval between samples of the resident size, in ms */
+	private static final long SAMPLING_INTERVAL = 1000;
+	/** Bounds of the correction of the likelihood vectors size */
+	private static final double MIN_CORRECTION = 0.5;
+	private static final double MAX_CORRECTION = 4.0;
+	/** Weight of a new ratio when the correction decays towards it */
+	private static final double CORRECTION_DECAY = 0.25;
+
+	private static MemoryAdmissionController instance;
+	private static boolean initialized = false;
+	/** Whether the missing process ids were already reported */
+	private static volatile boolean pidWarned = false;
+
+	private long budget;
+	private long admittedMemory = 0;
+	private double correction = 1.0;
+	private List<Admission> running = new ArrayList<Admission>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition memoryReleased = lock.newCondition();
+	/** Samples the running processes, only while there is any */
+	private Thread sampler;
+
+	/* statistics */
+	private long peakAdmitted = 0;
+	private long peakResident = 0;
+	private int waits = 0;
+
+	private MemoryAdmissionController(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the admission controller
+	 *
+	 * @return the admission controller, or null if there is no memory
+	 *         budget
+	 */
+	public static synchronized MemoryAdmissionController getInstance() {
+		if (!initialized) {
+			initialized = true;
+			long budget = ModelTestConfiguration.getMemoryBudget();
+			if (budget == 0) {
+				long available = readAvailableMemory();
+				budget = available > 0 ? Math.round(available
+						* AUTO_BUDGET_FRACTION) : -1;
+			}
+			if (budget > 0) {
+				instance = new MemoryAdmissionController(budget);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Estimates the memory used by PhyML for optimizing a model
+	 *
+	 * @param model
+	 *            the model
+	 * @param options
+	 *            the application options
+	 *
+	 * @return the estimated memory, in bytes
+	 */
+	public static long estimateMemory(Model model, ApplicationOptions options) {
+		long taxa = Math.max(options.getNumTaxa(), 3);
+		long patterns = options.getNumPatterns() > 0 ? options
+				.getNumPatterns() : options.getNumSites();
+		long categories = model.ispG() ? Math.max(options.numGammaCat, 1) : 1;
+		long vectors = 2 * (2 * taxa - 3);
+		/* partial likelihoods (double) and scaling factors (int) */
+		long perVector = patterns * categories * (NUM_STATES * 8 + 4);
+		return BASE_MEMORY + vectors * perVector;
+	}
+
+	/**
+	 * Waits until the memory of a new process fits in the budget, and
+	 * reserves it
+	 *
+	 * @param estimatedMemory
+	 *            the estimated memory of the process, in bytes
+	 *
+	 * @return the admission of the process
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public Admission admit(long estimatedMemory) throws InterruptedException {
+		lock.lock();
+		try {
+			Admission admission = new Admission(estimatedMemory,
+					correct(estimatedMemory));
+			if (!fits(admission)) {
+				waits++;
+				while (!fits(admission)) {
+					memoryReleased.await();
+					admission.reserved = correct(estimatedMemory);
+				}
+			}
+			admittedMemory += admission.reserved;
+			peakAdmitted = Math.max(peakAdmitted, admittedMemory);
+			running.add(admission);
+			startSampler();
+			return admission;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the memory of a finished process, and learns from its
+	 * actual resident size
+	 *
+	 * @param admission
+	 *            the admission of the process
+	 */
+	public void release(Admission admission) {
+		sample(admission);
+		lock.lock();
+		try {
+			if (!running.remove(admission))
+				return;
+			admittedMemory -= admission.reserved;
+			long estimatedVectors = admission.estimated - BASE_MEMORY;
+			if (admission.peakResident > 0 && estimatedVectors > 0) {
+				double ratio = (double) Math.max(admission.peakResident
+						- BASE_MEMORY, 0) / estimatedVectors;
+				ratio = Math.min(Math.max(ratio, MIN_CORRECTION),
+						MAX_CORRECTION);
+				if (ratio > correction) {
+					correction = ratio;
+				} else {
+					correction += CORRECTION_DECAY * (ratio - correction);
+				}
+			}
+			memoryReleased.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Prints the memory admission statistics
+	 *
+	 * @param stream
+	 *            the output stream
+	 */
+	public void printSummary(TextOutputStream stream) {
+		if (stream == null || peakAdmitted == 0)
+			return;
+		lock.lock();
+		try {
+			stream.println("[Memory] Budget " + toMB(budget)
+					+ " MB, peak reserved " + toMB(peakAdmitted)
+					+ " MB, largest PhyML process " + toMB(peakResident)
+					+ " MB, estimate correction x"
+					+ String.format("%.2f", correction) + ", " + waits
+					+ " launches waited");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean fits(Admission admission) {
+		return running.isEmpty()
+				|| admittedMemory + admission.reserved <= budget;
+	}
+
+	/**
+	 * Applies the correction to the likelihood vectors of an estimate
+	 */
+	private long correct(long estimatedMemory) {
+		long vectors = Math.max(estimatedMemory - BASE_MEMORY, 0);
+		return estimatedMemory - vectors + Math.round(vectors * correction);
+	}
+
+	/**
+	 * Starts sampling the running processes, unless the sampler is already
+	 * running. It must be called with the lock held.
+	 */
+	private void startSampler() {
+		if (sampler != null)
+			return;
+		sampler = new Thread("PhyML memory sampler") {
+			public void run() {
+				while (sample()) {
+					try {
+						Thread.sleep(SAMPLING_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	/**
+	 * Samples the running processes
+	 *
+	 * @return false, if there is no running process, so the sampler stops
+	 */
+	private boolean sample() {
+		List<Admission> current;
+		lock.lock();
+		try {
+			if (running.isEmpty()) {
+				sampler = null;
+				return false;
+			}
+			current = new ArrayList<Admission>(running);
+		} finally {
+			lock.unlock();
+		}
+		for (Admission admission : current) {
+			sample(admission);
+		}
+		return true;
+	}
+
+	private void sample(Admission admission) {
+		int pid = admission.pid;
+		if (pid <= 0)
+			return;
+		long resident = readResidentMemory(pid);
+		if (resident > 0) {
+			lock.lock();
+			try {
+				admission.peakResident = Math.max(admission.peakResident,
+						resident);
+				peakResident = Math.max(peakResident, resident);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static long toMB(long bytes) {
+		return bytes / (1024 * 1024);
+	}
+
+	/**
+	 * Reads the peak resident size of a process, from the VmHWM (or VmRSS)
+	 * field of /proc/[pid]/status
+	 *
+	 * @return the resident size in bytes, or -1 if it cannot be read
+	 */
+	private static long readResidentMemory(int pid) {
+		long hwm = readKbField(new File("/proc/" + pid + "/status"), "VmHWM:");
+		return hwm > 0 ? hwm : readKbField(new File("/proc/" + pid
+				+ "/status"), "VmRSS:");
+	}
+
+	private static long readAvailableMemory() {
+		long available = readKbField(new File(MEMINFO), "MemAvailable:");
+		return available > 0 ? available : readKbField(new File(MEMINFO),
+				"MemTotal:");
+	}
+
+	private static long readKbField(File file, String field) {
+		if (!file.canRead())
+			return -1;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(field)) {
+						String[] tokens = line.substring(field.length())
+								.trim().split("\\s+");
+						return Long.parseLong(tokens[0]) * 1024;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the process id of a child process. Java 9 and later provide it
+	 * through the pid method of Process, while older UNIX implementations
+	 * keep it in a "pid" field.
+	 *
+	 * @return the process id, or -1 if it is not available
+	 */
+	private static int getPid(Process process) {
+		try {
+			Method pidMethod = Process.class.getMethod("pid");
+			return ((Number) pidMethod.invoke(process)).intValue();
+		} catch (Exception e) {
+			// not available before Java 9
+		}
+		try {
+			Field pidField = process.getClass().getDeclaredField("pid");
+			pidField.setAccessible(true);
+			return pidField.getInt(process);
+		} catch (Exception e) {
+			// also InaccessibleObjectException, a RuntimeException
+		}
+		if (!pidWarned) {
+			pidWarned = true;
+			System.err.println("WARNING: Cannot get the process id of PhyML: its memory usage will not be sampled");
+		}
+		return -1;
+	}
+
+	/**
+	 * The memory reserved for a process
+	 */
+	public class Admission {
+
+		private long estimated;
+		private long reserved;
+		private long peakResident = 0;
+		private volatile int pid = -1;
+
+		private Admission(long estimated, long reserved) {
+			this.estimated = estimated;
+			this.reserved = reserved;
+		}
+
+		/**
+		 * Sets the process using the reserved memory, so that its resident
+		 * size is sampled
+		 *
+		 * @param process
+		 *            the PhyML process
+		 */
+		public void setProcess(Process process) {
+			this.pid = getPid(process);
+		}
+	}
+}
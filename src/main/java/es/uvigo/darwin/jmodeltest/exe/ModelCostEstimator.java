@@ -0,0 +1,118 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Estimates the relative computational cost of optimizing a model with PhyML.
+ *
+ * The cost is expressed in arbitrary units and it is only meaningful for
+ * comparing models of the same analysis. It grows linearly with the size of
+ * the partial likelihood vectors (taxa x site patterns x rate categories) and
+ * with the number of free substitution parameters, which drives the number
+ * of optimization rounds.
+ *
+ * @author Diego Darriba
+ */
+public class ModelCostEstimator {
+
+	/** Extra cost of optimizing the proportion of invariable sites */
+	private static final double INV_FACTOR = 1.3;
+	/** Extra cost of optimizing +I and +G together (boundary effects) */
+	private static final double INV_GAMMA_FACTOR = 1.25;
+	/** Relative cost of each free substitution parameter */
+	private static final double PARAMETER_FACTOR = 0.1;
+
+	private ApplicationOptions options;
+
+	public ModelCostEstimator(ApplicationOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Gets the estimated cost of a model
+	 *
+	 * @param model
+	 *            the model to optimize
+	 *
+	 * @return the relative cost of the model optimization
+	 */
+	public double getCost(Model model) {
+		double taxa = Math.max(options.getNumTaxa(), 4);
+		double sites = options.getNumPatterns() > 0 ? options.getNumPatterns()
+				: Math.max(options.getNumSites(), 1);
+		double categories = model.ispG() ? Math.max(options.numGammaCat, 1)
+				: 1;
+
+		double cost = taxa * sites * categories;
+		cost *= 1.0 + PARAMETER_FACTOR * getFreeParameters(model);
+		if (model.ispI()) {
+			cost *= INV_FACTOR;
+			if (model.ispG()) {
+				cost *= INV_GAMMA_FACTOR;
+			}
+		}
+		cost *= getTopologyFactor();
+		return cost;
+	}
+
+	/**
+	 * Gets the execution time of a model predicted from the runtime history
+	 * 
+	 * @param model
+	 *            the model to optimize
+	 * @param numberOfThreads
+	 *            the number of threads for PhyML
+	 * 
+	 * @return the predicted time in milliseconds, or -1 if there is not
+	 *         enough information
+	 */
+	public long getPredictedTime(Model model, int numberOfThreads) {
+		return RuntimeHistory.getInstance().predict(model, options,
+				numberOfThreads);
+	}
+
+	/**
+	 * Gets the number of free parameters of the model, excluding branch
+	 * lengths and topology
+	 */
+	private int getFreeParameters(Model model) {
+		int parameters = model.getK();
+		if (options.countBLasParameters)
+			parameters -= options.getNumBranches();
+		if (options.optimizeMLTopology)
+			parameters--;
+		return Math.max(parameters, 0);
+	}
+
+	private double getTopologyFactor() {
+		if (!options.optimizeMLTopology || options.userTopologyExists
+				|| options.fixedTopology)
+			return 1.0;
+		switch (options.treeSearchOperations) {
+		case NNI:
+			return 1.5;
+		case SPR:
+			return 3.0;
+		default:
+			return 3.5;
+		}
+	}
+}
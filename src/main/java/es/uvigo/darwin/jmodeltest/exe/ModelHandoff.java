@@ -0,0 +1,251 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Handoff of models between the distributor thread and the local worker of
+ * the root processor.
+ *
+ * MPJ Express is not thread-safe, so the root worker cannot request its
+ * models through MPJ messages like the other processors. Instead, it posts
+ * a request here (with the result of its previous model and its free PEs)
+ * and blocks until the distributor serves it. The distributor is woken up
+ * as soon as a request is posted or its free PEs change, so the root
+ * processor never waits for a polling interval. If the transport of the
+ * remote workers supports it, it is woken up as well, so the distributor
+ * can block on it instead of polling.
+ *
+ * @author Diego Darriba
+ */
+public class ModelHandoff {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when a request is posted or updated */
+	private final Condition requestChanged = lock.newCondition();
+	/** Signalled when the pending request is served */
+	private final Condition requestServed = lock.newCondition();
+
+	/* request state */
+	private boolean pending = false;
+	/** whether the pending request changed since the distributor checked it */
+	private boolean changed = false;
+	private Model computedModel;
+	private int availablePEs;
+
+	/* response state */
+	private Model servedModel;
+	private int servedThreads = 1;
+
+	/** Transport woken up on every request, or null */
+	private CoordinatorTransport transport;
+
+	/**
+	 * Sets the transport of the remote workers to wake up when a request is
+	 * posted or updated
+	 *
+	 * @param transport
+	 *            the transport (see CoordinatorTransport.supportsWakeUp)
+	 */
+	public void setTransport(CoordinatorTransport transport) {
+		lock.lock();
+		try {
+			this.transport = transport;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Requests a new model to the distributor, and waits until it is served.
+	 * Called by the root worker.
+	 *
+	 * @param computedModel
+	 *            the last computed model, or null
+	 * @param availablePEs
+	 *            the free PEs of the root worker
+	 *
+	 * @return the next model to compute, or null if there are no more models
+	 *
+	 * @throws InterruptedException
+	 *             if the worker is interrupted while waiting
+	 */
+	public Model request(Model computedModel, int availablePEs)
+			throws InterruptedException {
+		lock.lock();
+		try {
+			this.computedModel = computedModel;
+			this.availablePEs = availablePEs;
+			pending = true;
+			changed = true;
+			requestChanged.signalAll();
+			if (transport != null)
+				transport.wakeUp();
+			while (pending) {
+				requestServed.await();
+			}
+			return servedModel;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of threads of the last served model
+	 */
+	public int getServedThreads() {
+		lock.lock();
+		try {
+			return servedThreads;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Updates the free PEs of the root worker while its request is pending,
+	 * so that the distributor reconsiders it
+	 *
+	 * @param availablePEs
+	 *            the free PEs of the root worker
+	 */
+	public void updateAvailablePEs(int availablePEs) {
+		lock.lock();
+		try {
+			this.availablePEs = availablePEs;
+			if (pending) {
+				changed = true;
+				requestChanged.signalAll();
+				if (transport != null)
+					transport.wakeUp();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until there is a request of the root worker that the distributor
+	 * has not checked yet, and marks it as checked. Called by the
+	 * distributor.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in ms, 0 for not waiting, or a
+	 *            negative value for waiting with no limit
+	 *
+	 * @return true, if there is an unchecked request
+	 *
+	 * @throws InterruptedException
+	 *             if the distributor is interrupted while waiting
+	 */
+	public boolean awaitRequest(long timeout) throws InterruptedException {
+		lock.lock();
+		try {
+			if (!changed && timeout != 0) {
+				if (timeout < 0) {
+					while (!changed) {
+						requestChanged.await();
+					}
+				} else {
+					long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+					while (!changed && nanos > 0) {
+						nanos = requestChanged.awaitNanos(nanos);
+					}
+				}
+			}
+			boolean unchecked = changed;
+			changed = false;
+			return unchecked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the root worker posts a request, and marks it as checked.
+	 * Called by the distributor.
+	 *
+	 * @throws InterruptedException
+	 *             if the distributor is interrupted while waiting
+	 */
+	public void awaitPendingRequest() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!pending) {
+				requestChanged.await();
+			}
+			changed = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the model computed by the root worker before its pending request
+	 *
+	 * @return the computed model, or null if there is none
+	 */
+	public Model getComputedModel() {
+		lock.lock();
+		try {
+			return computedModel;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the free PEs of the root worker
+	 */
+	public int getAvailablePEs() {
+		lock.lock();
+		try {
+			return availablePEs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Serves the pending request of the root worker
+	 *
+	 * @param model
+	 *            the next model to compute, or null if there are no more
+	 *            models
+	 * @param threads
+	 *            the number of threads for the model
+	 */
+	public void serve(Model model, int threads) {
+		lock.lock();
+		try {
+			servedModel = model;
+			servedThreads = threads;
+			computedModel = null;
+			pending = false;
+			changed = false;
+			requestServed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
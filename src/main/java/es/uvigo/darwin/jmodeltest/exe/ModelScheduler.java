@@ -0,0 +1,890 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
+import es.uvigo.darwin.jmodeltest.utilities.Utilities;
+
+/**
+ * Cost-aware scheduler for PhyML model optimizations.
+ *
+ * Tasks are sorted by their estimated cost and distributed among the workers
+ * following the longest processing time rule, so the most expensive models
+ * start first. Each worker owns a queue and, once it runs out of work, it
+ * steals the most expensive pending task from the most loaded worker.
+ *
+ * In elastic mode, the cores of the machine are shared among the running
+ * models. While there are more pending models than free cores each model
+ * runs on the threads it requests (a single one by default), but at the
+ * tail of the execution the free cores are split among the models being
+ * launched through PhyML threads.
+ *
+ * Tasks can be submitted after the scheduler starts, and queued or running
+ * tasks can be cancelled, which allows speculative executions.
+ *
+ * With hedging enabled, idle workers watch the running tasks. Once a task
+ * runs far longer than expected from its cost, a duplicate execution with a
+ * different seed (and in elastic mode, with the free cores) is launched.
+ * The first one to finish wins, and the other one is killed. Only tasks
+ * searching the ML tree are duplicated, since the seed does not change the
+ * results of fixed topologies. As the kept seed depends on timing, hedged
+ * executions are not reproducible.
+ *
+ * Costs come from the runtime history when it can predict every task, and
+ * from the cost estimator otherwise. The scheduler keeps track of the
+ * makespan predicted from the costs and the actual one, so that the benefits
+ * of the ordering can be checked.
+ *
+ * @author Diego Darriba
+ */
+public class ModelScheduler {
+
+	/** Ratio between the running and the expected time of a straggler */
+	private static final double HEDGE_FACTOR = 3.0;
+	/** Minimum running time before launching a duplicate, in ms */
+	private static final long HEDGE_MIN_TIME = 60000;
+	/** Interval for checking the running tasks when their cost is unknown */
+	private static final long HEDGE_CHECK_INTERVAL = 30000;
+	/** Completed tasks needed for converting costs into times */
+	private static final int HEDGE_MIN_COMPLETED = 2;
+	/** Maximum number of duplicates of a task */
+	private static final int MAX_HEDGES = 1;
+	/** Order of the tasks in the queues */
+	private static final Comparator<ScheduledTask> COST_ORDER = new CostComparator();
+
+	/** The pool of threads where the workers run */
+	private ExecutorService threadPool;
+	/** The number of concurrent workers */
+	private int numberOfWorkers;
+	/** The cost model */
+	private ModelCostEstimator estimator;
+	/** Whether tasks are ordered by cost or by submission order */
+	private boolean costOrdering;
+
+	private List<ScheduledTask> submittedTasks;
+	private Map<PhymlSingleModel, ScheduledTask> taskMap;
+	private List<LinkedList<ScheduledTask>> workerQueues;
+	private double[] workerLoads;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition workAvailable = lock.newCondition();
+	private final Condition taskFinished = lock.newCondition();
+	private List<Future<?>> workerFutures;
+	private boolean started = false;
+	private boolean closed = false;
+	/** Whether some task failed. The other tasks are still computed. */
+	private boolean failed = false;
+	/** Whether the execution was interrupted, so the workers must stop */
+	private boolean aborted = false;
+	/** Whether task costs are execution times predicted from history */
+	private boolean historyBased = false;
+	/** Time units per cost unit, for tasks without runtime history */
+	private double historyScale = 1.0;
+	/** Whether idle cores are given to the last models */
+	private boolean elastic = false;
+	/** Whether straggling tasks are duplicated */
+	private boolean hedging = false;
+	/** The number of cores not used by any running task */
+	private int freeCores;
+	/** The number of tasks waiting in the queues */
+	private int queuedTasks = 0;
+	/** The number of tasks being computed */
+	private int runningTasks = 0;
+	/** The number of finished (or cancelled) tasks */
+	private int finishedTasks = 0;
+	/** The number of successfully computed tasks */
+	private int completedTasks = 0;
+
+	/* statistics */
+	private double predictedMakespan;
+	private double submissionOrderMakespan;
+	private double completedCost;
+	private long completedTime;
+	private long startTime, endTime;
+	private int steals;
+	private int hedges, hedgeWins;
+
+	/**
+	 * Instantiates a new scheduler
+	 *
+	 * @param threadPool
+	 *            the pool of threads where the workers are executed
+	 * @param numberOfWorkers
+	 *            the number of concurrent workers
+	 * @param estimator
+	 *            the cost model for the tasks
+	 * @param costOrdering
+	 *            if false, tasks are executed in submission order
+	 */
+	public ModelScheduler(ExecutorService threadPool, int numberOfWorkers,
+			ModelCostEstimator estimator, boolean costOrdering) {
+		this.threadPool = threadPool;
+		this.numberOfWorkers = Math.max(numberOfWorkers, 1);
+		this.estimator = estimator;
+		this.costOrdering = costOrdering;
+		this.submittedTasks = new ArrayList<ScheduledTask>();
+		this.taskMap = new HashMap<PhymlSingleModel, ScheduledTask>();
+		this.workerQueues = new ArrayList<LinkedList<ScheduledTask>>(
+				this.numberOfWorkers);
+		for (int i = 0; i < this.numberOfWorkers; i++) {
+			workerQueues.add(new LinkedList<ScheduledTask>());
+		}
+		this.workerLoads = new double[this.numberOfWorkers];
+		this.freeCores = this.numberOfWorkers;
+	}
+
+	/**
+	 * Enables or disables the elastic allocation of threads. Must be called
+	 * before starting the scheduler.
+	 * 
+	 * @param elastic
+	 *            if true, free cores are split among the last models
+	 */
+	public void setElasticThreads(boolean elastic) {
+		this.elastic = elastic;
+	}
+
+	/**
+	 * Enables or disables the duplicate execution of straggling tasks. Must
+	 * be called before starting the scheduler.
+	 * 
+	 * @param hedging
+	 *            if true, idle workers launch duplicates of the stragglers
+	 */
+	public void setHedging(boolean hedging) {
+		this.hedging = hedging;
+	}
+
+	/**
+	 * Adds a new model optimization to the scheduler
+	 *
+	 * @param task
+	 *            the model optimization
+	 */
+	public void submit(PhymlSingleModel task) {
+		submit(task, 0);
+	}
+
+	/**
+	 * Submits a task with a given priority. Tasks with a higher priority
+	 * start before the others, whatever their cost.
+	 *
+	 * @param task
+	 *            the model optimization
+	 * @param priority
+	 *            the priority of the task (0 by default)
+	 */
+	public void submit(PhymlSingleModel task, int priority) {
+		ScheduledTask scheduledTask = new ScheduledTask(task,
+				estimator.getCost(task.getModel()),
+				estimator.getPredictedTime(task.getModel(),
+						task.getNumberOfThreads()));
+		scheduledTask.priority = priority;
+		lock.lock();
+		try {
+			submittedTasks.add(scheduledTask);
+			taskMap.put(task, scheduledTask);
+			if (started) {
+				assignCost(scheduledTask);
+				enqueue(scheduledTask);
+				workAvailable.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Executes every submitted task and waits for them to finish
+	 *
+	 * @return true, if every task was successfully computed
+	 */
+	public boolean execute() {
+		start();
+		close();
+		return await();
+	}
+
+	/**
+	 * Distributes the submitted tasks among the workers and starts them
+	 */
+	public void start() {
+		lock.lock();
+		try {
+			if (started)
+				return;
+			started = true;
+			startTime = System.currentTimeMillis();
+
+			/* use the runtime history if every task can be predicted */
+			historyBased = !submittedTasks.isEmpty();
+			double totalPredicted = 0.0, totalCost = 0.0;
+			for (ScheduledTask task : submittedTasks) {
+				historyBased &= task.predictedTime > 0;
+				totalPredicted += task.predictedTime;
+				totalCost += task.cost;
+			}
+			if (historyBased) {
+				historyScale = totalPredicted / totalCost;
+				for (ScheduledTask task : submittedTasks) {
+					assignCost(task);
+				}
+			}
+			submissionOrderMakespan = simulateListScheduling(submittedTasks);
+
+			List<ScheduledTask> tasks = new ArrayList<ScheduledTask>(
+					submittedTasks);
+			if (costOrdering) {
+				Collections.sort(tasks, COST_ORDER);
+			}
+			for (ScheduledTask task : tasks) {
+				enqueue(task);
+			}
+			predictedMakespan = costOrdering ? max(workerLoads)
+					: submissionOrderMakespan;
+		} finally {
+			lock.unlock();
+		}
+
+		workerFutures = new ArrayList<Future<?>>(numberOfWorkers);
+		for (int i = 0; i < numberOfWorkers; i++) {
+			workerFutures.add(threadPool.submit(new Worker(i)));
+		}
+	}
+
+	/**
+	 * Notifies that no more tasks will be submitted. Workers finish once
+	 * their queues are empty.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the workers to finish
+	 *
+	 * @return true, if every task was successfully computed
+	 */
+	public boolean await() {
+		for (Future<?> future : workerFutures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				abort();
+				return false;
+			} catch (ExecutionException e) {
+				// Internal exception while computing model.
+				// Let's continue with errors
+				e.printStackTrace();
+				lock.lock();
+				try {
+					failed = true;
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		lock.lock();
+		try {
+			return !failed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cancels a task. Queued tasks are removed from the queues, and running
+	 * tasks are stopped and their results discarded.
+	 *
+	 * @param task
+	 *            the task to cancel
+	 *
+	 * @return true, if the task was cancelled before finishing
+	 */
+	public boolean cancel(PhymlSingleModel task) {
+		lock.lock();
+		try {
+			ScheduledTask scheduledTask = taskMap.get(task);
+			if (scheduledTask == null || scheduledTask.finished)
+				return false;
+			for (int i = 0; i < numberOfWorkers; i++) {
+				if (workerQueues.get(i).remove(scheduledTask)) {
+					workerLoads[i] -= scheduledTask.cost;
+					queuedTasks--;
+					submittedTasks.remove(scheduledTask);
+					scheduledTask.finished = true;
+					finishedTasks++;
+					workAvailable.signalAll();
+					taskFinished.signalAll();
+					return true;
+				}
+			}
+			if (scheduledTask.running) {
+				task.cancel();
+				if (scheduledTask.hedge != null) {
+					scheduledTask.hedge.task.cancel();
+				}
+				return true;
+			}
+			/* not started yet */
+			submittedTasks.remove(scheduledTask);
+			taskMap.remove(task);
+			task.cancel();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether a task has finished
+	 *
+	 * @param task
+	 *            the task
+	 *
+	 * @return true, if the task was computed or cancelled
+	 */
+	public boolean isFinished(PhymlSingleModel task) {
+		lock.lock();
+		try {
+			ScheduledTask scheduledTask = taskMap.get(task);
+			return scheduledTask != null && scheduledTask.finished;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a task has finished (successfully or not), whatever the
+	 * state of the other tasks
+	 *
+	 * @param task
+	 *            the task
+	 *
+	 * @return false, if the execution was interrupted
+	 */
+	public boolean awaitFinished(PhymlSingleModel task) {
+		lock.lock();
+		try {
+			ScheduledTask scheduledTask = taskMap.get(task);
+			while (scheduledTask != null && !scheduledTask.finished
+					&& !aborted) {
+				taskFinished.await();
+			}
+			return !aborted;
+		} catch (InterruptedException e) {
+			failed = true;
+			aborted = true;
+			workAvailable.signalAll();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of finished (or cancelled) tasks
+	 *
+	 * @return the number of finished tasks
+	 */
+	public int getFinishedCount() {
+		lock.lock();
+		try {
+			return finishedTasks;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the given number of tasks have finished (successfully or
+	 * not), or the execution is interrupted
+	 *
+	 * @param count
+	 *            the number of finished tasks
+	 *
+	 * @return false, if the execution was interrupted
+	 */
+	public boolean awaitFinishedCount(int count) {
+		lock.lock();
+		try {
+			while (finishedTasks < count && !aborted) {
+				taskFinished.await();
+			}
+			return !aborted;
+		} catch (InterruptedException e) {
+			failed = true;
+			aborted = true;
+			workAvailable.signalAll();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of workers without work. Workers are idle only if
+	 * there are no queued tasks.
+	 *
+	 * @return the number of idle workers
+	 */
+	public int getIdleWorkers() {
+		lock.lock();
+		try {
+			return queuedTasks > 0 ? 0 : numberOfWorkers - runningTasks;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Prints the predicted and actual makespan of the execution
+	 *
+	 * @param stream
+	 *            the output stream
+	 */
+	public void printSummary(TextOutputStream stream) {
+		if (stream == null || completedCost <= 0.0)
+			return;
+		lock.lock();
+		try {
+			/* scale cost units to time with the observed throughput */
+			double msPerCostUnit = historyBased ? 1.0 : completedTime
+					/ completedCost;
+			stream.println(" ");
+			stream.println("[Scheduler] " + submittedTasks.size()
+					+ " models on " + numberOfWorkers + " threads, "
+					+ (costOrdering ? "longest-job-first with work stealing ("
+							+ steals + " steals)" : "submission order")
+					+ (historyBased ? ", costs from runtime history" : "")
+					+ (elastic ? ", elastic threads" : ""));
+			if (hedges > 0) {
+				stream.println("[Scheduler] " + hedges
+						+ " straggling models duplicated, " + hedgeWins
+						+ " finished first by the duplicate");
+			}
+			stream.println("[Scheduler] Predicted makespan: "
+					+ Utilities.displayRuntime(Math.round(predictedMakespan
+							* msPerCostUnit))
+					+ " (submission order: "
+					+ Utilities.displayRuntime(Math
+							.round(submissionOrderMakespan * msPerCostUnit))
+					+ ")");
+			stream.println("[Scheduler] Actual makespan:    "
+					+ Utilities.displayRuntime(endTime - startTime));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the cost of a task to its predicted time, if the schedule is
+	 * based on the runtime history
+	 */
+	private void assignCost(ScheduledTask task) {
+		if (historyBased) {
+			task.cost = task.predictedTime > 0 ? task.predictedTime
+					: task.heuristicCost * historyScale;
+		}
+	}
+
+	/**
+	 * Places a task in the queue of the least loaded worker. Queues are kept
+	 * in decreasing priority and cost order.
+	 */
+	private void enqueue(ScheduledTask task) {
+		int target = 0;
+		if (costOrdering) {
+			for (int i = 1; i < numberOfWorkers; i++) {
+				if (workerLoads[i] < workerLoads[target])
+					target = i;
+			}
+		}
+		LinkedList<ScheduledTask> queue = workerQueues.get(target);
+		int position = queue.size();
+		if (costOrdering) {
+			while (position > 0
+					&& COST_ORDER.compare(queue.get(position - 1), task) > 0) {
+				position--;
+			}
+		}
+		queue.add(position, task);
+		workerLoads[target] += task.cost;
+		queuedTasks++;
+	}
+
+	/**
+	 * Takes the next task for a worker, stealing it from another worker if
+	 * its own queue is empty. Blocks until a task is available or the
+	 * scheduler is closed.
+	 */
+	private ScheduledTask take(int workerId) throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				if (aborted)
+					return null;
+				if (elastic && freeCores <= 0 && queuedTasks > 0) {
+					workAvailable.await();
+					continue;
+				}
+				LinkedList<ScheduledTask> ownQueue = workerQueues
+						.get(workerId);
+				if (!ownQueue.isEmpty()) {
+					return dequeue(workerId);
+				}
+				int victim = -1;
+				for (int i = 0; i < numberOfWorkers; i++) {
+					if (!workerQueues.get(i).isEmpty()
+							&& (victim < 0 || workerLoads[i] > workerLoads[victim])) {
+						victim = i;
+					}
+				}
+				if (victim >= 0) {
+					if (costOrdering)
+						steals++;
+					return dequeue(victim);
+				}
+				if (hedging) {
+					ScheduledTask straggler = findStraggler();
+					if (straggler != null) {
+						return startHedge(straggler);
+					}
+					long wait = getNextStragglerCheck();
+					if (wait > 0) {
+						workAvailable.await(wait, TimeUnit.MILLISECONDS);
+						continue;
+					}
+				}
+				if (closed)
+					return null;
+				workAvailable.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the expected running time of a task, according to its cost
+	 * 
+	 * @return the expected time in ms, or -1 if it cannot be estimated yet
+	 */
+	private double getExpectedTime(ScheduledTask task) {
+		if (historyBased) {
+			return task.cost;
+		}
+		if (completedTasks >= HEDGE_MIN_COMPLETED && completedCost > 0.0) {
+			return task.cost * completedTime / completedCost;
+		}
+		return -1;
+	}
+
+	private boolean canBeHedged(ScheduledTask task) {
+		return task.running && task.hedged == null && task.hedge == null
+				&& task.hedges < MAX_HEDGES && !task.task.isCancelled()
+				&& task.task.isSeedDependent();
+	}
+
+	/**
+	 * Gets the time when a running task becomes a straggler
+	 * 
+	 * @return the time in ms, or -1 if it cannot be estimated yet
+	 */
+	private long getHedgeDeadline(ScheduledTask task) {
+		double expectedTime = getExpectedTime(task);
+		if (expectedTime < 0)
+			return -1;
+		return task.startTime
+				+ Math.max(Math.round(HEDGE_FACTOR * expectedTime),
+						HEDGE_MIN_TIME);
+	}
+
+	/**
+	 * Finds the running task that most exceeds its expected time
+	 * 
+	 * @return the straggler, or null if there is none
+	 */
+	private ScheduledTask findStraggler() {
+		if (elastic && freeCores <= 0)
+			return null;
+		long now = System.currentTimeMillis();
+		ScheduledTask straggler = null;
+		double maxDelay = 1.0;
+		for (ScheduledTask task : submittedTasks) {
+			if (!canBeHedged(task))
+				continue;
+			long deadline = getHedgeDeadline(task);
+			if (deadline < 0 || now < deadline)
+				continue;
+			double delay = (now - task.startTime) / getExpectedTime(task);
+			if (straggler == null || delay > maxDelay) {
+				straggler = task;
+				maxDelay = delay;
+			}
+		}
+		return straggler;
+	}
+
+	/**
+	 * Gets the time until some running task may become a straggler
+	 * 
+	 * @return the time in ms, or -1 if no running task can be duplicated
+	 */
+	private long getNextStragglerCheck() {
+		long now = System.currentTimeMillis();
+		long wait = -1;
+		for (ScheduledTask task : submittedTasks) {
+			if (!canBeHedged(task))
+				continue;
+			long deadline = getHedgeDeadline(task);
+			long taskWait = deadline < 0 ? HEDGE_CHECK_INTERVAL : Math.max(
+					deadline - now, 1);
+			if (wait < 0 || taskWait < wait) {
+				wait = taskWait;
+			}
+		}
+		return wait;
+	}
+
+	/**
+	 * Launches a duplicate execution of a straggling task
+	 */
+	private ScheduledTask startHedge(ScheduledTask straggler) {
+		straggler.hedges++;
+		ScheduledTask hedge = new ScheduledTask(
+				straggler.task.createHedge(straggler.hedges), straggler.cost,
+				straggler.predictedTime);
+		hedge.hedged = straggler;
+		straggler.hedge = hedge;
+		hedge.running = true;
+		hedge.startTime = System.currentTimeMillis();
+		runningTasks++;
+		hedges++;
+		if (elastic) {
+			/* escalate the duplicate to every free core */
+			hedge.threads = freeCores;
+			freeCores = 0;
+			hedge.task.setNumberOfThreads(hedge.threads);
+		}
+		return hedge;
+	}
+
+	private ScheduledTask dequeue(int workerId) {
+		ScheduledTask task = workerQueues.get(workerId).removeFirst();
+		workerLoads[workerId] -= task.cost;
+		queuedTasks--;
+		runningTasks++;
+		task.running = true;
+		task.startTime = System.currentTimeMillis();
+		if (elastic) {
+			/*
+			 * split the free cores among this task and the queued ones, with
+			 * at least the threads requested by the task
+			 */
+			int pendingTasks = queuedTasks + 1;
+			task.threads = pendingTasks * task.baseThreads >= freeCores ? Math
+					.min(task.baseThreads, freeCores) : freeCores / pendingTasks;
+			freeCores -= task.threads;
+			task.task.setNumberOfThreads(task.threads);
+		}
+		return task;
+	}
+
+	private void taskCompleted(ScheduledTask task, boolean success) {
+		lock.lock();
+		try {
+			if (task.hedged != null) {
+				hedgeCompleted(task);
+				return;
+			}
+			if (task.hedge != null) {
+				/* the duplicate lost */
+				task.hedge.task.cancel();
+				task.hedge = null;
+			}
+			if (success && !task.task.isCancelled())
+				completedTasks++;
+			completedCost += task.cost;
+			completedTime += task.endTime - task.startTime;
+			endTime = Math.max(endTime, task.endTime);
+			runningTasks--;
+			finishedTasks++;
+			task.running = false;
+			task.finished = true;
+			taskFinished.signalAll();
+			if (elastic) {
+				freeCores += task.threads;
+			}
+			if (!success) {
+				failed = true;
+			}
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Finishes a duplicate execution. If the original task is still
+	 * running, it adopts the results of the duplicate.
+	 */
+	private void hedgeCompleted(ScheduledTask hedge) {
+		ScheduledTask original = hedge.hedged;
+		runningTasks--;
+		hedge.running = false;
+		hedge.finished = true;
+		if (elastic) {
+			freeCores += hedge.threads;
+		}
+		if (original != null && !original.finished
+				&& original.task.adopt(hedge.task)) {
+			hedgeWins++;
+		}
+		if (original != null) {
+			original.hedge = null;
+		}
+		workAvailable.signalAll();
+	}
+
+	/**
+	 * Stops the workers after their running tasks
+	 */
+	private void abort() {
+		lock.lock();
+		try {
+			failed = true;
+			aborted = true;
+			workAvailable.signalAll();
+			taskFinished.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Simulates the greedy assignment of tasks in the given order to the
+	 * first available worker, as a plain fixed thread pool would do.
+	 */
+	private double simulateListScheduling(List<ScheduledTask> tasks) {
+		double[] finishTimes = new double[numberOfWorkers];
+		for (ScheduledTask task : tasks) {
+			int first = 0;
+			for (int i = 1; i < numberOfWorkers; i++) {
+				if (finishTimes[i] < finishTimes[first])
+					first = i;
+			}
+			finishTimes[first] += task.cost;
+		}
+		return max(finishTimes);
+	}
+
+	private static double max(double[] values) {
+		double max = 0.0;
+		for (double value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	private class Worker implements Runnable {
+
+		private int workerId;
+
+		Worker(int workerId) {
+			this.workerId = workerId;
+		}
+
+		public void run() {
+			try {
+				ScheduledTask task;
+				while ((task = take(workerId)) != null) {
+					boolean success = false;
+					try {
+						success = task.task.compute();
+					} catch (RuntimeException e) {
+						// Let's continue with errors
+						e.printStackTrace();
+					} finally {
+						task.endTime = System.currentTimeMillis();
+						taskCompleted(task, success);
+					}
+				}
+			} catch (InterruptedException e) {
+				abort();
+			}
+		}
+	}
+
+	private static class ScheduledTask {
+
+		private PhymlSingleModel task;
+		private double cost;
+		private double heuristicCost;
+		private long predictedTime;
+		private int threads;
+		/** the threads requested by the task */
+		private int baseThreads;
+		private long startTime, endTime;
+		private boolean running, finished;
+		/** the duplicate execution of this task, if running */
+		private ScheduledTask hedge;
+		/** the task duplicated by this one */
+		private ScheduledTask hedged;
+		private int hedges = 0;
+		/** tasks with a higher priority start first */
+		private int priority = 0;
+
+		ScheduledTask(PhymlSingleModel task, double cost, long predictedTime) {
+			this.task = task;
+			this.cost = cost;
+			this.heuristicCost = cost;
+			this.predictedTime = predictedTime;
+			this.baseThreads = Math.max(task.getNumberOfThreads(), 1);
+		}
+	}
+
+	private static class CostComparator implements Comparator<ScheduledTask> {
+
+		public int compare(ScheduledTask task1, ScheduledTask task2) {
+			if (task1.priority != task2.priority)
+				return task2.priority > task1.priority ? 1 : -1;
+			return Double.compare(task2.cost, task1.cost);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pal.tree.TreeParseException;
+import es.uvigo.darwin.jmodeltest.exception.InternalException;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Compact binary encoding of the models exchanged among processors.
+ *
+ * Serializing a model sends its whole object graph, including the parsed
+ * PAL tree, which is by far its largest part. Instead, each model is
+ * encoded as its id and definition, followed (only once it is optimized)
+ * by a packed block with its parameters and its tree as a Newick string.
+ * The tree is parsed again only by the receiver of the results. A message
+ * carries an integer header and any number of models.
+ *
+ * @author Diego Darriba
+ */
+public class ModelWireCodec {
+
+	public static final byte VERSION = 1;
+
+	/* flags of the encoded models */
+	private static final int F = 1, T = 2, V = 4, R = 8, I = 16, G = 32;
+	private static final int PARAMETERS = 64, TREE = 128;
+
+	private ModelWireCodec() {
+	}
+
+	/**
+	 * Encodes a message
+	 *
+	 * @param header
+	 *            the header of the message
+	 * @param models
+	 *            the models of the message
+	 *
+	 * @return the encoded message
+	 */
+	public static byte[] encode(int header, Collection<Model> models) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				64 * (models.size() + 1));
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(VERSION);
+			out.writeInt(header);
+			out.writeInt(models.size());
+			for (Model model : models) {
+				writeModel(out, model);
+			}
+			out.close();
+		} catch (IOException e) {
+			/* never thrown by byte array streams */
+			throw new InternalException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a message
+	 *
+	 * @param data
+	 *            the encoded message
+	 * @param models
+	 *            the list where the models of the message are added
+	 *
+	 * @return the header of the message
+	 *
+	 * @throws InternalException
+	 *             if the message is malformed
+	 */
+	public static int decode(byte[] data, List<Model> models) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				data));
+		try {
+			byte version = in.readByte();
+			if (version != VERSION)
+				throw new InternalException("Unsupported model message version "
+						+ version);
+			int header = in.readInt();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				models.add(readModel(in));
+			}
+			return header;
+		} catch (IOException e) {
+			throw new InternalException("Malformed model message: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds the index of a list of models by their ids
+	 *
+	 * @param models
+	 *            the models
+	 *
+	 * @return the position of each model in the list, by id
+	 */
+	public static Map<Integer, Integer> indexById(List<Model> models) {
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>(
+				2 * models.size());
+		for (int i = 0; i < models.size(); i++) {
+			index.put(models.get(i).getId(), i);
+		}
+		return index;
+	}
+
+	private static void writeModel(DataOutputStream out, Model model)
+			throws IOException {
+		boolean optimized = model.getLnL() != 0.0;
+		String tree = model.getTreeString();
+		int flags = (model.ispF() ? F : 0) | (model.ispT() ? T : 0)
+				| (model.ispV() ? V : 0) | (model.ispR() ? R : 0)
+				| (model.ispI() ? I : 0) | (model.ispG() ? G : 0)
+				| (optimized ? PARAMETERS : 0)
+				| (optimized && tree != null ? TREE : 0);
+		out.writeInt(model.getId());
+		out.writeByte(flags);
+		out.writeUTF(model.getName());
+		out.writeUTF(model.getPartition());
+		out.writeShort(model.getK());
+		out.writeByte(model.getNumTi());
+		out.writeByte(model.getNumTv());
+		if (optimized) {
+			out.writeDouble(model.getLnL());
+			out.writeDouble(model.getLnLIgnoringGaps());
+			out.writeDouble(model.getUnconstrainedLnL());
+			out.writeShort(model.getNumGammaCat());
+			out.writeDouble(model.getShape());
+			out.writeDouble(model.getPinv());
+			out.writeDouble(model.getfA());
+			out.writeDouble(model.getfC());
+			out.writeDouble(model.getfG());
+			out.writeDouble(model.getfT());
+			out.writeDouble(model.getRa());
+			out.writeDouble(model.getRb());
+			out.writeDouble(model.getRc());
+			out.writeDouble(model.getRd());
+			out.writeDouble(model.getRe());
+			out.writeDouble(model.getRf());
+			out.writeDouble(model.getKappa());
+			out.writeDouble(model.getTitv());
+			out.writeLong(model.getComputationTime());
+			if (tree != null) {
+				/* trees may exceed the writeUTF limit */
+				byte[] treeBytes = tree.getBytes("UTF-8");
+				out.writeInt(treeBytes.length);
+				out.write(treeBytes);
+			}
+		}
+	}
+
+	private static Model readModel(DataInputStream in) throws IOException {
+		int id = in.readInt();
+		int flags = in.readUnsignedByte();
+		String name = in.readUTF();
+		String partition = in.readUTF();
+		int K = in.readShort();
+		int numTi = in.readByte();
+		int numTv = in.readByte();
+		Model model = new Model(id, name, partition, K, (flags & F) != 0,
+				(flags & T) != 0, (flags & V) != 0, (flags & R) != 0,
+				(flags & I) != 0, (flags & G) != 0, numTi, numTv);
+		if ((flags & PARAMETERS) != 0) {
+			model.setLnL(in.readDouble());
+			model.setLnLIgnoringGaps(in.readDouble());
+			model.setUnconstrainedLnL(in.readDouble());
+			model.setNumGammaCat(in.readShort());
+			model.setShape(in.readDouble());
+			model.setPinv(in.readDouble());
+			model.setfA(in.readDouble());
+			model.setfC(in.readDouble());
+			model.setfG(in.readDouble());
+			model.setfT(in.readDouble());
+			model.setRa(in.readDouble());
+			model.setRb(in.readDouble());
+			model.setRc(in.readDouble());
+			model.setRd(in.readDouble());
+			model.setRe(in.readDouble());
+			model.setRf(in.readDouble());
+			model.setKappa(in.readDouble());
+			model.setTitv(in.readDouble());
+			model.setComputationTime(in.readLong());
+		}
+		if ((flags & TREE) != 0) {
+			byte[] tree = new byte[in.readInt()];
+			in.readFully(tree);
+			try {
+				model.setTreeString(new String(tree, "UTF-8"));
+			} catch (TreeParseException e) {
+				throw new IOException("Cannot parse the tree of " + name
+						+ ": " + e.getMessage());
+			}
+		}
+		return model;
+	}
+}
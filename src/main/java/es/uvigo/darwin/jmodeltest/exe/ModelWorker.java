@@ -0,0 +1,196 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.exception.InternalException;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Computes the models pulled from a coordinator.
+ *
+ * The models are received in batches and kept in a local queue, and up to
+ * one model per core is optimized concurrently. When the last queued model
+ * starts, the computed models are returned to the coordinator together
+ * with the request for the next batch, so the round trip overlaps the
+ * optimization of the running models.
+ *
+ * The header of each request is the number of cores of the worker, or 0
+ * for the last request, which only returns the computed models.
+ *
+ * While a request is pending, the worker waits on the transport, which the
+ * finished models wake up. Transports that cannot be woken up are tested
+ * between short waits for the running models.
+ *
+ * @author Diego Darriba
+ */
+public class ModelWorker {
+
+	/** Time between tests of a pending answer of the coordinator, in ms */
+	private static final long TEST_INTERVAL = 5;
+
+	private WorkerTransport transport;
+	private ApplicationOptions options;
+	private int cores;
+	private List<Model> computedModels = new ArrayList<Model>();
+
+	/* state of the worker, only accessed by its main thread */
+	private LinkedList<Model> queue = new LinkedList<Model>();
+	private List<Model> results = new ArrayList<Model>();
+	private boolean requested = false;
+	private boolean finished = false;
+
+	/** The models whose optimization finished */
+	private BlockingQueue<Model> completed = new LinkedBlockingQueue<Model>();
+	private volatile String failure;
+
+	public ModelWorker(WorkerTransport transport, ApplicationOptions options,
+			int cores) {
+		this.transport = transport;
+		this.options = options;
+		this.cores = Math.max(cores, 1);
+	}
+
+	/**
+	 * Computes models until the coordinator has no more
+	 *
+	 * @throws InterruptedException
+	 *             if the worker is interrupted while waiting
+	 */
+	public void run() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(cores);
+		int running = 0;
+		try {
+			sendRequest(cores);
+			while (true) {
+				if (requested) {
+					receive((queue.isEmpty() && running == 0) ? transport
+							.take() : transport.poll());
+				}
+				while (running < cores && !queue.isEmpty()) {
+					submit(pool, queue.removeFirst());
+					running++;
+				}
+				if (queue.isEmpty() && !requested && !finished) {
+					sendRequest(cores);
+				}
+				if (running == 0) {
+					if (queue.isEmpty() && finished)
+						break;
+					continue;
+				}
+
+				// wait for some model to finish
+				Model model;
+				if (!requested) {
+					model = completed.take();
+				} else if (transport.supportsWakeUp()) {
+					// or for the answer of the coordinator
+					receive(transport.take());
+					model = completed.poll();
+				} else {
+					model = completed.poll(TEST_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+				while (model != null) {
+					if (failure != null)
+						throw new InternalException(failure);
+					results.add(model);
+					running--;
+					model = completed.poll();
+				}
+			}
+			if (!results.isEmpty()) {
+				// return the last results
+				sendRequest(0);
+				while (transport.take() == WorkerTransport.WAKE_UP)
+					;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gets the models computed by this worker
+	 */
+	public List<Model> getComputedModels() {
+		return computedModels;
+	}
+
+	/**
+	 * Queues the models of the answer to the pending request, if it arrived
+	 *
+	 * @param batch
+	 *            the answer, WAKE_UP or null
+	 */
+	private void receive(byte[] batch) {
+		if (batch == WorkerTransport.WAKE_UP) {
+			return;
+		}
+		if (batch != null) {
+			requested = false;
+			int queued = queue.size();
+			ModelWireCodec.decode(batch, queue);
+			// an empty batch means that there are no more models
+			finished = (queue.size() == queued);
+		} else if (!transport.isOpen()) {
+			throw new InternalException("Connection to the coordinator lost");
+		}
+	}
+
+	/**
+	 * Sends a request with the computed models, which are removed from the
+	 * results
+	 */
+	private void sendRequest(int header) {
+		transport.send(ModelWireCodec.encode(header, results));
+		results.clear();
+		requested = true;
+	}
+
+	private void submit(ExecutorService pool, final Model model) {
+		computedModels.add(model);
+		pool.execute(new Runnable() {
+			public void run() {
+				try {
+					PhymlSingleModel runenv = new PhymlSingleModel(model, 0,
+							false, false, options);
+					if (!runenv.compute()) {
+						failure = "Optimization error (" + model.getName()
+								+ ")";
+					}
+				} catch (RuntimeException e) {
+					failure = "Optimization error (" + model.getName()
+							+ "): " + e.getMessage();
+				} finally {
+					completed.add(model);
+					transport.wakeUp();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,151 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import mpi.MPI;
+import mpi.Request;
+import mpi.Status;
+
+/**
+ * Transport of the model requests over MPJ Express. The workers are the
+ * non-root processors of the communicator.
+ *
+ * MPJ Express is not thread-safe, so each side must be used by a single
+ * thread. A failed processor aborts the whole MPJ job, so lost workers are
+ * never reported.
+ *
+ * @author Diego Darriba
+ */
+public class MpjTransport {
+
+	/** MPJ Tag for requesting new models. */
+	public static final int TAG_SEND_REQUEST = 1;
+
+	/** MPJ Tag for sending new models. */
+	public static final int TAG_SEND_MODEL = 2;
+
+	private MpjTransport() {
+	}
+
+	/**
+	 * The root processor
+	 */
+	public static class Coordinator extends CoordinatorTransport {
+
+		private int mpjSize;
+		/** The pending MPJ request, and its content */
+		private Request request;
+		private Object[] buffer;
+
+		public Coordinator(int mpjSize) {
+			this.mpjSize = mpjSize;
+		}
+
+		@Override
+		public int getNumberOfWorkers() {
+			return mpjSize - 1;
+		}
+
+		@Override
+		public boolean acceptsWorkers() {
+			return false;
+		}
+
+		@Override
+		public Message poll() {
+			if (request == null)
+				post();
+			Status status = request.Test();
+			return status != null ? receive(status) : null;
+		}
+
+		@Override
+		public Message take() {
+			if (request == null)
+				post();
+			return receive(request.Wait());
+		}
+
+		@Override
+		public void send(int worker, byte[] data) {
+			Object[] message = { data };
+			MPI.COMM_WORLD.Isend(message, 0, 1, MPI.OBJECT, worker,
+					TAG_SEND_MODEL).Wait();
+		}
+
+		@Override
+		public void close() {
+			/* the MPJ environment is finalized by the application */
+		}
+
+		private void post() {
+			buffer = new Object[1];
+			request = MPI.COMM_WORLD.Irecv(buffer, 0, 1, MPI.OBJECT,
+					MPI.ANY_SOURCE, TAG_SEND_REQUEST);
+		}
+
+		private Message receive(Status status) {
+			request = null;
+			return new Message(status.source, (byte[]) buffer[0]);
+		}
+	}
+
+	/**
+	 * A non-root processor
+	 */
+	public static class Worker extends WorkerTransport {
+
+		/** The reception of the answer to the last request */
+		private Request answer;
+		private Object[] buffer = new Object[1];
+
+		@Override
+		public void send(byte[] data) {
+			if (answer == null) {
+				buffer[0] = null;
+				answer = MPI.COMM_WORLD.Irecv(buffer, 0, 1, MPI.OBJECT, 0,
+						TAG_SEND_MODEL);
+			}
+			Object[] message = { data };
+			MPI.COMM_WORLD.Isend(message, 0, 1, MPI.OBJECT, 0,
+					TAG_SEND_REQUEST).Wait();
+		}
+
+		@Override
+		public byte[] poll() {
+			if (answer == null || answer.Test() == null)
+				return null;
+			answer = null;
+			return (byte[]) buffer[0];
+		}
+
+		@Override
+		public byte[] take() {
+			if (answer == null)
+				return null;
+			answer.Wait();
+			answer = null;
+			return (byte[]) buffer[0];
+		}
+
+		@Override
+		public void close() {
+			/* the MPJ environment is finalized by the application */
+		}
+	}
+}
@@ -19,8 +19,11 @@ package es.uvigo.darwin.jmodeltest.exe;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 
 import javax.management.RuntimeErrorException;
@@ -28,6 +31,7 @@ import javax.management.RuntimeErrorException;
 import mpi.MPI;
 import mpi.Request;
 import mpi.Status;
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
 import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
 import es.uvigo.darwin.jmodeltest.model.Model;
@@ -43,6 +47,8 @@ public class MultipleDistributor extends Observable implements Runnable {
 	public static int PROCESSORS_IG;
 	public static int PROCESSORS_I;
 	public static int PROCESSORS_UNIFORM;
+	/** Whether free PEs are given to the last models */
+	public static boolean ELASTIC_THREADS;
 
 	/** MPJ Tag for requesting a new model. */
 	public static final int TAG_SEND_REQUEST = 1;
@@ -52,11 +58,38 @@ public class MultipleDistributor extends Observable implements Runnable {
 
 	public static final int TAG_EXIST_MORE_MODELS = 3;
 
+	/** Maximum number of models sent to a processor in a message. */
+	public static final int MAX_BATCH = 8;
+
+	/**
+	 * Size of a model request: the free PEs and the total PEs of the
+	 * processor, the number of models it finished since its last request
+	 * (up to MAX_BATCH), and the id and wall time in ms of each one.
+	 */
+	public static final int REQUEST_SIZE = 3 + 2 * MAX_BATCH;
+
+	/**
+	 * Relative speed above which a processor is considered as fast as the
+	 * fastest one, so that small measurement differences are ignored
+	 */
+	private static final double SPEED_TOLERANCE = 0.9;
+
+	/** Time between tests of a pending MPJ request, in ms */
+	private static final long MPJ_TEST_INTERVAL = 5;
+
 	private List<Model> modelsToSend;
 	private RunPhymlHybrid caller;
+	/** The pending MPJ request, and its content */
+	private Request modelRequest;
+	private int[] receivedRequest;
+
+	/** Measured speed of the processors, and what is needed to update it */
+	private HostThroughputTracker throughput = new HostThroughputTracker();
+	private ModelCostEstimator costEstimator;
+	private Map<Integer, Model> modelsById = new HashMap<Integer, Model>();
+	private Map<Integer, Integer> modelThreads = new HashMap<Integer, Integer>();
 
 	private static boolean assumeHyperThreading;
-	private static boolean homogeneousDistribution;
 
 	/** MPJ Rank of the processor. */
 	private int mpjMe;
@@ -64,11 +97,7 @@ public class MultipleDistributor extends Observable implements Runnable {
 	/** MPJ Size of the communicator. */
 	private int mpjSize;
 
-	private static int numberOfHosts;
-	private static int totalNumberOfThreads = 0;
-	private static int minProcs = BIG;
 	private static int maxProcs = 0;
-	private static float avgProcs;
 
 	/**
 	 * The number of models per processor. It will be necessary by the root
@@ -104,6 +133,7 @@ public class MultipleDistributor extends Observable implements Runnable {
 			PROCESSORS_I = DEFAULT_PROCESSORS_I;
 			PROCESSORS_UNIFORM = DEFAULT_PROCESSORS_UNIFORM;
 		}
+		ELASTIC_THREADS = ModelTestConfiguration.isElasticThreadsEnabled();
 	}
 
 	public MultipleDistributor(List<Model> models, RunPhymlHybrid caller,
@@ -116,101 +146,118 @@ public class MultipleDistributor extends Observable implements Runnable {
 		this.displs = new int[mpjSize];
 
 		if (ModelTest.HOSTS_TABLE != null) {
-			numberOfHosts = ModelTest.HOSTS_TABLE.size();
 			Enumeration<Integer> procsPerHost = ModelTest.HOSTS_TABLE
 					.elements();
 			while (procsPerHost.hasMoreElements()) {
 				int procs = procsPerHost.nextElement();
-				totalNumberOfThreads += procs;
-				if (procs < minProcs)
-					minProcs = procs;
 				if (procs > maxProcs)
 					maxProcs = procs;
 			}
-			homogeneousDistribution = (minProcs == maxProcs);
-			assumeHyperThreading = (maxProcs > 8);
-			avgProcs = totalNumberOfThreads / numberOfHosts;
+			/* calibrated thread counts already account for hyper-threading */
+			assumeHyperThreading = (maxProcs > 8)
+					&& !ModelTestConfiguration.isCalibrated();
 		} else {
-			homogeneousDistribution = true;
 			assumeHyperThreading = false;
-			avgProcs = 1;
 		}
 
+		costEstimator = new ModelCostEstimator(ApplicationOptions
+				.getInstance());
+		for (Model model : modelsToSend) {
+			modelsById.put(model.getId(), model);
+		}
 		Collections.sort(this.modelsToSend, new ModelComparator());
+		sortByPredictedTime();
+	}
+
+	/**
+	 * Sorts the models by decreasing predicted execution time, if the
+	 * runtime history has information for all of them, or by decreasing
+	 * estimated cost otherwise.
+	 */
+	private void sortByPredictedTime() {
+		final Map<Model, Double> predictedTimes = new HashMap<Model, Double>();
+		for (Model model : modelsToSend) {
+			long time = costEstimator.getPredictedTime(model,
+					getPEs(model, maxProcs > 0 ? maxProcs : BIG));
+			if (time < 0) {
+				predictedTimes.clear();
+				break;
+			}
+			predictedTimes.put(model, (double) time);
+		}
+		if (predictedTimes.isEmpty()) {
+			for (Model model : modelsToSend) {
+				predictedTimes.put(model, costEstimator.getCost(model));
+			}
+		}
+		Collections.sort(this.modelsToSend, new Comparator<Model>() {
+			public int compare(Model model1, Model model2) {
+				return predictedTimes.get(model2).compareTo(
+						predictedTimes.get(model1));
+			}
+		});
 	}
 
 	public void distribute(List<Model> models) throws InterruptedException {
+		ModelHandoff handoff = caller.rootHandoff;
 		itemsPerProc = new int[mpjSize];
-		Status requestStatus = null;
 		displs = new int[mpjSize];
-		int[] freePEs = new int[2];
-		boolean sended = true;
 
-		Request modelRequest = null;
 		while (!modelsToSend.isEmpty()) {
-			// check root processor
-			//
-			// This strategy is an easy way to avoid the problem of
-			// thread-safety
-			// in MPJ-Express. It works correctly, but it also causes to
-			// introduce
-			// coupling between this class and
-			// ImprovedDynamicDistributionStrategy,
-			// having to define two public attributes: rootModelRequest and
-			// rootModel.
-			//
-			if (caller.rootModelRequest && caller.availablePEs > 0) {
-				// if (caller.rootModel != null) {
-				// caller.setCheckpoint(modelSet);
-				// }
-				Model rootModel = getNextModel(caller.availablePEs,
-						caller.maxPEs);
+			Status requestStatus = awaitRequest(handoff);
+			if (requestStatus == null) {
+				// request of the root worker: it is kept pending until a
+				// model fits in its free PEs
+				int[] rootReports = new int[REQUEST_SIZE];
+				caller.takeCompletionReports(rootReports);
+				recordCompletions(mpjMe, rootReports);
+				int rootPEs = handoff.getAvailablePEs();
+				Model rootModel = rootPEs > 0 ? getNextModel(mpjMe, rootPEs,
+						caller.maxPEs) : null;
 				if (rootModel != null) {
-					caller.rootModel = rootModel;
-					caller.rootModelRequest = false;
+					int threads = getThreads(rootModel, rootPEs,
+							caller.maxPEs);
+					modelThreads.put(rootModel.getId(), threads);
+					handoff.serve(rootModel, threads);
 					itemsPerProc[mpjMe]++;
 				}
 			} else {
-				// getModel request
-				if (sended) {
-					modelRequest = MPI.COMM_WORLD.Irecv(freePEs, 0, 2, MPI.INT,
-							MPI.ANY_SOURCE, TAG_SEND_REQUEST);
-					// wait for request
-					sended = false;
+				int[] freePEs = receivedRequest;
+				int source = requestStatus.source;
+				recordCompletions(source, freePEs);
+				// fill the free PEs of the processor with a single message
+				List<Model> batch = new ArrayList<Model>();
+				int[] notification = new int[MAX_BATCH + 1];
+				int numPEs = freePEs[0];
+				int count = 0;
+				while (count < MAX_BATCH && numPEs > 0) {
+					Model model = getNextModel(source, numPEs, freePEs[1]);
+					if (model == null)
+						break;
+					int threads = getThreads(model, numPEs, freePEs[1]);
+					modelThreads.put(model.getId(), threads);
+					batch.add(model);
+					count++;
+					notification[count] = threads;
+					numPEs -= threads;
 				}
-				requestStatus = modelRequest.Test();
-				if (requestStatus != null) {
-					Request notifySend = MPI.COMM_WORLD.Isend(
-							new boolean[] { true }, 0, 1, MPI.BOOLEAN,
-							requestStatus.source, TAG_EXIST_MORE_MODELS);
-
-					// prepare model
-					Model[] modelToSend = new Model[1];
-
-					notifySend.Wait();
-
-					modelToSend[0] = getNextModel(freePEs[0], freePEs[1]);
-					Request modelSend = MPI.COMM_WORLD.Isend(modelToSend, 0, 1,
-							MPI.OBJECT, requestStatus.source, TAG_SEND_MODEL);
-
-					if (modelToSend[0] != null) {
-						// update structures
-						itemsPerProc[requestStatus.source]++;
-					}
 
+				// notify the number of models and their threads
+				notification[0] = count;
+				Request notifySend = MPI.COMM_WORLD.Isend(notification, 0,
+						notification.length, MPI.INT, source,
+						TAG_EXIST_MORE_MODELS);
+				notifySend.Wait();
+
+				if (count > 0) {
+					Object[] message = { ModelWireCodec.encode(0, batch) };
+					Request modelSend = MPI.COMM_WORLD.Isend(message, 0, 1,
+							MPI.OBJECT, source, TAG_SEND_MODEL);
+					// update structures
+					itemsPerProc[source] += count;
 					// wait for send
 					modelSend.Wait();
-					sended = true;
-
-					requestStatus = null;
-
-				}
-				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
 				}
-
 			}
 		}
 
@@ -221,31 +268,94 @@ public class MultipleDistributor extends Observable implements Runnable {
 
 		// finalize
 		// check root
-		while (!caller.rootModelRequest) {
-			try {
-				Thread.sleep(200);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-		caller.rootModel = null;
-		caller.rootModelRequest = false;
+		handoff.awaitPendingRequest();
+		handoff.serve(null, 1);
 
 		for (int i = 1; i < mpjSize; i++) {
-			// getModel request
-			modelRequest = MPI.COMM_WORLD.Irecv(freePEs, 0, 2, MPI.INT,
-					MPI.ANY_SOURCE, TAG_SEND_REQUEST);
 			// wait for request
-			requestStatus = modelRequest.Wait();
-			// send null model
-			Request notifySend = MPI.COMM_WORLD.Isend(new boolean[] { false },
-					0, 1, MPI.BOOLEAN, requestStatus.source,
+			if (modelRequest == null)
+				postRequest();
+			Status requestStatus = modelRequest.Wait();
+			modelRequest = null;
+			// notify that there are no more models
+			int[] notification = new int[MAX_BATCH + 1];
+			notification[0] = -1;
+			Request notifySend = MPI.COMM_WORLD.Isend(notification, 0,
+					notification.length, MPI.INT, requestStatus.source,
 					TAG_EXIST_MORE_MODELS);
 			notifySend.Wait();
 
 		}
 	}
 
+	/**
+	 * Waits for a model request of the root worker or of another processor.
+	 * 
+	 * MPJ Express is not thread-safe, so the root worker requests its models
+	 * through the handoff, and the MPJ request is tested between short waits
+	 * on it. Thus, requests of the root worker, or changes in its free PEs,
+	 * are handled at once.
+	 * 
+	 * @param handoff
+	 *            the handoff with the root worker
+	 * 
+	 * @return the status of the MPJ request, or null if the root worker
+	 *         requested a model
+	 */
+	private Status awaitRequest(ModelHandoff handoff)
+			throws InterruptedException {
+		if (mpjSize == 1) {
+			handoff.awaitRequest(-1);
+			return null;
+		}
+		if (modelRequest == null) {
+			postRequest();
+		}
+		long timeout = 0;
+		while (!handoff.awaitRequest(timeout)) {
+			Status requestStatus = modelRequest.Test();
+			if (requestStatus != null) {
+				modelRequest = null;
+				return requestStatus;
+			}
+			timeout = MPJ_TEST_INTERVAL;
+		}
+		return null;
+	}
+
+	private void postRequest() {
+		receivedRequest = new int[REQUEST_SIZE];
+		modelRequest = MPI.COMM_WORLD.Irecv(receivedRequest, 0,
+				REQUEST_SIZE, MPI.INT, MPI.ANY_SOURCE, TAG_SEND_REQUEST);
+	}
+
+	/**
+	 * Updates the speed of a processor with the models it finished
+	 * 
+	 * @param processor
+	 *            the MPJ rank of the processor
+	 * @param request
+	 *            the request of the processor
+	 */
+	private void recordCompletions(int processor, int[] request) {
+		int count = Math.min(request[2], MAX_BATCH);
+		for (int i = 0; i < count; i++) {
+			Model model = modelsById.get(request[3 + 2 * i]);
+			Integer threads = modelThreads.remove(request[3 + 2 * i]);
+			if (model != null && threads != null) {
+				throughput.record(processor, costEstimator.getCost(model),
+						request[4 + 2 * i], threads);
+			}
+		}
+	}
+
+	/**
+	 * Gets the measured speed of the processors
+	 */
+	public HostThroughputTracker getThroughput() {
+		return throughput;
+	}
+
 	public int[] getItemsPerProc() {
 		return itemsPerProc;
 	}
@@ -264,29 +374,71 @@ public class MultipleDistributor extends Observable implements Runnable {
 		}
 	}
 
-	private Model getNextModel(int numPEs, int maxAvailableThreads) {
-		Model nextModel = null;
-		for (Model model : modelsToSend) {
-			if (getPEs(model, maxAvailableThreads) <= numPEs) {
-				// try to exclude +G models
-				if (homogeneousDistribution || maxAvailableThreads >= avgProcs) {
-					nextModel = model;
-					break;
-				}
-			}
+	/**
+	 * Gets the next model for a processor. The pending models are sorted by
+	 * decreasing cost: the fastest processors take the most expensive ones,
+	 * and slower processors take models further down the list, in
+	 * proportion to their speed relative to the fastest processor.
+	 * 
+	 * @param processor
+	 *            the MPJ rank of the processor
+	 * @param numPEs
+	 *            the number of free PEs in the processor
+	 * @param maxAvailableThreads
+	 *            the number of PEs in the processor
+	 * 
+	 * @return the next model, or null if no model fits in the free PEs
+	 */
+	private Model getNextModel(int processor, int numPEs,
+			int maxAvailableThreads) {
+		/* positions of the models that fit in the free PEs */
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int i = 0; i < modelsToSend.size(); i++) {
+			if (getPEs(modelsToSend.get(i), maxAvailableThreads) <= numPEs)
+				candidates.add(i);
 		}
-		if (nextModel == null && !homogeneousDistribution
-				&& maxAvailableThreads < avgProcs && !modelsToSend.isEmpty()) {
-			// find another one
-			for (Model model : modelsToSend) {
-				if (getPEs(model, maxAvailableThreads) <= numPEs) {
-					nextModel = model;
-					break;
-				}
-			}
+		if (candidates.isEmpty())
+			return null;
+
+		// the rate of the processor for the most expensive model, relative
+		// to the rate of the fastest processor with the most PEs
+		Model first = modelsToSend.get(candidates.get(0));
+		double rate = throughput.getSpeed(processor)
+				* getPEs(first, maxAvailableThreads);
+		double maxRate = throughput.getMaxSpeed()
+				* getPEs(first, Math.max(maxProcs, maxAvailableThreads));
+		double relativeRate = Math.min(rate / maxRate, 1.0);
+		int position = 0;
+		if (relativeRate < SPEED_TOLERANCE) {
+			position = (int) Math.round((1.0 - relativeRate)
+					* (candidates.size() - 1));
+		}
+		// removed by position, as different models can be equal
+		return modelsToSend.remove((int) candidates.get(position));
+	}
+
+	/**
+	 * Gets the number of threads for a model. In elastic mode, when there are
+	 * not enough pending models for filling every processor, the free PEs of
+	 * the requester are split among the models it will probably receive.
+	 * 
+	 * @param model
+	 *            the model to optimize
+	 * @param numPEs
+	 *            the number of free PEs in the requester
+	 * @param maxAvailableThreads
+	 *            the number of PEs in the requester
+	 * 
+	 * @return the number of threads for the model
+	 */
+	private int getThreads(Model model, int numPEs, int maxAvailableThreads) {
+		int threads = getPEs(model, maxAvailableThreads);
+		if (ELASTIC_THREADS) {
+			int pendingModels = modelsToSend.size() + 1;
+			int modelsPerProc = (pendingModels + mpjSize - 1) / mpjSize;
+			threads = Math.max(threads, numPEs / modelsPerProc);
 		}
-		modelsToSend.remove(nextModel);
-		return nextModel;
+		return threads;
 	}
 
 	public static int getPEs(Model model, int maxAvailableThreads) {
@@ -18,101 +18,246 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package es.uvigo.darwin.jmodeltest.exe;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import es.uvigo.darwin.jmodeltest.model.Model;
 import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
 
+/**
+ * Executes model optimizations concurrently in the PEs of a node.
+ *
+ * Each model holds its PEs from its submission until its optimization
+ * finishes, successfully or not. At that moment the PEs are freed, the
+ * threads waiting for free PEs are woken up, and the completed() hook is
+ * called, so a new model can be requested at once.
+ *
+ * The number of busy PEs is recorded over time, for reporting the core
+ * utilization of the node.
+ */
 public class PhymlParallelModel extends Observable implements Observer {
 
-	    /** The runtime **/
-	    private Runtime runtime = Runtime.getRuntime();
-	    /** The size of parallel tasks **/
-	    private int maxNumberOfTasks;
-	    /** The list of model estimators **/
-	    private List<PhymlSingleModel> estimatorList;
-	    /** The pool of threads **/
-	    private ExecutorService threadPool;
-	    /** Collection of callable objects (tasks) **/
-	    private Collection<Callable<Object>> c = new ArrayList<Callable<Object>>();
-
-	    /**
-	     * Instantiates a new PhymlParallelModel with no models to optimize. 
-	     * The size of the thread pool is equal to the number of available cores in the machine.
-	     * 
-	     * @param alignment the common alignment of the models
-	     */
-	    public PhymlParallelModel() {
-
-	        this(-1);
-
-	    }
-
-	    /**
-	     * Instantiates a new PhymlParallelModel with no models to optimize and
-	     * a fixed size of the thread pool
-	     *
-	     * @param availableThreads the size of the thread pool 
-	     * @param alignment the common alignment of the models
-	     */
-	    public PhymlParallelModel(int availableThreads) {
-
-	        if (availableThreads < 0) {
-	            availableThreads = runtime.availableProcessors();
-	        }
-	        this.maxNumberOfTasks = availableThreads;
-	        this.estimatorList = new ArrayList<PhymlSingleModel>(maxNumberOfTasks);
-	        this.threadPool = Executors.newFixedThreadPool(maxNumberOfTasks);
-	    }
-
-
-	    /**
-	     * Executes the model optimization
-	     * 
-	     * @param estimator the model estimator to execute
-	     * 
-	     * @return if succesfully added the task
-	     */
-	    public boolean execute(PhymlSingleModel estimator) {
-	        estimator.addObserver(this);
-
-	        boolean added = estimatorList.add(estimator);
-	        c.add(Executors.callable(estimator));
-
-			threadPool.execute(estimator);
-
-	        return added;
-	    }
-
-	    protected void notifyObservers(int type, int value, Model model,
-				String message) {
-			setChanged();
-			notifyObservers(new ProgressInfo(type, value, model, message));
+	/** The runtime **/
+	private Runtime runtime = Runtime.getRuntime();
+	/** The number of PEs of the node **/
+	private int maxNumberOfTasks;
+	/** The pool of threads **/
+	private ExecutorService threadPool;
+
+	/* PE accounting, guarded by this object */
+	private int availablePEs;
+	private int runningTasks = 0;
+	/** The number of optimizations that freed their PEs */
+	private long releases = 0;
+	/** Times (ms) when the number of busy PEs changed, and the new value */
+	private List<long[]> busyHistory = new ArrayList<long[]>();
+
+	/**
+	 * Instantiates a new PhymlParallelModel with no models to optimize. The
+	 * number of PEs is equal to the number of available cores in the
+	 * machine.
+	 */
+	public PhymlParallelModel() {
+
+		this(-1);
+
+	}
+
+	/**
+	 * Instantiates a new PhymlParallelModel with no models to optimize and
+	 * a fixed number of PEs
+	 *
+	 * @param availableThreads
+	 *            the number of PEs
+	 */
+	public PhymlParallelModel(int availableThreads) {
+
+		if (availableThreads < 0) {
+			availableThreads = runtime.availableProcessors();
 		}
+		this.maxNumberOfTasks = availableThreads;
+		this.availablePEs = availableThreads;
+		/* a model uses at least one PE, so this many threads are enough */
+		this.threadPool = Executors.newFixedThreadPool(Math.max(
+				maxNumberOfTasks, 1));
+	}
+
+	/**
+	 * Executes the model optimization
+	 * 
+	 * @param estimator
+	 *            the model estimator to execute
+	 * @param threads
+	 *            the number of PEs used by the optimization
+	 * 
+	 * @return if succesfully added the task
+	 */
+	public boolean execute(final PhymlSingleModel estimator, final int threads) {
+		estimator.addObserver(this);
+		synchronized (this) {
+			availablePEs -= threads;
+			runningTasks++;
+			recordBusyPEs();
+		}
+		threadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					estimator.run();
+				} finally {
+					release(estimator, threads);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Called when an optimization finishes and its PEs are free. By default,
+	 * it does nothing.
+	 * 
+	 * @param estimator
+	 *            the finished model estimator
+	 * @param threads
+	 *            the number of PEs it used
+	 */
+	protected void completed(PhymlSingleModel estimator, int threads) {
+	}
+
+	private void release(PhymlSingleModel estimator, int threads) {
+		synchronized (this) {
+			availablePEs += threads;
+			runningTasks--;
+			releases++;
+			recordBusyPEs();
+			notifyAll();
+		}
+		completed(estimator, threads);
+	}
+
+	/**
+	 * Gets the number of free PEs
+	 */
+	public synchronized int getAvailablePEs() {
+		return availablePEs;
+	}
 
-		@Override
-		public void update(Observable o, Object arg) {
-			setChanged();
-			notifyObservers(arg);
+	/**
+	 * Waits until some PE is free
+	 * 
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized void awaitAvailablePEs() throws InterruptedException {
+		while (availablePEs <= 0) {
+			wait();
 		}
+	}
+
+	/**
+	 * Gets the number of optimizations that freed their PEs so far
+	 */
+	public synchronized long getReleases() {
+		return releases;
+	}
+
+	/**
+	 * Waits until some optimization frees its PEs after the given number of
+	 * releases (see getReleases), or no optimization is running
+	 * 
+	 * @param since
+	 *            the number of releases already seen
+	 * 
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized void awaitRelease(long since)
+			throws InterruptedException {
+		while (releases == since && runningTasks > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * Waits until every submitted optimization finishes, and stops the
+	 * threads
+	 * 
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		synchronized (this) {
+			while (runningTasks > 0) {
+				wait();
+			}
+		}
+		threadPool.shutdown();
+	}
+
+	/**
+	 * Checks if exist more tasks in the task queue
+	 * 
+	 * @return true, if exist more tasks to execute
+	 */
+	public synchronized boolean hasMoreTasks() {
+		return runningTasks > 0;
+	}
+
+	private void recordBusyPEs() {
+		busyHistory.add(new long[] { System.currentTimeMillis(),
+				maxNumberOfTasks - availablePEs });
+	}
+
+	/**
+	 * Gets the core utilization of the node, from the first submitted
+	 * optimization until now
+	 * 
+	 * @param intervals
+	 *            the number of intervals of the timeline
+	 * 
+	 * @return the mean utilization, followed by the utilization in each
+	 *         interval, as fractions of the PEs of the node; or null if no
+	 *         optimization was submitted
+	 */
+	public synchronized double[] getUtilization(int intervals) {
+		if (busyHistory.isEmpty() || maxNumberOfTasks <= 0)
+			return null;
+		long start = busyHistory.get(0)[0];
+		long end = Math.max(System.currentTimeMillis(), start + 1);
+		double length = (double) (end - start) / intervals;
+		double[] utilization = new double[intervals + 1];
+		for (int i = 0; i < busyHistory.size(); i++) {
+			long[] change = busyHistory.get(i);
+			long until = i + 1 < busyHistory.size() ? busyHistory.get(i + 1)[0]
+					: end;
+			// distribute the busy PE time among the intervals it overlaps
+			for (int k = 0; k < intervals; k++) {
+				double from = Math.max(change[0], start + k * length);
+				double to = Math.min(until, start + (k + 1) * length);
+				if (to > from) {
+					utilization[k + 1] += change[1] * (to - from);
+				}
+			}
+		}
+		for (int k = 1; k <= intervals; k++) {
+			utilization[0] += utilization[k];
+			utilization[k] /= length * maxNumberOfTasks;
+		}
+		utilization[0] /= (double) (end - start) * maxNumberOfTasks;
+		return utilization;
+	}
+
+	protected void notifyObservers(int type, int value, Model model,
+			String message) {
+		setChanged();
+		notifyObservers(new ProgressInfo(type, value, model, message));
+	}
 
-	    /**
-	     * Checks if exist more tasks in the task queue
-	     * 
-	     * @return true, if exist more tasks to execute
-	     */
-	    public boolean hasMoreTasks() {
-	        for (PhymlSingleModel estimator : estimatorList) {
-	            if (estimator.getModel().getTree() == null) {
-	                return true;
-	            }
-	        }
-	        return false;
-	    }
+	@Override
+	public void update(Observable o, Object arg) {
+		setChanged();
+		notifyObservers(arg);
+	}
 }
@@ -0,0 +1,300 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import pal.tree.TreeParseException;
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.model.Model;
+import es.uvigo.darwin.jmodeltest.utilities.Utilities;
+
+/**
+ * Single-pass parser of PhyML results.
+ *
+ * Lines are fed as they are produced by the PhyML output streams, so the
+ * results are available as soon as the process finishes. The statistics
+ * and tree files are only read for the parts of the results that were not
+ * found in the streams, using the same parser. Released PhyML versions do
+ * not print the parameter estimates to the standard output, so with them
+ * the statistics file is always read. The number of site patterns
+ * reported by PhyML is also detected here.
+ *
+ * @author Diego Darriba
+ */
+public class PhymlResultParser {
+
+	private enum State {
+		NONE, GAMMA_CATEGORIES, GAMMA_SHAPE, FREQUENCIES, RATES
+	}
+
+	private boolean ignoreGaps;
+
+	private State state = State.NONE;
+	private int index;
+
+	private boolean statsFound = false;
+	private double lnL = Double.NaN;
+	private double unconstrainedLnL = Double.NaN;
+	private int numGammaCat = -1;
+	private double shape = Double.NaN;
+	private double pinv = Double.NaN;
+	private double[] frequencies;
+	private double[] rates;
+	private String tree;
+
+	public PhymlResultParser(boolean ignoreGaps) {
+		this.ignoreGaps = ignoreGaps;
+	}
+
+	/**
+	 * Parses a line of PhyML output
+	 *
+	 * @param line
+	 *            the line
+	 */
+	public synchronized void parseLine(String line) {
+		if (line == null)
+			return;
+		try {
+			parse(line);
+		} catch (NumberFormatException e) {
+			// not a result line, the statistics remain incomplete
+			state = State.NONE;
+		}
+	}
+
+	private void parse(String line) {
+		switch (state) {
+		case GAMMA_CATEGORIES:
+			numGammaCat = Integer.parseInt(Utilities.lastToken(line));
+			state = State.GAMMA_SHAPE;
+			return;
+		case GAMMA_SHAPE:
+			shape = Double.parseDouble(Utilities.lastToken(line));
+			state = State.NONE;
+			return;
+		case FREQUENCIES:
+			if (line.trim().length() == 0)
+				return;
+			frequencies[index++] = Double.parseDouble(Utilities
+					.lastToken(line));
+			if (index == frequencies.length)
+				state = State.NONE;
+			return;
+		case RATES:
+			if (line.trim().length() == 0)
+				return;
+			rates[index++] = Double.parseDouble(Utilities.lastToken(line));
+			if (index == rates.length)
+				state = State.NONE;
+			return;
+		default:
+			break;
+		}
+
+		if (line.length() == 0)
+			return;
+		String trimmed = line.trim();
+		if (line.contains("patterns found")) {
+			updateNumPatterns(line);
+		} else if (line.startsWith(". Log-likelihood")) {
+			lnL = (-1.0) * Double.parseDouble(Utilities.lastToken(line));
+			statsFound = true;
+		} else if (line.contains("Unconstrained likelihood")) {
+			unconstrainedLnL = (-1.0)
+					* Double.parseDouble(Utilities.lastToken(line));
+		} else if (ignoreGaps) {
+			/* only likelihoods are needed */
+		} else if (line.startsWith(". Discrete gamma model")) {
+			if (Utilities.lastToken(line).equals("Yes")) {
+				state = State.GAMMA_CATEGORIES;
+			}
+		} else if (line.startsWith(". Nucleotides frequencies")) {
+			frequencies = new double[4];
+			index = 0;
+			state = State.FREQUENCIES;
+		} else if (line.startsWith(". Proportion of invariant")) {
+			pinv = Double.parseDouble(Utilities.lastToken(line));
+		} else if (line.startsWith(". GTR relative rate parameters")) {
+			rates = new double[6];
+			index = 0;
+			state = State.RATES;
+		} else if (trimmed.startsWith("(") && trimmed.endsWith(";")) {
+			tree = trimmed;
+		}
+	}
+
+	/**
+	 * Parses a line of the PhyML tree file
+	 *
+	 * @param line
+	 *            the first line of the tree file
+	 */
+	public synchronized void parseTree(String line) {
+		tree = line;
+	}
+
+	/**
+	 * Checks whether every statistic of the optimization needed by a model
+	 * was found: the likelihood and, unless gaps are ignored, the
+	 * frequencies, the rate parameters, the proportion of invariable sites
+	 * (+I) and the gamma categories and shape (+G). Released PhyML versions
+	 * print them only to the statistics file.
+	 *
+	 * @param model
+	 *            the optimized model
+	 */
+	public synchronized boolean hasStatistics(Model model) {
+		if (!statsFound || state != State.NONE || Double.isNaN(lnL))
+			return false;
+		if (ignoreGaps)
+			return true;
+		if (frequencies == null || rates == null)
+			return false;
+		if (model.ispI() && Double.isNaN(pinv))
+			return false;
+		if (model.ispG() && (numGammaCat <= 0 || Double.isNaN(shape)))
+			return false;
+		return true;
+	}
+
+	/**
+	 * Checks whether the optimized tree was found
+	 */
+	public synchronized boolean hasTree() {
+		return tree != null;
+	}
+
+	/**
+	 * Discards the partial statistics, before parsing them from another
+	 * source
+	 */
+	public synchronized void resetStatistics() {
+		state = State.NONE;
+		statsFound = false;
+		lnL = unconstrainedLnL = shape = pinv = Double.NaN;
+		numGammaCat = -1;
+		frequencies = rates = null;
+	}
+
+	/**
+	 * Sets the parsed results into the model
+	 *
+	 * @param model
+	 *            the optimized model
+	 * @param options
+	 *            the application options
+	 *
+	 * @throws TreeParseException
+	 *             if the optimized tree is not valid
+	 */
+	public synchronized void apply(Model model, ApplicationOptions options)
+			throws TreeParseException {
+		if (ignoreGaps) {
+			if (!Double.isNaN(lnL))
+				model.setLnLIgnoringGaps(lnL);
+			if (!Double.isNaN(unconstrainedLnL)) {
+				model.setUnconstrainedLnL(unconstrainedLnL);
+				if (Math.abs(options.getUnconstrainedLnL() - unconstrainedLnL) > 1e-10) {
+					// uLK has changed!!!
+					// temporary uLK is updated
+					options.setUnconstrainedLnL(unconstrainedLnL);
+				}
+			}
+		} else {
+			if (!Double.isNaN(lnL))
+				model.setLnL(lnL);
+			if (numGammaCat > 0)
+				model.setNumGammaCat(numGammaCat);
+			if (!Double.isNaN(shape))
+				model.setShape(shape);
+			if (frequencies != null) {
+				model.setfA(frequencies[0]);
+				model.setfC(frequencies[1]);
+				model.setfG(frequencies[2]);
+				model.setfT(frequencies[3]);
+			}
+			if (!Double.isNaN(pinv))
+				model.setPinv(pinv);
+			if (!Double.isNaN(unconstrainedLnL)) {
+				if (!options.isAmbiguous()) {
+					model.setUnconstrainedLnL(unconstrainedLnL);
+				} else {
+					model.setUnconstrainedLnL(0.0d);
+				}
+				if (Math.abs(options.getUnconstrainedLnL()) <= 1e-10) {
+					options.setUnconstrainedLnL(unconstrainedLnL);
+				} else {
+					if (Math.abs(options.getUnconstrainedLnL()
+							- unconstrainedLnL) > 1e-10) {
+						// uLK has changed!!!
+						// temporary uLK is updated
+						options.setUnconstrainedLnL(unconstrainedLnL);
+					}
+				}
+			}
+			if (rates != null) {
+				model.setRa(rates[0]);
+				model.setRb(rates[1]);
+				model.setRc(rates[2]);
+				model.setRd(rates[3]);
+				model.setRe(rates[4]);
+				model.setRf(rates[5]);
+				// with custom models phyml does not provide a ti/tv, so we
+				// calculate it from the rate parameters
+				// note this is kappa and we need to transform it to ti/tv
+				if (model.ispT()) {
+					model.setKappa(model.getRb());
+					model.setTitv(model.getKappa()
+							* (model.getfA() * model.getfG() + model.getfC()
+									* model.getfT())
+							/ ((model.getfA() + model.getfG()) * (model
+									.getfC() + model.getfT())));
+				}
+			}
+		}
+		if (tree != null) {
+			model.setTreeString(tree);
+		}
+	}
+
+	/**
+	 * Updates the number of site patterns from a "patterns found" line of
+	 * the PhyML output
+	 *
+	 * @param line
+	 *            the output line
+	 */
+	public static void updateNumPatterns(String line) {
+		try {
+			int numPatterns = Integer.parseInt(Utilities
+					.firstNumericToken(line));
+			ApplicationOptions options = ApplicationOptions.getInstance();
+			if (Math.abs(options.getNumPatterns()) == 0) {
+				options.setNumPatterns(numPatterns);
+			} else {
+				if (Math.abs(options.getNumPatterns() - numPatterns) > 0) {
+					// number of patterns has changed!!!
+					// temporary number of patterns is updated
+					options.setNumPatterns(numPatterns);
+				}
+			}
+		} catch (NumberFormatException nfe) {
+			// ignore
+		}
+	}
+}
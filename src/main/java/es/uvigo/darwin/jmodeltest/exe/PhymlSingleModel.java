@@ -20,6 +20,7 @@ package es.uvigo.darwin.jmodeltest.exe;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Observable;
 
@@ -45,13 +46,42 @@ public class PhymlSingleModel extends Observable implements Runnable {
 	private boolean justGetJCTree = false;
 	private boolean ignoreGaps = false;
 	private boolean interrupted = false;
+	private volatile boolean cancelled = false;
+	private volatile Process process;
 	private ApplicationOptions options;
 	private int numberOfThreads = -1;
+	/** PhyML threads of the running process, within the CPU token budget */
+	private int launchThreads = -1;
+	/** memory reserved for the running process */
+	private MemoryAdmissionController.Admission admission;
+	private int rngSeed;
+	private PhymlResultParser resultParser;
+	/** whether this is a duplicate execution of a straggling model */
+	private boolean hedge = false;
+	/** results of a duplicate execution that finished first */
+	private volatile Model adoptedModel;
+	/** whether the results to keep are already decided */
+	private boolean resultsResolved = false;
+	private final Object resultsLock = new Object();
+
+	/** suffix of the run id of duplicate executions */
+	private static final String HEDGE_SUFFIX = ".hedge";
+
+	/** whether PhyML appends a ".txt" suffix to the output files */
+	private static volatile Boolean txtSuffix = null;
 	
 	public Model getModel() {
 		return model;
 	}
 
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
 	public PhymlSingleModel(Model model, int index, boolean justGetJCTree,
 			boolean ignoreGaps, ApplicationOptions options) {
 		this.options = options;
@@ -59,6 +89,7 @@ public class PhymlSingleModel extends Observable implements Runnable {
 		this.index = index;
 		this.justGetJCTree = justGetJCTree;
 		this.ignoreGaps = ignoreGaps;
+		this.rngSeed = options.getRngSeed();
 		
 		this.phymlStatFileName = options.getAlignmentFile().getAbsolutePath()
 				+ RunPhyml.PHYML_STATS_SUFFIX + model.getName();
@@ -72,24 +103,191 @@ public class PhymlSingleModel extends Observable implements Runnable {
 		this.numberOfThreads = numberOfThreads;
 	}
 
+	/**
+	 * Checks whether the model is already optimized (e.g., restored from a
+	 * checkpoint), so that PhyML will not be executed
+	 * 
+	 * @return true, if the model does not need to be optimized
+	 */
+	public boolean isOptimized() {
+		return model.getLnL() >= 1e-5 && !ignoreGaps;
+	}
+
+	/**
+	 * Cancels the optimization. If PhyML is running, the process is
+	 * destroyed and its results are discarded, so the model remains
+	 * unoptimized.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Process runningProcess = process;
+		if (runningProcess != null) {
+			runningProcess.destroy();
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Checks whether the results of the optimization depend on the random
+	 * number generator seed, i.e., whether PhyML searches the ML tree. With
+	 * fixed topologies (-o lr) another seed would give the same results.
+	 * 
+	 * @return true, if the tree topology is optimized
+	 */
+	public boolean isSeedDependent() {
+		return !justGetJCTree && !options.userTopologyExists
+				&& !options.fixedTopology && options.optimizeMLTopology;
+	}
+
+	/**
+	 * Creates a duplicate execution of this optimization, with a different
+	 * random number generator seed. The duplicate optimizes a copy of the
+	 * model, whose results can be adopted by this one.
+	 * 
+	 * @param attempt
+	 *            the number of the duplicate, starting at 1
+	 * 
+	 * @return the duplicate execution
+	 */
+	public PhymlSingleModel createHedge(int attempt) {
+		Model copy = new Model(model.getId(), model.getName() + HEDGE_SUFFIX
+				+ attempt, model.getPartition(), model.getK(), model.ispF(),
+				model.ispT(), model.ispV(), model.ispR(), model.ispI(),
+				model.ispG(), model.getNumTi(), model.getNumTv());
+		PhymlSingleModel duplicate = new PhymlSingleModel(copy, index,
+				justGetJCTree, ignoreGaps, options);
+		duplicate.numberOfThreads = numberOfThreads;
+		duplicate.rngSeed = rngSeed + attempt;
+		duplicate.hedge = true;
+		return duplicate;
+	}
+
+	/**
+	 * Takes the results of a duplicate execution that finished first. If
+	 * PhyML is running, the process is destroyed and this optimization
+	 * completes with the duplicate results.
+	 * 
+	 * @param duplicate
+	 *            the finished duplicate execution
+	 * 
+	 * @return true, if the duplicate had valid results and this optimization
+	 *         had not kept its own results yet
+	 */
+	public boolean adopt(PhymlSingleModel duplicate) {
+		Model result = duplicate.getModel();
+		if (duplicate.isCancelled()
+				|| (ignoreGaps ? result.getLnLIgnoringGaps() : result.getLnL()) < 1e-5
+				|| result.getTreeString() == null) {
+			return false;
+		}
+		synchronized (resultsLock) {
+			if (resultsResolved || cancelled) {
+				return false;
+			}
+			resultsResolved = true;
+			adoptedModel = result;
+		}
+		ModelTest.getMainConsole().println(
+				"[Scheduler] " + model.getName()
+						+ ": kept the results of the duplicate execution with seed "
+						+ duplicate.rngSeed + " (instead of seed " + rngSeed
+						+ ")");
+		Process runningProcess = process;
+		if (runningProcess != null) {
+			runningProcess.destroy();
+		}
+		return true;
+	}
+
 	public boolean compute() {
+		if (cancelled)
+			return true;
 		notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_INIT, index,
 				model, null);
-		if (model.getLnL() < 1e-5 || ignoreGaps) {
+		if (!isOptimized()) {
 			// run phyml
 			startTime = System.currentTimeMillis();
 
 			commandLine = writePhyml3CommandLine(model, justGetJCTree, options,
-					ignoreGaps, numberOfThreads);
-			executeCommandLine();
-			
-			if (!interrupted) {
-				parsePhyml3Files(model);
+					ignoreGaps, numberOfThreads, rngSeed);
+
+			// look for a previous execution in the result cache
+			ResultCache cache = ResultCache.getInstance();
+			String cacheKey = null;
+			if (cache != null && !hedge) {
+				try {
+					cacheKey = cache.getKey(commandLine, options);
+				} catch (IOException e) {
+					cacheKey = null;
+				}
+			}
+			boolean cached = cacheKey != null
+					&& cache.load(cacheKey, model, ignoreGaps, options);
+			boolean adopted = false;
+
+			if (cached) {
+				keepOwnResults();
+			} else {
+				if (adoptedModel == null) {
+					MemoryAdmissionController memory = MemoryAdmissionController
+							.getInstance();
+					CpuTokenManager tokenManager = CpuTokenManager.getInstance();
+					int tokens = 0;
+					try {
+						if (memory != null) {
+							admission = memory.admit(MemoryAdmissionController
+									.estimateMemory(model, options));
+						}
+						tokens = tokenManager.acquire(numberOfThreads);
+						launchThreads = numberOfThreads;
+						if (numberOfThreads > 0 && tokens < numberOfThreads) {
+							launchThreads = tokens;
+							commandLine = writePhyml3CommandLine(model,
+									justGetJCTree, options, ignoreGaps,
+									launchThreads, rngSeed);
+						}
+						executeCommandLine();
+					} catch (InterruptedException e) {
+						notifyObservers(ProgressInfo.INTERRUPTED, index, model,
+								null);
+						interrupted = true;
+					} finally {
+						tokenManager.release(tokens);
+						if (admission != null) {
+							memory.release(admission);
+							admission = null;
+						}
+					}
+				}
+
+				if (cancelled) {
+					/* discard the results, and release the started fit */
+					notifyObservers(ProgressInfo.SINGLE_OPTIMIZATION_CANCELLED,
+							index, model, null);
+					return true;
+				}
+				adopted = !keepOwnResults();
+				if (adopted) {
+					adoptResults();
+				} else if (!interrupted) {
+					parsePhyml3Files(model);
+					if (cacheKey != null) {
+						cache.store(cacheKey, model, ignoreGaps, options);
+					}
+				}
 			}
 
 			endTime = System.currentTimeMillis();
 
 			model.setComputationTime(endTime - startTime);
+			if (!cached && !interrupted && !justGetJCTree && !ignoreGaps
+					&& !hedge && !adopted) {
+				RuntimeHistory.getInstance().record(model, options,
+						launchThreads, endTime - startTime);
+			}
 		}
 		// completed
 		if (!interrupted) {
@@ -107,6 +305,40 @@ public class PhymlSingleModel extends Observable implements Runnable {
 		return !interrupted;
 	}
 
+	/**
+	 * Decides whether this optimization keeps its own results, unless a
+	 * duplicate execution was already adopted. Once decided, later
+	 * duplicates are not adopted.
+	 * 
+	 * @return true, if this optimization keeps its own results
+	 */
+	private boolean keepOwnResults() {
+		synchronized (resultsLock) {
+			resultsResolved = true;
+			return adoptedModel == null;
+		}
+	}
+
+	/**
+	 * Sets the results of the adopted duplicate execution into the model, and
+	 * removes any output of the killed process
+	 */
+	private void adoptResults() {
+		Model result = adoptedModel;
+		if (ignoreGaps) {
+			model.setLnLIgnoringGaps(result.getLnLIgnoringGaps());
+			model.setUnconstrainedLnL(result.getUnconstrainedLnL());
+		} else {
+			model.update(result);
+		}
+		interrupted = false;
+		resultParser = null;
+		Utilities.deleteFile(phymlStatFileName);
+		Utilities.deleteFile(phymlTreeFileName);
+		Utilities.deleteFile(phymlStatFileName + ".txt");
+		Utilities.deleteFile(phymlTreeFileName + ".txt");
+	}
+
 	@Override
 	public void run() {
 		compute();
@@ -121,6 +353,13 @@ public class PhymlSingleModel extends Observable implements Runnable {
 	public static String writePhyml3CommandLine(Model currentModel,
 			boolean justGetJCtree, ApplicationOptions options,
 			boolean ignoreGaps, int numberOfThreads) {
+		return writePhyml3CommandLine(currentModel, justGetJCtree, options,
+				ignoreGaps, numberOfThreads, options.getRngSeed());
+	}
+
+	public static String writePhyml3CommandLine(Model currentModel,
+			boolean justGetJCtree, ApplicationOptions options,
+			boolean ignoreGaps, int numberOfThreads, int rngSeed) {
 
 		StringBuilder sb = new StringBuilder();
 
@@ -171,7 +410,7 @@ public class PhymlSingleModel extends Observable implements Runnable {
 		sb.append(" --no_memory_check");
 
     // set RNG seed
-    sb.append(" --r_seed ").append(options.getRngSeed());
+    sb.append(" --r_seed ").append(rngSeed);
 
 		/*
 		 * params=tlr: tree topology (t), branch length (l) and substitution
@@ -218,6 +457,9 @@ public class PhymlSingleModel extends Observable implements Runnable {
 	private void executeCommandLine() {
 		String[] executable = new String[1];
 		boolean printLog = options.getLogFile() != null;
+		AffinityManager affinity = AffinityManager.getInstance();
+		AffinityManager.Placement placement = null;
+		long launchTime = 0;
 		try {
 			if (!RunPhyml.isPhymlGlobal()) {
 				if (!RunPhyml.phymlBinary.exists()) {
@@ -237,55 +479,71 @@ public class PhymlSingleModel extends Observable implements Runnable {
 
 			// get process and execute command line
 			Runtime rt = Runtime.getRuntime();
-			Process proc = rt.exec(cmd, null, RunPhyml.PHYML_PATH.equals("") ? null
-					: new File(RunPhyml.PHYML_PATH));
+			ScratchWorkspace workspace = ScratchWorkspace.getInstance();
+			File workingDir;
+			if (workspace != null) {
+				workingDir = workspace.getDirectory();
+			} else {
+				workingDir = RunPhyml.PHYML_PATH.equals("") ? null
+						: new File(RunPhyml.PHYML_PATH);
+			}
+			if (affinity != null) {
+				placement = affinity.acquire(launchThreads);
+				cmd = affinity.bind(placement, cmd);
+			}
+			launchTime = System.currentTimeMillis();
+			Process proc = rt.exec(cmd, null, workingDir);
 			ProcessManager.getInstance().registerProcess(proc);
+			process = proc;
+			if (admission != null) {
+				admission.setProcess(proc);
+			}
+			if (cancelled || adoptedModel != null) {
+				proc.destroy();
+			}
 
-			// any error message?
-			StreamGobbler errorGobbler = new StreamGobbler(
-					proc.getErrorStream(), "ERROR", System.err, ModelTest.getPhymlConsole());
-			// any output?
-			FileOutputStream logFile = new FileOutputStream(
-					options.getLogFile(), true);
-			StreamGobbler outputGobbler = null;
-			
-			if (printLog)
-				outputGobbler = new StreamGobbler(
-					proc.getInputStream(), "PHYML", logFile, ModelTest.getPhymlConsole());
-
-			// kick them off
-			errorGobbler.start();
+			// any output? results are parsed as they are printed out
+			FileOutputStream logFile = null;
 			if (printLog)
-				outputGobbler.start();
+				logFile = new FileOutputStream(options.getLogFile(), true);
+			resultParser = new PhymlResultParser(ignoreGaps);
+			ProcessSupervisor.SupervisedProcess supervised = ProcessSupervisor
+					.getInstance().supervise(proc, logFile,
+							ModelTest.getPhymlConsole(), resultParser);
 
 			// any error???
 			int exitVal = proc.waitFor();
+			supervised.awaitOutput();
 			ProcessManager.getInstance().removeProcess(proc);
+			process = null;
 
 			if (verbose > 1)
 				System.out.println("ExitValue: " + exitVal);
 
-			// print command line to phmyl logfile
-			PrintWriter printout = new PrintWriter(logFile);
-			printout.println(" ");
-			printout.println("Command line used for process "+ outputGobbler.getRunId() +":");
 			String uCommand = commandLine.replace(options.getAlignmentFile().getAbsolutePath(), 
 					options.getInputFile().getAbsolutePath());
 			if (options.userTopologyExists) {
 				uCommand = uCommand.replace(options.getTreeFile().getAbsolutePath(), 
 						options.getInputTreeFile().getAbsolutePath());
 			}
-			printout.println("    " + RunPhyml.phymlBinary.getAbsolutePath() + " "
-					+ uCommand);
-			printout.println(" ");
-			printout.flush();
-			printout.close();
+
+			// print command line to phmyl logfile
+			if (printLog) {
+				PrintWriter printout = new PrintWriter(logFile);
+				printout.println(" ");
+				printout.println("Command line used for process "+ supervised.getRunId() +":");
+				printout.println("    " + RunPhyml.phymlBinary.getAbsolutePath() + " "
+						+ uCommand);
+				printout.println(" ");
+				printout.flush();
+				printout.close();
+			}
 			
 			// print to console
 			if (ModelTest.getPhymlConsole() != null) {
 				synchronized (ModelTest.getPhymlConsole()) {
 					ModelTest.getPhymlConsole().println(" ");
-					ModelTest.getPhymlConsole().println("Command line used for process "+ errorGobbler.getRunId() +":");
+					ModelTest.getPhymlConsole().println("Command line used for process "+ supervised.getRunId() +":");
 					ModelTest.getPhymlConsole().println("    " + RunPhyml.phymlBinary.getAbsolutePath() + " "
 							+ uCommand);
 					ModelTest.getPhymlConsole().println(" ");
@@ -297,232 +555,100 @@ public class PhymlSingleModel extends Observable implements Runnable {
 			notifyObservers(ProgressInfo.INTERRUPTED, index, model, null);
 			interrupted = true;
 		} catch (Throwable t) {
-			notifyObservers(
-					ProgressInfo.ERROR,
-					index,
-					model,
-					"Cannot run the Phyml command line for some reason: "
-							+ t.getMessage());
+			if (!cancelled) {
+				notifyObservers(
+						ProgressInfo.ERROR,
+						index,
+						model,
+						"Cannot run the Phyml command line for some reason: "
+								+ t.getMessage());
+			}
 			interrupted = true;
+		} finally {
+			if (affinity != null && launchTime > 0) {
+				affinity.release(placement, System.currentTimeMillis()
+						- launchTime);
+			}
 		}
 
 	}
 
 	/***************************
-	 * parsePhyml3Files ************************** * Reads contents of Phyml3
-	 * output files and loads * models parameter estimates * * *
+	 * parsePhyml3Files ************************** * Loads models parameter
+	 * estimates from the PhyML output, reading the Phyml3 output files only
+	 * for the results that were not printed out * * *
 	 ***********************************************************************/
 
 	private void parsePhyml3Files(Model currentModel) {
-		String line;
-
-		boolean showParsing = false;
+		PhymlResultParser parser = resultParser;
+		if (parser == null) {
+			parser = new PhymlResultParser(ignoreGaps);
+		}
 
-		File f = new File(phymlStatFileName);
-		if (!f.exists())
-		{
-			phymlStatFileName += ".txt";
-			phymlTreeFileName += ".txt";
+		if (txtSuffix == null) {
+			txtSuffix = !new File(phymlStatFileName).exists()
+					&& new File(phymlStatFileName + ".txt").exists();
 		}
-		
+		String statFileName = phymlStatFileName;
+		String treeFileName = phymlTreeFileName;
+		if (txtSuffix) {
+			statFileName += ".txt";
+			treeFileName += ".txt";
+		}
+		if (!new File(statFileName).exists()) {
+			// try the other naming convention
+			String otherStatFileName = txtSuffix ? phymlStatFileName
+					: phymlStatFileName + ".txt";
+			if (new File(otherStatFileName).exists()) {
+				txtSuffix = !txtSuffix;
+				statFileName = otherStatFileName;
+				treeFileName = txtSuffix ? phymlTreeFileName + ".txt"
+						: phymlTreeFileName;
+			}
+		}
+
 		// Get model likelihood and parameter estimates
-		try {
-			TextInputStream phymlStatFile = new TextInputStream(
-					phymlStatFileName);
-			if (ignoreGaps) {
+		if (!parser.hasStatistics(currentModel)) {
+			parser.resetStatistics();
+			try {
+				TextInputStream phymlStatFile = new TextInputStream(
+						statFileName);
+				String line;
 				while ((line = phymlStatFile.readLine()) != null) {
-					if (line.length() > 0) {
-						if (line.startsWith(". Log-likelihood")) {
-							currentModel.setLnLIgnoringGaps((-1.0)
-									* Double.parseDouble(Utilities
-											.lastToken(line)));
-						} else if (line.contains("Unconstrained likelihood")) {
-							double unconstrainedLnL = (-1.0)
-									* Double.parseDouble(Utilities
-											.lastToken(line));
-							currentModel.setUnconstrainedLnL(unconstrainedLnL);
-							if (Math.abs(options.getUnconstrainedLnL()
-									- unconstrainedLnL) > 1e-10) {
-								// uLK has changed!!!
-								// temporary uLK is updated
-								options.setUnconstrainedLnL(unconstrainedLnL);
-							}
-						}
-					}
+					parser.parseLine(line);
 				}
-			} else {
-				while ((line = phymlStatFile.readLine()) != null) {
-					if (line.length() > 0) {
-						if (line.startsWith(". Log-likelihood")) {
-							currentModel.setLnL((-1.0)
-									* Double.parseDouble(Utilities
-											.lastToken(line)));
-							if (showParsing)
-								System.err.println("Reading lnL = "
-										+ currentModel.getLnL());
-						} else if (line.startsWith(". Discrete gamma model")) {
-							if (Utilities.lastToken(line).equals("Yes")) {
-								// currentModel.pG = true;
-								line = phymlStatFile.readLine();
-								currentModel.setNumGammaCat(Integer
-										.parseInt(Utilities.lastToken(line)));
-								if (showParsing)
-									System.err.println("Reading numGammaCat = "
-											+ currentModel.getNumGammaCat());
-								line = phymlStatFile.readLine();
-								currentModel
-										.setShape(Double.parseDouble(Utilities
-												.lastToken(line)));
-								if (showParsing)
-									System.err.println("Reading shape = "
-											+ currentModel.getShape());
-							}
-						} else if (line.startsWith(". Nucleotides frequencies")) {
-							// currentModel.pF = true; ??
-							line = phymlStatFile.readLine();
-							while (line.trim().length() == 0)
-								// get rid of any number of returns
-								line = phymlStatFile.readLine();
-							currentModel.setfA(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setfC(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setfG(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setfT(Double.parseDouble(Utilities
-									.lastToken(line)));
-							if (showParsing) {
-								System.err.println("Reading fA = "
-										+ currentModel.getfA());
-								System.err.println("Reading fC = "
-										+ currentModel.getfC());
-								System.err.println("Reading fG = "
-										+ currentModel.getfG());
-								System.err.println("Reading fT = "
-										+ currentModel.getfT());
-							}
-						} else if (line.startsWith(". Proportion of invariant")) {
-							// currentModel.pI = true;
-							currentModel.setPinv(Double.parseDouble(Utilities
-									.lastToken(line)));
-							if (showParsing)
-								System.err.println("Reading pinv = "
-										+ currentModel.getPinv());
-						} else if (line.contains("Unconstrained likelihood")) {
-							double unconstrainedLnL = (-1.0)
-									* Double.parseDouble(Utilities
-											.lastToken(line));
-							if (!options.isAmbiguous()) {
-								currentModel
-										.setUnconstrainedLnL(unconstrainedLnL);
-							} else {
-								currentModel.setUnconstrainedLnL(0.0d);
-							}
-							if (Math.abs(options.getUnconstrainedLnL()) <= 1e-10) {
-								options.setUnconstrainedLnL(unconstrainedLnL);
-							} else {
-								if (Math.abs(options.getUnconstrainedLnL()
-										- unconstrainedLnL) > 1e-10) {
-									// uLK has changed!!!
-									// temporary uLK is updated
-									options.setUnconstrainedLnL(unconstrainedLnL);
-								}
-							}
-							if (showParsing)
-								System.err
-										.println("Reading unconstrained logLK = "
-												+ currentModel
-														.getUnconstrainedLnL());
-						} else if (line
-								.startsWith(". GTR relative rate parameters")) {
-							line = phymlStatFile.readLine();
-							while (line.trim().length() == 0)
-								// get rid of any number of returns
-								line = phymlStatFile.readLine();
-							currentModel.setRa(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setRb(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setRc(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setRd(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setRe(Double.parseDouble(Utilities
-									.lastToken(line)));
-							line = phymlStatFile.readLine();
-							currentModel.setRf(Double.parseDouble(Utilities
-									.lastToken(line)));
-							if (showParsing) {
-								System.err.println("Reading Ra = "
-										+ currentModel.getRa());
-								System.err.println("Reading Rb = "
-										+ currentModel.getRb());
-								System.err.println("Reading Rc = "
-										+ currentModel.getRc());
-								System.err.println("Reading Rd = "
-										+ currentModel.getRd());
-								System.err.println("Reading Re = "
-										+ currentModel.getRe());
-								System.err.println("Reading Rf = "
-										+ currentModel.getRf());
-							}
-							// with custom models phyml does not provide a
-							// ti/tv, so
-							// we
-							// calculate it from the rate parameters
-							// note this is kappa and we need to transform it to
-							// ti/tv
-							if (currentModel.ispT()) {
-								currentModel.setKappa(currentModel.getRb());
-								currentModel
-										.setTitv(currentModel.getKappa()
-												* (currentModel.getfA()
-														* currentModel.getfG() + currentModel
-														.getfC()
-														* currentModel.getfT())
-												/ ((currentModel.getfA() + currentModel
-														.getfG()) * (currentModel
-														.getfC() + currentModel
-														.getfT())));
-							}
-						}
-					}
+				phymlStatFile.close();
+				if (!parser.hasStatistics(currentModel)) {
+					notifyObservers(
+							ProgressInfo.ERROR,
+							index,
+							model,
+							"Error while parsing result data from "
+									+ currentModel.getName());
 				}
+			} catch (FileNotFoundException e) {
+				notifyObservers(ProgressInfo.ERROR, index, model,
+						"Optimization results file does not exist: "
+								+ statFileName);
 			}
-			phymlStatFile.close();
-		} catch (FileNotFoundException e) {
-			notifyObservers(ProgressInfo.ERROR, index, model,
-					"Optimization results file does not exist: "
-							+ phymlStatFileName);
-
-		} catch (NullPointerException e) {
-			notifyObservers(
-					ProgressInfo.ERROR,
-					index,
-					model,
-					"Error while parsing result data from "
-							+ currentModel.getName());
 		}
 
-		try {
-			// Get ML tree
-			TextInputStream phymlTreeFile = new TextInputStream(
-					phymlTreeFileName);
-			String treestr = phymlTreeFile.readLine();
-			currentModel.setTreeString(treestr);
-			phymlTreeFile.close();
-		} catch (FileNotFoundException e) {
-			notifyObservers(ProgressInfo.ERROR, index, model, null);
-			System.err.println("Optimized tree file does not exist: "
-					+ phymlTreeFileName);
+		// Get ML tree
+		if (!parser.hasTree()) {
+			try {
+				TextInputStream phymlTreeFile = new TextInputStream(
+						treeFileName);
+				parser.parseTree(phymlTreeFile.readLine());
+				phymlTreeFile.close();
+			} catch (FileNotFoundException e) {
+				notifyObservers(ProgressInfo.ERROR, index, model, null);
+				System.err.println("Optimized tree file does not exist: "
+						+ treeFileName);
+			}
+		}
 
+		try {
+			parser.apply(currentModel, options);
 		} catch (TreeParseException e) {
 			StringBuffer sb = new StringBuffer();
 			sb.append(" Please, check the PhyML log");
@@ -535,8 +661,14 @@ public class PhymlSingleModel extends Observable implements Runnable {
 			notifyObservers(ProgressInfo.ERROR, index, model, "ML tree for "
 					+ currentModel.getName() + " is invalid." + sb.toString());
 		}
-		Utilities.deleteFile(phymlStatFileName);
-		Utilities.deleteFile(phymlTreeFileName);
+		resultParser = null;
+		ScratchWorkspace workspace = ScratchWorkspace.getInstance();
+		if (workspace != null) {
+			workspace.addResultFile(new File(statFileName));
+			workspace.addResultFile(new File(treeFileName));
+		}
+		Utilities.deleteFile(statFileName);
+		Utilities.deleteFile(treeFileName);
 
 	}
 	
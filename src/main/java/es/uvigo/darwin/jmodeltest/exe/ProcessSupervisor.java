@@ -0,0 +1,303 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Supervisor of the output of the PhyML processes.
+ *
+ * A single daemon thread multiplexes the output and error streams of every
+ * running process, reading only the bytes already available, so the number
+ * of threads does not grow with the number of concurrent processes. Each
+ * line is tagged with the stream type and the process id, and mirrored to
+ * the log file, the error output and the PhyML console. Output lines are
+ * also fed to the result parser of the process, or scanned for the number
+ * of site patterns.
+ *
+ * @author Diego Darriba
+ */
+public class ProcessSupervisor {
+
+	/** Time waiting for new output when all streams are idle, in ms */
+	private static final long IDLE_WAIT = 20;
+	private static final int BUFFER_SIZE = 8192;
+
+	private static ProcessSupervisor instance;
+	private static int runId = 1;
+
+	private List<SupervisedProcess> processes = new ArrayList<SupervisedProcess>();
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition processAdded = lock.newCondition();
+	private Condition processFinished = lock.newCondition();
+	private byte[] buffer = new byte[BUFFER_SIZE];
+
+	private ProcessSupervisor() {
+		Thread supervisor = new Thread("PhyML process supervisor") {
+			public void run() {
+				supervise();
+			}
+		};
+		supervisor.setDaemon(true);
+		supervisor.start();
+	}
+
+	public static synchronized ProcessSupervisor getInstance() {
+		if (instance == null) {
+			instance = new ProcessSupervisor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts supervising the streams of a process
+	 *
+	 * @param process
+	 *            the running process
+	 * @param logFile
+	 *            the output log, or null if the output is not logged
+	 * @param console
+	 *            the PhyML console, or null if there is no console
+	 * @param parser
+	 *            the parser of the process results, or null
+	 *
+	 * @return the supervised process
+	 */
+	public SupervisedProcess supervise(Process process, OutputStream logFile,
+			OutputStream console, PhymlResultParser parser) {
+		int id;
+		synchronized (ProcessSupervisor.class) {
+			id = runId++;
+		}
+		SupervisedProcess supervised = new SupervisedProcess(process, id);
+		supervised.output = new Channel(process.getInputStream(), "PHYML",
+				id, logFile, console, parser);
+		supervised.error = new Channel(process.getErrorStream(), "ERROR", id,
+				System.err, console, null);
+		lock.lock();
+		try {
+			processes.add(supervised);
+			processAdded.signal();
+		} finally {
+			lock.unlock();
+		}
+		return supervised;
+	}
+
+	private void supervise() {
+		List<SupervisedProcess> current = new ArrayList<SupervisedProcess>();
+		while (true) {
+			lock.lock();
+			try {
+				while (processes.isEmpty()) {
+					processAdded.awaitUninterruptibly();
+				}
+				current.clear();
+				current.addAll(processes);
+			} finally {
+				lock.unlock();
+			}
+
+			boolean idle = true;
+			for (SupervisedProcess supervised : current) {
+				boolean exited = supervised.hasExited();
+				idle &= !supervised.output.poll(exited);
+				idle &= !supervised.error.poll(exited);
+				if (exited) {
+					lock.lock();
+					try {
+						processes.remove(supervised);
+						supervised.finished = true;
+						processFinished.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+
+			if (idle) {
+				lock.lock();
+				try {
+					processAdded.await(IDLE_WAIT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// continue supervising
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A process whose streams are being supervised
+	 */
+	public class SupervisedProcess {
+
+		private Process process;
+		private int runId;
+		private Channel output, error;
+		private boolean finished = false;
+
+		private SupervisedProcess(Process process, int runId) {
+			this.process = process;
+			this.runId = runId;
+		}
+
+		public int getRunId() {
+			return runId;
+		}
+
+		/**
+		 * Waits until the whole output of the process has been processed
+		 *
+		 * @throws InterruptedException
+		 *             if the current thread is interrupted while waiting
+		 */
+		public void awaitOutput() throws InterruptedException {
+			lock.lock();
+			try {
+				while (!finished) {
+					processFinished.await();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private boolean hasExited() {
+			try {
+				process.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * One of the streams of a process
+	 */
+	private class Channel {
+
+		private InputStream is;
+		private String tag;
+		private PrintWriter pwFile, pwConsole;
+		private PhymlResultParser parser;
+		private ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private boolean closed = false;
+
+		private Channel(InputStream is, String type, int runId,
+				OutputStream fileRedirect, OutputStream consoleRedirect,
+				PhymlResultParser parser) {
+			this.is = is;
+			this.tag = type + "(" + runId + ")>";
+			this.parser = parser;
+			if (fileRedirect != null)
+				pwFile = new PrintWriter(fileRedirect);
+			if (consoleRedirect != null)
+				pwConsole = new PrintWriter(consoleRedirect);
+		}
+
+		/**
+		 * Processes the available bytes of the stream. Once the process has
+		 * exited, the stream is read until its end.
+		 *
+		 * @return true, if any byte was read
+		 */
+		private boolean poll(boolean exited) {
+			if (closed)
+				return false;
+			boolean read = false;
+			try {
+				int available;
+				while ((available = exited ? BUFFER_SIZE : is.available()) > 0) {
+					int n = is.read(buffer, 0, Math.min(available, BUFFER_SIZE));
+					if (n < 0) {
+						close();
+						break;
+					}
+					read = true;
+					for (int i = 0; i < n; i++) {
+						if (buffer[i] == '\n') {
+							processLine();
+						} else if (buffer[i] != '\r') {
+							line.write(buffer[i]);
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("INFO: [ProcessSupervisor] The stream was closed!");
+				close();
+			}
+			if (read) {
+				flush();
+			}
+			return read;
+		}
+
+		private void processLine() {
+			String strLine = line.toString();
+			line.reset();
+			try {
+				if (parser != null) {
+					parser.parseLine(strLine);
+				} else if (strLine.contains("patterns found")) {
+					PhymlResultParser.updateNumPatterns(strLine);
+				}
+			} catch (RuntimeException e) {
+				/* results will be read from the output files */
+				parser = null;
+			}
+			if (pwFile != null) {
+				pwFile.println(tag + strLine);
+			}
+			if (pwConsole != null) {
+				pwConsole.println(tag + strLine);
+			}
+		}
+
+		private void flush() {
+			if (pwFile != null)
+				pwFile.flush();
+			if (pwConsole != null)
+				pwConsole.flush();
+		}
+
+		private void close() {
+			if (line.size() > 0) {
+				processLine();
+			}
+			flush();
+			closed = true;
+			try {
+				is.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
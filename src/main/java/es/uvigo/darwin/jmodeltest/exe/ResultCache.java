@@ -0,0 +1,381 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import pal.tree.TreeParseException;
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Persistent cache of PhyML model optimizations.
+ *
+ * Each result is stored in its own file, named after a SHA-256 hash of
+ * everything PhyML output depends on: the alignment contents, the command
+ * line arguments (with the user tree replaced by its contents, and without
+ * the number of threads, which does not change the results), the random
+ * number generator seed, the PhyML version and the size and modification
+ * time of the PhyML binary.
+ *
+ * Entries are written to a temporary file and renamed, so that the cache
+ * directory can be safely shared among several processes or nodes. Once the
+ * cache exceeds its maximum size, the least recently used entries are
+ * removed.
+ *
+ * @author Diego Darriba
+ */
+public class ResultCache {
+
+	private static final String ENTRY_SUFFIX = ".fit";
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** Age of abandoned temporary files that can be safely removed */
+	private static final long TEMP_FILE_EXPIRATION = 3600000;
+	/** Fraction of the maximum size kept after an eviction */
+	private static final double EVICTION_RATIO = 0.9;
+
+	private static ResultCache instance;
+
+	private File cacheDir;
+	private long maxSize;
+	private Random random = new Random();
+
+	/** Digests of the input files, by path */
+	private Map<String, FileDigest> fileDigests = new HashMap<String, FileDigest>();
+
+	private ResultCache(File cacheDir, long maxSize) {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the result cache
+	 *
+	 * @return the result cache, or null if caching is disabled or the cache
+	 *         directory cannot be used
+	 */
+	public static synchronized ResultCache getInstance() {
+		if (instance == null) {
+			File cacheDir = ModelTestConfiguration.getResultCacheDir();
+			if (cacheDir == null)
+				return null;
+			if (!cacheDir.exists())
+				cacheDir.mkdirs();
+			if (!(cacheDir.isDirectory() && cacheDir.canWrite())) {
+				System.err.println("WARNING: Cannot write in result cache directory ("
+						+ cacheDir.getAbsolutePath() + "): Cache will be disabled");
+				ModelTestConfiguration.disableResultCache();
+				return null;
+			}
+			instance = new ResultCache(cacheDir,
+					ModelTestConfiguration.getResultCacheSize());
+		}
+		return instance;
+	}
+
+	/**
+	 * Builds the key of a PhyML execution
+	 *
+	 * @param commandLine
+	 *            the PhyML command line arguments
+	 * @param options
+	 *            the application options
+	 *
+	 * @return the hexadecimal key of the execution
+	 *
+	 * @throws IOException
+	 *             if the input files cannot be read
+	 */
+	public String getKey(String commandLine, ApplicationOptions options)
+			throws IOException {
+		String normalizedCommandLine = commandLine.replace(options
+				.getAlignmentFile().getAbsolutePath(), "@alignment");
+		// the number of threads depends on the load of each execution
+		normalizedCommandLine = normalizedCommandLine.replaceAll(
+				" --num_threads \\d+", "");
+		if (options.userTopologyExists || options.fixedTopology) {
+			normalizedCommandLine = normalizedCommandLine.replace(options
+					.getTreeFile().getAbsolutePath(), "@tree:"
+					+ getFileDigest(options.getTreeFile()));
+		}
+		MessageDigest digest = getDigest();
+		digest.update(getFileDigest(options.getAlignmentFile()).getBytes(
+				"UTF-8"));
+		digest.update(normalizedCommandLine.getBytes("UTF-8"));
+		digest.update(String.valueOf(options.getRngSeed()).getBytes("UTF-8"));
+		digest.update(String.valueOf(RunPhyml.PHYML_VERSION).getBytes("UTF-8"));
+		File binary = RunPhyml.phymlBinary;
+		if (binary != null) {
+			// a replaced binary invalidates the results
+			digest.update((binary.length() + ":" + binary.lastModified())
+					.getBytes("UTF-8"));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Loads a cached result into a model
+	 *
+	 * @param key
+	 *            the key of the execution
+	 * @param model
+	 *            the model to update
+	 * @param ignoreGaps
+	 *            whether the execution ignores the gaps
+	 * @param options
+	 *            the application options
+	 *
+	 * @return true, if the result was found
+	 */
+	public boolean load(String key, Model model, boolean ignoreGaps,
+			ApplicationOptions options) {
+		File entry = new File(cacheDir, key + ENTRY_SUFFIX);
+		if (!entry.exists())
+			return false;
+		Properties result = new Properties();
+		try {
+			InputStream in = new FileInputStream(entry);
+			try {
+				result.load(in);
+			} finally {
+				in.close();
+			}
+			double lnL = getDouble(result, "lnL");
+			double unconstrainedLnL = getDouble(result, "unconstrainedLnL");
+			double modelUnconstrainedLnL = getDouble(result,
+					"modelUnconstrainedLnL");
+			int numPatterns = Integer.parseInt(result.getProperty("patterns"));
+			String tree = result.getProperty("tree");
+			if (tree == null)
+				return false;
+			if (ignoreGaps) {
+				model.setLnLIgnoringGaps(lnL);
+			} else {
+				model.setLnL(lnL);
+				model.setNumGammaCat(Integer.parseInt(result
+						.getProperty("numGammaCat")));
+				model.setShape(getDouble(result, "shape"));
+				model.setPinv(getDouble(result, "pinv"));
+				model.setfA(getDouble(result, "fA"));
+				model.setfC(getDouble(result, "fC"));
+				model.setfG(getDouble(result, "fG"));
+				model.setfT(getDouble(result, "fT"));
+				model.setRa(getDouble(result, "Ra"));
+				model.setRb(getDouble(result, "Rb"));
+				model.setRc(getDouble(result, "Rc"));
+				model.setRd(getDouble(result, "Rd"));
+				model.setRe(getDouble(result, "Re"));
+				model.setRf(getDouble(result, "Rf"));
+				model.setKappa(getDouble(result, "kappa"));
+				model.setTitv(getDouble(result, "titv"));
+			}
+			model.setUnconstrainedLnL(modelUnconstrainedLnL);
+			if (Math.abs(options.getUnconstrainedLnL() - unconstrainedLnL) > 1e-10) {
+				options.setUnconstrainedLnL(unconstrainedLnL);
+			}
+			if (options.getNumPatterns() != numPatterns && numPatterns > 0) {
+				options.setNumPatterns(numPatterns);
+			}
+			model.setTreeString(tree);
+		} catch (IOException e) {
+			return false;
+		} catch (NumberFormatException e) {
+			/* incomplete or corrupted entry */
+			return false;
+		} catch (NullPointerException e) {
+			return false;
+		} catch (TreeParseException e) {
+			return false;
+		}
+		/* update access time for LRU eviction */
+		entry.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Stores the result of a model optimization
+	 *
+	 * @param key
+	 *            the key of the execution
+	 * @param model
+	 *            the optimized model
+	 * @param ignoreGaps
+	 *            whether the execution ignores the gaps
+	 * @param options
+	 *            the application options
+	 */
+	public void store(String key, Model model, boolean ignoreGaps,
+			ApplicationOptions options) {
+		double lnL = ignoreGaps ? model.getLnLIgnoringGaps() : model.getLnL();
+		if (model.getTreeString() == null || lnL <= 0.0)
+			return;
+		Properties result = new Properties();
+		result.setProperty("model", model.getName());
+		result.setProperty("lnL", String.valueOf(lnL));
+		result.setProperty("unconstrainedLnL",
+				String.valueOf(options.getUnconstrainedLnL()));
+		result.setProperty("modelUnconstrainedLnL",
+				String.valueOf(model.getUnconstrainedLnL()));
+		result.setProperty("patterns",
+				String.valueOf(options.getNumPatterns()));
+		result.setProperty("numGammaCat",
+				String.valueOf(model.getNumGammaCat()));
+		result.setProperty("shape", String.valueOf(model.getShape()));
+		result.setProperty("pinv", String.valueOf(model.getPinv()));
+		result.setProperty("fA", String.valueOf(model.getfA()));
+		result.setProperty("fC", String.valueOf(model.getfC()));
+		result.setProperty("fG", String.valueOf(model.getfG()));
+		result.setProperty("fT", String.valueOf(model.getfT()));
+		result.setProperty("Ra", String.valueOf(model.getRa()));
+		result.setProperty("Rb", String.valueOf(model.getRb()));
+		result.setProperty("Rc", String.valueOf(model.getRc()));
+		result.setProperty("Rd", String.valueOf(model.getRd()));
+		result.setProperty("Re", String.valueOf(model.getRe()));
+		result.setProperty("Rf", String.valueOf(model.getRf()));
+		result.setProperty("kappa", String.valueOf(model.getKappa()));
+		result.setProperty("titv", String.valueOf(model.getTitv()));
+		result.setProperty("tree", model.getTreeString());
+
+		/* unique temporary name, in case the directory is shared */
+		File tempFile = new File(cacheDir, key + "." + Math.abs(random.nextLong())
+				+ TEMP_SUFFIX);
+		File entry = new File(cacheDir, key + ENTRY_SUFFIX);
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				result.store(out, null);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(entry)) {
+				/* another process stored the same result */
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used entries if the cache exceeds its
+	 * maximum size
+	 */
+	private synchronized void evict() {
+		File[] files = cacheDir.listFiles();
+		if (files == null)
+			return;
+		long currentTime = System.currentTimeMillis();
+		long totalSize = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)
+					&& currentTime - file.lastModified() > TEMP_FILE_EXPIRATION) {
+				file.delete();
+			} else {
+				totalSize += file.length();
+			}
+		}
+		if (totalSize <= maxSize)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				long diff = file1.lastModified() - file2.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		long targetSize = (long) (maxSize * EVICTION_RATIO);
+		for (File file : files) {
+			if (totalSize <= targetSize)
+				break;
+			if (file.getName().endsWith(ENTRY_SUFFIX)) {
+				long length = file.length();
+				/* concurrent evictions may have removed it */
+				if (file.delete() || !file.exists())
+					totalSize -= length;
+			}
+		}
+	}
+
+	private synchronized String getFileDigest(File file) throws IOException {
+		FileDigest fileDigest = fileDigests.get(file.getAbsolutePath());
+		if (fileDigest != null && file.length() == fileDigest.length
+				&& file.lastModified() == fileDigest.lastModified) {
+			return fileDigest.digest;
+		}
+		MessageDigest digest = getDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		fileDigest = new FileDigest();
+		fileDigest.length = file.length();
+		fileDigest.lastModified = file.lastModified();
+		fileDigest.digest = toHex(digest.digest());
+		fileDigests.put(file.getAbsolutePath(), fileDigest);
+		return fileDigest.digest;
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not supported", e);
+		}
+	}
+
+	private static double getDouble(Properties properties, String key) {
+		return Double.parseDouble(properties.getProperty(key));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static class FileDigest {
+		private long length;
+		private long lastModified;
+		private String digest;
+	}
+}
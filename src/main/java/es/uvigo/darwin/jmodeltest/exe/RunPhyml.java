@@ -24,18 +24,23 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import es.uvigo.darwin.jmodeltest.ApplicationOptions;
 import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.io.CheckpointJournal;
 import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
 import es.uvigo.darwin.jmodeltest.model.Model;
 import es.uvigo.darwin.jmodeltest.model.ModelComparator;
@@ -63,6 +68,13 @@ public abstract class RunPhyml extends Observable implements Observer {
 	protected ApplicationOptions options;
 	protected Model[] models;
 	protected Model gtrModel = null;
+	protected int currentStage;
+	protected int numModelsInStage;
+
+	/** Scheduler started before the guided search filter is known */
+	private ModelScheduler pipelineScheduler;
+	/** Candidate models started while optimizing the GTR model */
+	private Map<Model, DeferredObserver> deferredModels;
 
 	public static final String[] COMPATIBLE_VERSIONS = {
 		"20130103", "20131022", 
@@ -214,12 +226,15 @@ public abstract class RunPhyml extends Observable implements Observer {
 		this.progress = progress;
 		this.addObserver(progress);
 		Arrays.sort(this.models, new ModelComparator());
+		ModelTestConfiguration.applyCalibration(ThreadCalibration
+				.getProcessors(options.getNumberOfThreads()));
 	}
 
 	public void execute() {
 		// remove stuff from exe directories before starting
 		deleteFiles();
 		printSettings(ModelTest.getMainConsole());
+		journalOptions();
 
 		// locate GTR model
 		String searchFor;
@@ -245,6 +260,7 @@ public abstract class RunPhyml extends Observable implements Observer {
 		}
 		if (gtrModel == null) {
 			gtrModel = new Model(0, searchFor, "012345", gtrParams, false, false, false, true, options.doI, options.doG, 2, 4);
+			restoreModel(gtrModel);
 		}
 		// estimate a NJ-JC tree if needed
 		if (options.fixedTopology) {
@@ -283,7 +299,19 @@ public abstract class RunPhyml extends Observable implements Observer {
 				notifyObservers(ProgressInfo.GTR_OPTIMIZATION_INIT, models.length, gtrModel, null);
 				PhymlSingleModel gtrPhymlModel = new PhymlSingleModel(
 						gtrModel, 0, false, false, options);
-				gtrPhymlModel.run();
+				setCalibratedThreads(gtrPhymlModel);
+				if (ModelTestConfiguration.isPipelinedGuidedSearchEnabled()
+						&& getThreadPool() != null
+						&& !options.isClusteringSearch()
+						&& !gtrPhymlModel.isOptimized()) {
+					pipelineGuidedSearch(gtrPhymlModel);
+				} else {
+					gtrPhymlModel.run();
+				}
+				CheckpointJournal journal = getJournal();
+				if (journal != null && gtrModel.getLnL() > 0.0) {
+					journal.append(gtrModel);
+				}
 				notifyObservers(ProgressInfo.GTR_OPTIMIZATION_COMPLETED, models.length, gtrModel, null);
 				
 				GuidedSearchManager gsm = new GuidedSearchManager(
@@ -293,6 +321,9 @@ public abstract class RunPhyml extends Observable implements Observer {
 	
 				models = gsm.filterModels(models);
 				ModelTest.setCandidateModels(models);
+				if (pipelineScheduler != null) {
+					cancelExcludedModels(models);
+				}
 			} else {
 				notifyObservers(ProgressInfo.GTR_NOT_FOUND, models.length, models[0], null);
 			}
@@ -316,43 +347,246 @@ public abstract class RunPhyml extends Observable implements Observer {
 		
 		ExecutorService threadPool = Executors.newFixedThreadPool(options
 				.getNumberOfThreads());
-		Collection<Callable<Object>> c = new ArrayList<Callable<Object>>();
+		try {
+			return scheduleModels(threadPool, models, ignoreGaps);
+		} finally {
+			threadPool.shutdown();
+		}
+	}
+
+	/**
+	 * Optimizes a set of models in the given pool of threads. If cost
+	 * scheduling is enabled, the most expensive models are executed first.
+	 * 
+	 * @param threadPool
+	 *            the pool of threads
+	 * @param models
+	 *            the models to optimize
+	 * @param ignoreGaps
+	 *            whether gaps should be ignored
+	 * 
+	 * @return true, if every model was successfully optimized
+	 */
+	protected boolean scheduleModels(ExecutorService threadPool,
+			Model models[], boolean ignoreGaps) {
+		ModelScheduler scheduler = createScheduler(threadPool);
+		if (pipelineScheduler != null && !ignoreGaps) {
+			/* continue with the models started with the GTR model */
+			scheduler = pipelineScheduler;
+			pipelineScheduler = null;
+		}
 		int current = 0;
+		int restored = 0;
 		for (Model model : models) {
 			if (model != null) {
-				PhymlSingleModel psm = new PhymlSingleModel(model, current, false,
-						ignoreGaps, options);
-				psm.addObserver(this);
-				c.add(Executors.callable(psm));
-	
+				DeferredObserver deferred = deferredModels != null ? deferredModels
+						.remove(model) : null;
+				if (deferred != null) {
+					deferred.release();
+				} else if (submitModel(scheduler, model, current, ignoreGaps) == null) {
+					restored++;
+				}
 				current++;
 			}
 		}
+		if (restored > 0) {
+			ModelTest.getMainConsole().println(
+					"Restored " + restored + " models from checkpoint, "
+							+ (current - restored) + " models pending");
+		}
 
-		Collection<Future<Object>> futures = null;
-		try {
-			futures = threadPool.invokeAll(c);
-		} catch (InterruptedException e) {
+		boolean success = scheduler.execute();
+		if (!success) {
 			notifyObservers(ProgressInfo.INTERRUPTED, 0, null, null);
 		}
+		scheduler.printSummary(ModelTest.getMainConsole());
+		CpuTokenManager.getInstance().printSummary(ModelTest.getMainConsole());
+		if (MemoryAdmissionController.getInstance() != null) {
+			MemoryAdmissionController.getInstance().printSummary(
+					ModelTest.getMainConsole());
+		}
+		if (AffinityManager.getInstance() != null) {
+			AffinityManager.getInstance().printSummary(
+					ModelTest.getMainConsole());
+		}
+		return success;
+	}
+
+	/**
+	 * Creates a scheduler for optimizing models in the given pool of threads
+	 * 
+	 * @param threadPool
+	 *            the pool of threads
+	 * 
+	 * @return the scheduler
+	 */
+	protected ModelScheduler createScheduler(ExecutorService threadPool) {
+		ModelScheduler scheduler = new ModelScheduler(threadPool,
+				options.getNumberOfThreads(), new ModelCostEstimator(options),
+				ModelTestConfiguration.isCostSchedulingEnabled());
+		scheduler.setElasticThreads(ModelTestConfiguration
+				.isElasticThreadsEnabled());
+		scheduler.setHedging(ModelTestConfiguration
+				.isHedgedExecutionEnabled());
+		return scheduler;
+	}
 
-		if (futures != null) {
-			for (Future<Object> f : futures) {
-				try {
-					f.get();
-				} catch (InterruptedException ex) {
-					notifyObservers(ProgressInfo.INTERRUPTED, 0, null, null);
-					ex.printStackTrace();
-					return false;
-				} catch (ExecutionException ex) {
-					// Internal exception while computing model.
-					// Let's continue with errors
-					ex.printStackTrace();
-					return false;
+	/**
+	 * Submits the optimization of a model to a scheduler. Models restored
+	 * from a checkpoint are not submitted, but their completion is notified.
+	 * 
+	 * @param scheduler
+	 *            the scheduler
+	 * @param model
+	 *            the model to optimize
+	 * @param index
+	 *            the index of the model
+	 * @param ignoreGaps
+	 *            whether gaps should be ignored
+	 * 
+	 * @return the submitted task, or null if the model was restored
+	 */
+	protected PhymlSingleModel submitModel(ModelScheduler scheduler,
+			Model model, int index, boolean ignoreGaps) {
+		PhymlSingleModel psm = new PhymlSingleModel(model, index, false,
+				ignoreGaps, options);
+		psm.addObserver(this);
+		setCalibratedThreads(psm);
+		if (psm.isOptimized()) {
+			/* restored from checkpoint: just notify the completion */
+			psm.compute();
+			return null;
+		}
+		scheduler.submit(psm);
+		return psm;
+	}
+
+	/**
+	 * Sets the number of PhyML threads of a model optimization to the one
+	 * calibrated for its sort of model, if this machine was calibrated
+	 * 
+	 * @param psm
+	 *            the model optimization
+	 */
+	private void setCalibratedThreads(PhymlSingleModel psm) {
+		if (ModelTestConfiguration.isCalibrated()) {
+			psm.setNumberOfThreads(MultipleDistributor.getPEs(psm.getModel(),
+					options.getNumberOfThreads()));
+		}
+	}
+
+	/**
+	 * Optimizes the GTR model of the guided search, starting the candidate
+	 * models in the idle threads meanwhile. The progress of the candidate
+	 * models is not notified until they pass the filter.
+	 * 
+	 * The candidate models most likely to be excluded by the filter start
+	 * last, whatever their cost (see getExclusionRisk).
+	 * 
+	 * @param gtrPhymlModel
+	 *            the GTR model optimization
+	 */
+	private void pipelineGuidedSearch(PhymlSingleModel gtrPhymlModel) {
+		pipelineScheduler = createScheduler(getThreadPool());
+		deferredModels = new HashMap<Model, DeferredObserver>();
+		pipelineScheduler.submit(gtrPhymlModel, 1);
+		List<PhymlSingleModel> candidates = new ArrayList<PhymlSingleModel>();
+		int current = 0;
+		for (Model model : models) {
+			if (model != gtrModel) {
+				PhymlSingleModel psm = new PhymlSingleModel(model, current,
+						false, false, options);
+				setCalibratedThreads(psm);
+				if (!psm.isOptimized()) {
+					DeferredObserver deferred = new DeferredObserver(psm);
+					psm.addObserver(deferred);
+					deferredModels.put(model, deferred);
+					candidates.add(psm);
 				}
 			}
+			current++;
+		}
+		/* submission order matters when cost scheduling is disabled */
+		Collections.sort(candidates, new Comparator<PhymlSingleModel>() {
+			public int compare(PhymlSingleModel psm1, PhymlSingleModel psm2) {
+				return getExclusionRisk(psm1.getModel())
+						- getExclusionRisk(psm2.getModel());
+			}
+		});
+		for (PhymlSingleModel psm : candidates) {
+			pipelineScheduler.submit(psm, -getExclusionRisk(psm.getModel()));
+		}
+		pipelineScheduler.start();
+		pipelineScheduler.awaitFinished(gtrPhymlModel);
+	}
+
+	/**
+	 * Gets how likely the guided search filter is to exclude a candidate
+	 * model, a priori. The filter excludes +I models whenever the GTR model
+	 * has a small proportion of invariable sites, equal frequency models
+	 * whenever its frequencies are uneven, and models with tied rates
+	 * whenever those rates differ, while it seldom excludes +G models.
+	 * 
+	 * @param model
+	 *            the candidate model
+	 * 
+	 * @return the risk, from 0 (the least likely) to 3
+	 */
+	private static int getExclusionRisk(Model model) {
+		int risk = 0;
+		if (model.ispI() && !model.ispG())
+			risk++;
+		if (!model.ispF())
+			risk++;
+		String partition = model.getPartition();
+		if (partition != null) {
+			Set<Character> rates = new HashSet<Character>();
+			for (int i = 0; i < partition.length(); i++) {
+				rates.add(partition.charAt(i));
+			}
+			if (rates.size() < partition.length())
+				risk++;
 		}
-		return true;
+		return risk;
+	}
+
+	/**
+	 * Cancels the candidate models started with the GTR model that did not
+	 * pass the guided search filter
+	 * 
+	 * @param filteredModels
+	 *            the models that passed the filter
+	 */
+	private void cancelExcludedModels(Model[] filteredModels) {
+		Set<Model> included = new HashSet<Model>(Arrays.asList(filteredModels));
+		int started = deferredModels.size();
+		int cancelled = 0;
+		Iterator<Map.Entry<Model, DeferredObserver>> it = deferredModels
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Model, DeferredObserver> entry = it.next();
+			if (!included.contains(entry.getKey())) {
+				entry.getValue().discard();
+				pipelineScheduler.cancel(entry.getValue().task);
+				cancelled++;
+				it.remove();
+			}
+		}
+		ModelTest.getMainConsole().println(
+				"[Heuristic search] " + started
+						+ " models started while optimizing "
+						+ gtrModel.getName() + ", " + cancelled
+						+ " cancelled by the filter");
+	}
+
+	/**
+	 * Gets the pool of threads used for optimizing the models
+	 * 
+	 * @return the pool of threads, or null if a new pool is created for
+	 *         every set of models
+	 */
+	protected ExecutorService getThreadPool() {
+		return null;
 	}
 	
 	/***************************
@@ -443,7 +677,11 @@ public abstract class RunPhyml extends Observable implements Observer {
 			}
 		}
 		if (options.isClusteringSearch()) {
-			stream.println(" Using hill-climbing hierarchical clustering");
+			stream.print(" Using hill-climbing hierarchical clustering");
+			if (options.getClusteringBeamWidth() > 1) {
+				stream.print(" (beam width = " + options.getClusteringBeamWidth() + ")");
+			}
+			stream.println(" ");
 		}
 		
 		if (options.isGuidedSearch()) {
@@ -454,6 +692,73 @@ public abstract class RunPhyml extends Observable implements Observer {
 
 	protected abstract Object doPhyml();
 
+	/**
+	 * Sets the current step of the clustering search, for progress
+	 * notifications
+	 */
+	void setClusteringStage(int stage, int numModels) {
+		this.currentStage = stage;
+		this.numModelsInStage = numModels;
+	}
+
+	/**
+	 * Gets the checkpoint journal of the current execution
+	 * 
+	 * @return the journal, or null if checkpointing is disabled
+	 */
+	protected CheckpointJournal getJournal() {
+		if (!ModelTestConfiguration.isCkpEnabled())
+			return null;
+		return CheckpointJournal.getInstance(options.getCkpFile());
+	}
+
+	/**
+	 * Stores the hash of the analysis options in the checkpoint journal, so
+	 * that a resumed execution can validate the recorded models
+	 */
+	protected void journalOptions() {
+		CheckpointJournal journal = getJournal();
+		if (journal != null) {
+			try {
+				journal.appendOptionsHash(options.getOptionsHash());
+			} catch (IOException e) {
+				/* the checkpoint will not be resumable */
+			}
+		}
+	}
+
+	/**
+	 * Attaches the converted alignment to the options, if the input
+	 * broadcast is enabled, so that the workers do not read the input file
+	 * from shared storage
+	 */
+	protected void attachWorkFiles() {
+		if (!ModelTestConfiguration.isInputBroadcastEnabled())
+			return;
+		try {
+			options.attachWorkFiles();
+		} catch (IOException e) {
+			System.err.println("WARNING: Cannot send the alignment to the workers ("
+					+ e.getMessage() + "): They will read the input file");
+		}
+	}
+
+	/**
+	 * Restores the state of a model not included in the candidate set (e.g.,
+	 * the GTR model of the guided search) from the loaded checkpoint
+	 */
+	private void restoreModel(Model model) {
+		if (ModelTest.getLoadedModels() == null)
+			return;
+		for (Model loadedModel : ModelTest.getLoadedModels()) {
+			if (loadedModel.getName().equals(model.getName())
+					&& loadedModel.getLnL() > 0.0) {
+				model.update(loadedModel);
+				break;
+			}
+		}
+	}
+
 	/***********************************************************************
 	 * interruptThread
 	 * 
@@ -484,5 +789,46 @@ public abstract class RunPhyml extends Observable implements Observer {
 		notifyObservers(arg);
 	}
 
+	/**
+	 * Holds the progress notifications of a model optimization until it is
+	 * released, or drops them if the optimization is discarded
+	 */
+	private class DeferredObserver implements Observer {
+
+		private PhymlSingleModel task;
+		private List<Object> notifications = new ArrayList<Object>();
+		private boolean released = false;
+		private boolean discarded = false;
+
+		DeferredObserver(PhymlSingleModel task) {
+			this.task = task;
+		}
+
+		public synchronized void update(Observable o, Object arg) {
+			if (released) {
+				RunPhyml.this.update(o, arg);
+			} else if (!discarded) {
+				notifications.add(arg);
+			}
+		}
+
+		/**
+		 * Drops the held notifications and any later one, so the observers
+		 * never see the optimization start (nor its cancellation)
+		 */
+		synchronized void discard() {
+			discarded = true;
+			notifications.clear();
+		}
+
+		synchronized void release() {
+			released = true;
+			for (Object notification : notifications) {
+				RunPhyml.this.update(task, notification);
+			}
+			notifications.clear();
+		}
+	}
+
 } // class RunPhyml
 
@@ -17,8 +17,6 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
 package es.uvigo.darwin.jmodeltest.exe;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.ExecutorService;
@@ -28,16 +26,10 @@ import es.uvigo.darwin.jmodeltest.ApplicationOptions;
 import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.model.Model;
 import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
-import es.uvigo.darwin.jmodeltest.selection.AIC;
-import es.uvigo.darwin.jmodeltest.selection.AICc;
-import es.uvigo.darwin.jmodeltest.selection.BIC;
-import es.uvigo.darwin.jmodeltest.selection.InformationCriterion;
 
 public class RunPhymlClustering extends RunPhyml {
 
 	private ExecutorService threadPool;
-	private int currentStage;
-	private int numModelsInStage;
 
 	public RunPhymlClustering(Observer progress, ApplicationOptions options,
 			Model[] models) {
@@ -52,60 +44,10 @@ public class RunPhymlClustering extends RunPhyml {
 	 */
 	protected Object doPhyml() {
 
-		List<Model> evaluatedModels = new ArrayList<Model>();
-	
-		evaluatedModels.add(gtrModel);
-		Model globalBestModel = gtrModel;
-		if (gtrModel == null) {
-			globalBestModel = models[models.length-1];
-		}
-		double bestScore = Double.MAX_VALUE;
-		double globalBestScore = Double.MAX_VALUE;
-		for (int groups=6; groups>0; groups--) {
-			String partition = globalBestModel==null?"012345":globalBestModel.getPartition();
-			Model[] currentModels = GuidedSearchManager.getModelsSubset(models, partition, groups);
-
-			currentStage = 7-groups;
-			numModelsInStage = currentModels.length;
-			
-			if (currentModels.length > 0) {
-				// Optimize the current models
-				Model bestModel = currentModels[0];
-				for (Model model : currentModels) {
-					PhymlSingleModel phymlModel = new PhymlSingleModel(
-							model, 0, false, false, options);
-					phymlModel.addObserver(this);
-					phymlModel.run();
-					double currentScore = Double.MAX_VALUE - 1.0;
-					switch (options.getHeuristicInformationCriterion()) {
-					case InformationCriterion.IC_AIC:
-						currentScore = AIC.computeAic(model, options);
-						break;
-					case InformationCriterion.IC_BIC:
-						currentScore = BIC.computeBic(model, options);
-						break;
-					case InformationCriterion.IC_AICc:
-						currentScore = AICc.computeAicc(model, options);
-						break;
-					}
-					if (currentScore < bestScore) {
-						bestModel = model;
-						bestScore = currentScore;
-					}
-				}
-			
-				// Check LnL
-				if (globalBestModel.getLnL()>0 && bestScore > globalBestScore) {
-					// End of algorithm
-					break;
-				} else {
-					globalBestModel = bestModel;
-					globalBestScore = bestScore;
-				}
-			}
-		}
+		ClusteringSearch search = new ClusteringSearch(this, options);
+		search.search(models, gtrModel);
 		ModelTest.purgeModels();
-		System.out.println("Global best model: " + globalBestModel.getName());
+		System.out.println("Global best model: " + search.getBestModel().getName());
 		
 //		notifyObservers(ProgressInfo.OPTIMIZATION_COMPLETED_OK, models.length,
 //				null, null);
@@ -113,6 +55,14 @@ public class RunPhymlClustering extends RunPhyml {
 		return "All Done";
 	} // doPhyml
 
+	protected boolean parallelExecute(Model models[], boolean ignoreGaps) {
+		return scheduleModels(threadPool, models, ignoreGaps);
+	}
+
+	protected ExecutorService getThreadPool() {
+		return threadPool;
+	}
+
 	public void interruptThread() {
 		super.interruptThread();
 		ProcessManager.getInstance().killAll();
@@ -21,6 +21,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -34,20 +36,25 @@ import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
 
 public class RunPhymlHybrid extends RunPhyml {
 
+	/** Number of intervals of the core utilization timeline */
+	private static final int UTILIZATION_INTERVALS = 10;
+
 	private List<Model> myModels;
 
-	// Synchronization package variables.
-	// Thread safe under current operation. Keep in mind.
-	volatile Model rootModel = null;
-	volatile boolean rootModelRequest = false;
+	/** Handoff of models between the distributor and the root worker */
+	final ModelHandoff rootHandoff = new ModelHandoff();
 
 	int mpjMe, mpjSize;
 	int maxPEs;
-	/** The number of available PEs. */
-	int availablePEs;
+	/** The executor of the models of this processor, which holds its PEs */
 	private PhymlParallelModel pme;
 	private Model[] computedModels;
 	private MultipleDistributor distributor;
+	/**
+	 * The id and wall time of the models finished since the last request.
+	 * Guarded by this object.
+	 */
+	private List<int[]> completionReports = new ArrayList<int[]>();
 	int[] itemsPerProc;
 	int[] displs;
 
@@ -71,9 +78,16 @@ public class RunPhymlHybrid extends RunPhyml {
 		itemsPerProc = new int[mpjSize];
 		displs = new int[mpjSize];
 
-		maxPEs = numberOfThreads;
-		availablePEs = maxPEs;
-		pme = new PhymlParallelModel(maxPEs);
+		/* never offer more PEs than the CPU budget of this node */
+		maxPEs = Math.min(numberOfThreads, CpuTokenManager.getInstance()
+				.getCapacity());
+		pme = new PhymlParallelModel(maxPEs) {
+			protected void completed(PhymlSingleModel estimator, int threads) {
+				// the pending request of the root worker is reconsidered at
+				// once (other processors are waiting for free PEs)
+				rootHandoff.updateAvailablePEs(getAvailablePEs());
+			}
+		};
 		pme.addObserver(this);
 
 	}
@@ -93,8 +107,10 @@ public class RunPhymlHybrid extends RunPhyml {
 		request();
 		
 		modelList = Arrays.asList(computedModels);
+		Map<Integer, Integer> modelIndex = ModelWireCodec
+				.indexById(modelList);
 		for (Model model : models) {
-			model.update(modelList.get(modelList.indexOf(model)));
+			model.update(modelList.get(modelIndex.get(model.getId())));
 		}
 
 		notifyObservers(ProgressInfo.OPTIMIZATION_COMPLETED_OK, models.length,
@@ -106,98 +122,159 @@ public class RunPhymlHybrid extends RunPhyml {
 
 //		List<PhymlSingleModel> phymlEstimatorList = new ArrayList<PhymlSingleModel>();
 
-		Model[] lastComputedModel = new Model[1];
+		Model lastComputedModel = null;
 		while (true) {
 			// send request to root
-			Model[] modelToReceive = null;
-			Model model = null;
+			List<Model> batch = new ArrayList<Model>();
+			int[] notification;
+			long releases = pme.getReleases();
 			if (ModelTest.MPJ_ME > 0) {
-				int[] sendMessage = { availablePEs, maxPEs };
-				Request modelRequest = MPI.COMM_WORLD.Isend(sendMessage, 0, 2,
-						MPI.INT, 0, MultipleDistributor.TAG_SEND_REQUEST);
+				int[] sendMessage = new int[MultipleDistributor.REQUEST_SIZE];
+				sendMessage[0] = pme.getAvailablePEs();
+				sendMessage[1] = maxPEs;
+				takeCompletionReports(sendMessage);
+				Request modelRequest = MPI.COMM_WORLD.Isend(sendMessage, 0,
+						sendMessage.length, MPI.INT, 0,
+						MultipleDistributor.TAG_SEND_REQUEST);
 				// prepare reception
-				modelToReceive = new Model[1];
-				boolean[] notification = new boolean[1];
+				notification = new int[MultipleDistributor.MAX_BATCH + 1];
 				// wait for request
 				modelRequest.Wait();
 
-				Request notifyRecv = MPI.COMM_WORLD.Irecv(notification, 0, 1,
-						MPI.BOOLEAN, 0,
+				Request notifyRecv = MPI.COMM_WORLD.Irecv(notification, 0,
+						notification.length, MPI.INT, 0,
 						MultipleDistributor.TAG_EXIST_MORE_MODELS);
 				notifyRecv.Wait();
 
-				if (notification[0]) {
-					// receive model
-					Request modelReceive = MPI.COMM_WORLD.Irecv(modelToReceive,
-							0, 1, MPI.OBJECT, 0,
+				// the notification carries the number of models in the
+				// batch (negative if there are no more models), followed by
+				// the number of threads for each one
+				if (notification[0] < 0) {
+					break;
+				} else if (notification[0] > 0) {
+					// receive models
+					Object[] message = new Object[1];
+					Request modelReceive = MPI.COMM_WORLD.Irecv(message, 0,
+							1, MPI.OBJECT, 0,
 							MultipleDistributor.TAG_SEND_MODEL);
 					modelReceive.Wait();
-					model = modelToReceive[0];
-				} else {
-					break;
+					ModelWireCodec.decode((byte[]) message[0], batch);
 				}
 			} else {
-				// This strategy is an easy way to avoid the problem of
-				// thread-safety in MPJ-Express. It works correctly, but
-				// it also causes to introduce coupling between this class
-				// and Distributor having to define two volatile attributes:
-				// rootModelRequest and rootModel.
-				rootModelRequest = true;
-				while (rootModelRequest) {
-					try {
-						Thread.sleep(200);
-					} catch (InterruptedException e) {
-						throw new RuntimeException("Thread interrupted");
-					}
+				// MPJ-Express is not thread-safe, so the root worker gets
+				// its models from the distributor thread through the handoff
+				Model model;
+				try {
+					model = rootHandoff.request(lastComputedModel,
+							pme.getAvailablePEs());
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Thread interrupted");
 				}
-				model = rootModel;
 				if (model == null)
 					break;
+				batch.add(model);
+				notification = new int[] { 1, rootHandoff.getServedThreads() };
 			}
-			if (model != null) {
+			for (int i = 0; i < notification[0]; i++) {
 				// compute
+				Model model = batch.get(i);
+				int threads = notification[i + 1];
 				myModels.add(model);
-				availablePEs -= MultipleDistributor.getPEs(model, maxPEs);
 				PhymlSingleModel runenv = new PhymlSingleModel(model, 0, false,
-						options, MultipleDistributor.getPEs(model, maxPEs));
-				pme.execute(runenv);
-				while (availablePEs <= 0) {
-					try {
-						Thread.sleep(200);
-					} catch (InterruptedException e) {
-						throw new RuntimeException("Thread interrupted");
-					}
+						options, threads);
+				pme.execute(runenv, threads);
+				lastComputedModel = runenv.getModel();
+			}
+			try {
+				// a finishing model wakes up the processor at once
+				if (notification[0] == 0) {
+					// none of the remaining models fits in the free PEs
+					pme.awaitRelease(releases);
+				} else {
+					pme.awaitAvailablePEs();
 				}
-
-				/*
-				// runenv.addObserver(this);
-				if (!runenv.compute())
-					throw new RuntimeException("Optimization error");
-
-				phymlEstimatorList.add(runenv);
-				*/
-				lastComputedModel[0] = runenv.getModel();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Thread interrupted");
 			}
 		}
 
 		// endTime = System.currentTimeMillis();
 
-		while (pme.hasMoreTasks()) {
-			try {
-				Thread.sleep(400);
-			} catch (InterruptedException e) {
-				throw new RuntimeException("Thread interrupted");
-			}
+		try {
+			pme.awaitCompletion();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Thread interrupted");
 		}
 
 		if (mpjMe > 0) {
 			gather();
+			gatherUtilization();
 		} else {
 			computedModels = gather();
+			CpuTokenManager.getInstance().printSummary(
+					ModelTest.getMainConsole());
+			distributor.getThroughput().printSummary(
+					ModelTest.getMainConsole());
+			for (String report : gatherUtilization()) {
+				ModelTest.getMainConsole().println(report);
+			}
 		}
 		
 	}
 
+	/**
+	 * Moves the reports of the models finished since the last request into
+	 * a request message (see MultipleDistributor.REQUEST_SIZE). Reports
+	 * that do not fit are kept for the next request.
+	 */
+	synchronized void takeCompletionReports(int[] request) {
+		int count = Math.min(completionReports.size(),
+				MultipleDistributor.MAX_BATCH);
+		request[2] = count;
+		for (int i = 0; i < count; i++) {
+			int[] report = completionReports.remove(0);
+			request[3 + 2 * i] = report[0];
+			request[4 + 2 * i] = report[1];
+		}
+	}
+
+	/**
+	 * Gathers the core utilization of every processor into the root one.
+	 * This method should be called by every processor after its models are
+	 * computed.
+	 * 
+	 * @return the utilization report of each processor, or an empty array
+	 *         for every non-root processor
+	 */
+	private String[] gatherUtilization() {
+		double[] utilization = pme.getUtilization(UTILIZATION_INTERVALS);
+		StringBuilder report = new StringBuilder("[Utilization] Processor "
+				+ mpjMe + " (" + ModelTest.getHostname() + ", " + maxPEs
+				+ " PEs): ");
+		if (utilization == null) {
+			report.append("no models");
+		} else {
+			report.append(String.format(Locale.ENGLISH, "mean %.1f%%, over time",
+					utilization[0] * 100));
+			for (int i = 1; i < utilization.length; i++) {
+				report.append(String.format(Locale.ENGLISH, " %.0f%%",
+						utilization[i] * 100));
+			}
+		}
+
+		Object[] myReport = { report.toString() };
+		Object[] reports = new Object[mpjSize];
+		MPI.COMM_WORLD.Gather(myReport, 0, 1, MPI.OBJECT, reports, 0, 1,
+				MPI.OBJECT, 0);
+		if (mpjMe > 0)
+			return new String[0];
+		String[] allReports = new String[mpjSize];
+		for (int i = 0; i < mpjSize; i++) {
+			allReports[i] = (String) reports[i];
+		}
+		return allReports;
+	}
+
 	protected Object doPhyml() {
 		return null;
 	} // doPhyml
@@ -214,28 +291,32 @@ public class RunPhymlHybrid extends RunPhyml {
 	 */
 	private Model[] gather() {
 
-		int numberOfModels = models != null?models.length:1;
-		Model[] allModels = new Model[numberOfModels];
-		
 		if (distributor != null) {
 			itemsPerProc = distributor.getItemsPerProc();
 			displs = distributor.getDispls();
 		}
 
-		MPI.COMM_WORLD.Bcast(itemsPerProc, 0, mpjSize, MPI.INT, 0);
-		
-		// gathering optimized models
-		MPI.COMM_WORLD.Gatherv(myModels.toArray(new Model[0]), 0,
-				myModels.size(), MPI.OBJECT, allModels, 0, itemsPerProc,
-				displs, MPI.OBJECT, 0);
-
-		return allModels;
+		// gathering optimized models, encoded as a single message per
+		// processor
+		Object[] myMessage = { ModelWireCodec.encode(mpjMe, myModels) };
+		Object[] messages = new Object[mpjSize];
+		MPI.COMM_WORLD.Gather(myMessage, 0, 1, MPI.OBJECT, messages, 0, 1,
+				MPI.OBJECT, 0);
+
+		if (mpjMe > 0)
+			return new Model[0];
+		List<Model> allModels = new ArrayList<Model>(models.length);
+		for (Object message : messages) {
+			ModelWireCodec.decode((byte[]) message, allModels);
+		}
+		return allModels.toArray(new Model[allModels.size()]);
 	}
 
 	public void execute() {
 
 		if (ModelTest.MPJ_ME == 0) {
 			printSettings(ModelTest.getMainConsole());
+			journalOptions();
 
 			// TODO: Send topology to each processor
 			// estimate a NJ-JC tree if needed
@@ -262,6 +343,7 @@ public class RunPhymlHybrid extends RunPhyml {
 			// compute likelihood scores for all models
 			System.out.println("computing likelihood scores for "
 					+ models.length + " models with Phyml " + PHYML_VERSION);
+			attachWorkFiles();
 		}
 
 		// sincronize ApplicationOptions from root
@@ -272,6 +354,7 @@ public class RunPhymlHybrid extends RunPhyml {
 		ApplicationOptions.setInstance(this.options);
 
 		if (ModelTest.MPJ_ME == 0) {
+			options.detachWorkFiles();
 			distribute();
 		} else {
 			try {
@@ -289,8 +372,15 @@ public class RunPhymlHybrid extends RunPhyml {
 		if (arg != null) {
 			ProgressInfo info = (ProgressInfo) arg;
 			if (info.getType() == ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED) {
-				availablePEs += MultipleDistributor.getPEs(info.getModel(),
-						maxPEs);
+				Model model = info.getModel();
+				// recorded before its PEs are freed, so that it is reported
+				// in the request they trigger
+				synchronized (this) {
+					completionReports.add(new int[] {
+							model.getId(),
+							(int) Math.min(model.getComputationTime(),
+									Integer.MAX_VALUE) });
+				}
 			}
 		}
 		// Ignore runtime messages
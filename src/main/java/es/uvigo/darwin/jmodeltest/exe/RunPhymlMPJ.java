@@ -21,11 +21,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 
 import mpi.MPI;
-import mpi.Request;
 import es.uvigo.darwin.jmodeltest.ApplicationOptions;
 import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.exception.InternalException;
@@ -48,10 +48,8 @@ public class RunPhymlMPJ extends RunPhyml {
 
 	private List<Model> myModels;
 
-	// Synchronization package variables.
-	// Thread safe under current operation. Keep in mind.
-	volatile Model rootModel = null;
-	volatile boolean rootModelRequest = false;
+	/** Handoff of models between the distributor and the root worker */
+	final ModelHandoff rootHandoff = new ModelHandoff();
 
 	public RunPhymlMPJ(Observer progress, ApplicationOptions options,
 			Model[] models) {
@@ -61,18 +59,26 @@ public class RunPhymlMPJ extends RunPhyml {
 
 	}
 
-	public void distribute() {
+	/**
+	 * Distributes the models among the local worker and the remote ones
+	 * 
+	 * @param transport
+	 *            the communication with the remote workers
+	 */
+	protected void distribute(CoordinatorTransport transport) {
 
 		List<Model> modelList = Arrays.asList(models);
-		Distributor distributor = new Distributor(modelList, this,
-				ModelTest.MPJ_ME, ModelTest.MPJ_SIZE);
+		Distributor distributor = new Distributor(modelList, rootHandoff,
+				transport);
 		distributor.addObserver(progress);
 		Thread distributorThread = new Thread(distributor);
 		distributorThread.start();
-		request();
+		computeRootModels();
 
+		Map<Integer, Integer> modelIndex = ModelWireCodec
+				.indexById(modelList);
 		for (Model model : ModelTest.getCandidateModels()) {
-			model.update(modelList.get(modelList.indexOf(model)));
+			model.update(modelList.get(modelIndex.get(model.getId())));
 		}
 
 		notifyObservers(ProgressInfo.OPTIMIZATION_COMPLETED_OK, models.length,
@@ -80,97 +86,95 @@ public class RunPhymlMPJ extends RunPhyml {
 	}
 
 	public void request() {
+		if (ModelTest.MPJ_ME > 0) {
+			try {
+				new ModelWorker(new MpjTransport.Worker(), options, 1).run();
+			} catch (InterruptedException e) {
+				throw new InternalException("Thread interrupted");
+			}
+		} else {
+			computeRootModels();
+		}
+	}
 
-		List<PhymlSingleModel> phymlEstimatorList = new ArrayList<PhymlSingleModel>();
-
-		Model[] lastComputedModel = new Model[1];
+	/**
+	 * Computes the models of the local worker of the root processor.
+	 * 
+	 * MPJ-Express is not thread-safe, so the root worker gets its models from
+	 * the distributor thread through the handoff
+	 */
+	protected void computeRootModels() {
+		Model lastComputedModel = null;
 		while (true) {
-			// send request to root
-			Model[] modelToReceive = null;
-			Model model = null;
-			if (ModelTest.MPJ_ME > 0) {
-				Request modelRequest = MPI.COMM_WORLD.Isend(lastComputedModel,
-						0, 1, MPI.OBJECT, 0, Distributor.TAG_SEND_REQUEST);
-				// prepare reception
-				modelToReceive = new Model[1];
-				// wait for request
-				modelRequest.Wait();
-				// receive model
-				Request modelReceive = MPI.COMM_WORLD.Irecv(modelToReceive, 0,
-						1, MPI.OBJECT, 0, Distributor.TAG_SEND_MODEL);
-				modelReceive.Wait();
-				model = modelToReceive[0];
-			} else {
-				// This strategy is an easy way to avoid the problem of
-				// thread-safety in MPJ-Express. It works correctly, but
-				// it also causes to introduce coupling between this class
-				// and Distributor having to define two volatile attributes:
-				// rootModelRequest and rootModel.
-				rootModelRequest = true;
-				while (rootModelRequest) {
-					try {
-						Thread.sleep(200);
-					} catch (InterruptedException e) {
-						throw new InternalException(
-								"Thread interrupted");
-					}
-				}
-				model = rootModel;
+			Model model;
+			try {
+				model = rootHandoff.request(lastComputedModel, 1);
+			} catch (InterruptedException e) {
+				throw new InternalException(
+						"Thread interrupted");
 			}
 			if (model == null)
 				break;
-			else {
-				// compute
-				myModels.add(model);
-				PhymlSingleModel runenv = new PhymlSingleModel(model, 0, false,
-						false, options);
-				runenv.addObserver(this);
-
-				if (!runenv.compute())
-					throw new InternalException("Optimization error");
-
-				phymlEstimatorList.add(runenv);
-				lastComputedModel[0] = runenv.getModel();
-			}
+			lastComputedModel = compute(model);
 		}
+	}
+
+	private Model compute(Model model) {
+		myModels.add(model);
+		PhymlSingleModel runenv = new PhymlSingleModel(model, 0, false,
+				false, options);
+		runenv.addObserver(this);
+
+		if (!runenv.compute())
+			throw new InternalException("Optimization error");
 
-		// endTime = System.currentTimeMillis();
+		return runenv.getModel();
 	}
 
 	protected Object doPhyml() {
 		return null;
 	} // doPhyml
 
-	public void execute() {
+	/**
+	 * Prints the settings and computes the base tree, if needed, in the root
+	 * processor
+	 */
+	protected void prepare() {
+		printSettings(ModelTest.getMainConsole());
+		journalOptions();
 
-		if (ModelTest.MPJ_ME == 0) {
-			printSettings(ModelTest.getMainConsole());
+		// estimate a NJ-JC tree if needed
+		if (options.fixedTopology) {
+			notifyObservers(ProgressInfo.BASE_TREE_INIT, 0, models[0], null);
 
-			// TODO: Send topology to each processor
-			// estimate a NJ-JC tree if needed
-			if (options.fixedTopology) {
-				notifyObservers(ProgressInfo.BASE_TREE_INIT, 0, models[0], null);
+			PhymlSingleModel jcModel = new PhymlSingleModel(models[0], 0,
+					true, false, options);
+			jcModel.run();
 
-				PhymlSingleModel jcModel = new PhymlSingleModel(models[0], 0,
-						true, false, options);
-				jcModel.run();
+			// create JCtree file
+			TextOutputStream JCtreeFile = new TextOutputStream(options
+					.getTreeFile().getAbsolutePath(), false);
+			JCtreeFile.print(models[0].getTreeString() + "\n");
+			JCtreeFile.close();
 
-				// create JCtree file
-				TextOutputStream JCtreeFile = new TextOutputStream(options
-						.getTreeFile().getAbsolutePath(), false);
-				JCtreeFile.print(models[0].getTreeString() + "\n");
-				JCtreeFile.close();
+			options.setUserTree(models[0].getTreeString());
 
-				options.setUserTree(models[0].getTreeString());
+			notifyObservers(ProgressInfo.BASE_TREE_COMPUTED, 0, models[0],
+					null);
 
-				notifyObservers(ProgressInfo.BASE_TREE_COMPUTED, 0, models[0],
-						null);
+		}
 
-			}
+		// compute likelihood scores for all models
+		System.out.println("computing likelihood scores for " + models.length
+				+ " models with Phyml " + PHYML_VERSION);
+	}
+
+	public void execute() {
 
-			// compute likelihood scores for all models
-			System.out.println("computing likelihood scores for " + models.length
-					+ " models with Phyml " + PHYML_VERSION);
+		if (ModelTest.MPJ_ME == 0) {
+			// TODO: Send topology to each processor
+			prepare();
+			attachWorkFiles();
 		}
 
 		// sincronize ApplicationOptions from root
@@ -181,9 +185,10 @@ public class RunPhymlMPJ extends RunPhyml {
 		ApplicationOptions.setInstance(this.options);
 
 		if (ModelTest.MPJ_ME == 0) {
+			options.detachWorkFiles();
 			notifyObservers(ProgressInfo.OPTIMIZATION_INIT, 0,
 					models[0], null);
-			distribute();
+			distribute(new MpjTransport.Coordinator(ModelTest.MPJ_SIZE));
 		} else {
 			try {
 				this.options.buildWorkFiles();
@@ -0,0 +1,137 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.IOException;
+import java.util.Observer;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.exception.InternalException;
+import es.uvigo.darwin.jmodeltest.model.Model;
+import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
+
+/**
+ * Makes PhyML calculate the likelihood scores of the candidate models in
+ * this machine and in the workers connected through TCP sockets, without
+ * MPJ Express.
+ *
+ * The coordinator computes one model at a time, like the root processor of
+ * an MPJ execution, while the workers (started with --worker) join at any
+ * time and pull batches of models.
+ *
+ * @author Diego Darriba
+ */
+public class RunPhymlSocket extends RunPhymlMPJ {
+
+	/** Maximum time a worker waits for the coordinator to start, in ms */
+	public static final long CONNECT_TIMEOUT = 10 * 60 * 1000;
+
+	private int port;
+
+	public RunPhymlSocket(Observer progress, ApplicationOptions options,
+			Model[] models, int port) {
+		super(progress, options, models);
+		this.port = port;
+	}
+
+	public void execute() {
+		prepare();
+
+		SocketTransport.Coordinator coordinator;
+		attachWorkFiles();
+		try {
+			coordinator = new SocketTransport.Coordinator(port, options);
+		} catch (IOException e) {
+			System.err.println("ERROR: Cannot listen for workers on port "
+					+ port + ": " + e.getMessage());
+			throw new InternalException("Cannot start the coordinator");
+		} finally {
+			options.detachWorkFiles();
+		}
+		System.err.println("[Coordinator] Listening for workers on port "
+				+ coordinator.getPort());
+
+		notifyObservers(ProgressInfo.OPTIMIZATION_INIT, 0, models[0], null);
+		try {
+			distribute(coordinator);
+		} finally {
+			coordinator.close();
+		}
+	}
+
+	/**
+	 * Runs a worker: connects to a coordinator, and computes the models it
+	 * sends until there are no more. If the connection is lost, the worker
+	 * connects again, so that it joins a restarted coordinator.
+	 *
+	 * @param host
+	 *            the host of the coordinator
+	 * @param port
+	 *            the port of the coordinator
+	 * @param cores
+	 *            the number of models computed concurrently
+	 *
+	 * @return true, if the worker finished normally
+	 */
+	public static boolean work(String host, int port, int cores) {
+		while (true) {
+			SocketTransport.Worker transport;
+			System.err.println("[Worker] Connecting to " + host + ":" + port
+					+ "...");
+			try {
+				transport = new SocketTransport.Worker(host, port, cores,
+						CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				System.err.println("ERROR: Cannot connect to the coordinator at "
+						+ host + ":" + port + ": " + e.getMessage());
+				return false;
+			}
+			System.err.println("[Worker] Registered as worker "
+					+ transport.getId() + " with " + cores + " cores");
+
+			ApplicationOptions.setInstance(transport.getOptions());
+			ApplicationOptions options = ApplicationOptions.getInstance();
+			try {
+				options.buildWorkFiles();
+				ModelTestConfiguration.applyCalibration(ThreadCalibration
+						.getProcessors(cores));
+				ModelWorker worker = new ModelWorker(transport, options, cores);
+				worker.run();
+				System.err.println("[Worker] Computed "
+						+ worker.getComputedModels().size() + " models");
+				return true;
+			} catch (IOException e) {
+				System.err.println("ERROR: Cannot build the work files: "
+						+ e.getMessage());
+				return false;
+			} catch (InterruptedException e) {
+				return false;
+			} catch (InternalException e) {
+				if (!transport.isOpen()) {
+					System.err.println("[Worker] Connection to the coordinator lost");
+					continue;
+				}
+				System.err.println("ERROR: " + e.getMessage());
+				return false;
+			} finally {
+				transport.close();
+			}
+		}
+	}
+}
@@ -17,31 +17,19 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
 package es.uvigo.darwin.jmodeltest.exe;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import es.uvigo.darwin.jmodeltest.ApplicationOptions;
 import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.model.Model;
 import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
-import es.uvigo.darwin.jmodeltest.selection.AIC;
-import es.uvigo.darwin.jmodeltest.selection.AICc;
-import es.uvigo.darwin.jmodeltest.selection.BIC;
-import es.uvigo.darwin.jmodeltest.selection.InformationCriterion;
 
 public class RunPhymlThread extends RunPhyml {
 
 	private ExecutorService threadPool;
-	private int currentStage;
-	private int numModelsInStage;
 	
 	public RunPhymlThread(Observer progress, ApplicationOptions options,
 			Model[] models) {
@@ -60,56 +48,8 @@ public class RunPhymlThread extends RunPhyml {
 
 		boolean errorsFound = false;
 		if (options.isClusteringSearch()) {
-			List<Model> evaluatedModels = new ArrayList<Model>();
-			
-			evaluatedModels.add(gtrModel);
-			Model globalBestModel = gtrModel;
-			if (gtrModel == null) {
-				globalBestModel = models[models.length-1];
-			}
-			double globalBestScore = Double.MAX_VALUE;
-			for (int groups=6; groups>0; groups--) {
-				double bestScore = Double.MAX_VALUE;
-				String partition = globalBestModel==null?"012345":globalBestModel.getPartition();
-				Model[] currentModels = GuidedSearchManager.getModelsSubset(models, partition, groups);
-
-				currentStage = 7-groups;
-				numModelsInStage = currentModels.length;
-				
-				if (currentModels.length > 0) {
-					// Optimize the current models
-					Model bestModel = currentModels[0];
-					errorsFound |= !parallelExecute(currentModels, false);
-					
-					for (Model model : currentModels) {
-						double currentScore = Double.MAX_VALUE - 1.0;
-						switch (options.getHeuristicInformationCriterion()) {
-						case InformationCriterion.IC_AIC:
-							currentScore = AIC.computeAic(model, options);
-							break;
-						case InformationCriterion.IC_BIC:
-							currentScore = BIC.computeBic(model, options);
-							break;
-						case InformationCriterion.IC_AICc:
-							currentScore = AICc.computeAicc(model, options);
-							break;
-						}
-						if (currentScore < bestScore) {
-							bestModel = model;
-							bestScore = currentScore;
-						}
-					}
-
-					// Check LnL
-					if (globalBestModel.getLnL()>0 && bestScore > globalBestScore) {
-						// End of algorithm
-						break;
-					} else {
-						globalBestModel = bestModel;
-						globalBestScore = bestScore;
-					}
-				}
-			}
+			ClusteringSearch search = new ClusteringSearch(this, options);
+			errorsFound = !search.search(models, gtrModel);
 			ModelTest.purgeModels();
 		} else {
 			errorsFound = !parallelExecute(models, false);
@@ -127,43 +67,11 @@ public class RunPhymlThread extends RunPhyml {
 	} // doPhyml
 
 	protected boolean parallelExecute(Model models[], boolean ignoreGaps) {
-		Collection<Callable<Object>> c = new ArrayList<Callable<Object>>();
-		int current = 0;
-		for (Model model : models) {
-			if (model != null) {
-				PhymlSingleModel psm = new PhymlSingleModel(model, current, false,
-						ignoreGaps, options);
-				psm.addObserver(this);
-				c.add(Executors.callable(psm));
-	
-				current++;
-			}
-		}
-
-		Collection<Future<Object>> futures = null;
-		try {
-			futures = threadPool.invokeAll(c);
-		} catch (InterruptedException e) {
-			notifyObservers(ProgressInfo.INTERRUPTED, 0, null, null);
-		}
+		return scheduleModels(threadPool, models, ignoreGaps);
+	}
 
-		if (futures != null) {
-			for (Future<Object> f : futures) {
-				try {
-					f.get();
-				} catch (InterruptedException ex) {
-					notifyObservers(ProgressInfo.INTERRUPTED, 0, null, null);
-					ex.printStackTrace();
-					return false;
-				} catch (ExecutionException ex) {
-					// Internal exception while computing model.
-					// Let's continue with errors
-					ex.printStackTrace();
-					return false;
-				}
-			}
-		}
-		return true;
+	protected ExecutorService getThreadPool() {
+		return threadPool;
 	}
 	
 	public void interruptThread() {
@@ -0,0 +1,321 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Persistent history of PhyML execution times.
+ *
+ * Every model optimization is appended to a plain text file, keyed by model
+ * family, number of taxa, number of site patterns, number of threads and
+ * tree search mode. The history is used to predict the runtime of new
+ * optimizations with a log-linear fit of the execution time against the
+ * alignment size for each model family and search mode.
+ *
+ * @author Diego Darriba
+ */
+public class RuntimeHistory {
+
+	/** Maximum number of samples kept in memory for each family */
+	private static final int MAX_SAMPLES = 500;
+	/** Bounds for the fitted exponent of the alignment size */
+	private static final double MIN_EXPONENT = 0.5;
+	private static final double MAX_EXPONENT = 2.0;
+
+	private static RuntimeHistory instance;
+
+	private File historyFile;
+	private Map<String, LinkedList<Sample>> samples;
+
+	private RuntimeHistory(File historyFile) {
+		this.historyFile = historyFile;
+		this.samples = new HashMap<String, LinkedList<Sample>>();
+		load();
+	}
+
+	public static synchronized RuntimeHistory getInstance() {
+		if (instance == null) {
+			instance = new RuntimeHistory(
+					ModelTestConfiguration.getRuntimeHistoryFile());
+		}
+		return instance;
+	}
+
+	/**
+	 * Stores the execution time of a model optimization
+	 *
+	 * @param model
+	 *            the optimized model
+	 * @param options
+	 *            the application options
+	 * @param numberOfThreads
+	 *            the number of threads used by PhyML
+	 * @param time
+	 *            the execution time in milliseconds
+	 */
+	public synchronized void record(Model model, ApplicationOptions options,
+			int numberOfThreads, long time) {
+		int patterns = getNumPatterns(options);
+		if (time <= 0 || patterns <= 0 || options.getNumTaxa() <= 0)
+			return;
+		Sample sample = new Sample(getFamily(model, options),
+				options.getNumTaxa(), patterns, Math.max(numberOfThreads, 1),
+				getSearchMode(options), time);
+		add(sample);
+		if (historyFile != null) {
+			try {
+				PrintWriter writer = new PrintWriter(new FileWriter(
+						historyFile, true));
+				writer.println(sample.toString());
+				writer.close();
+			} catch (IOException e) {
+				/* history is not critical: disable it */
+				System.err.println("WARNING: Cannot write runtime history ("
+						+ historyFile.getAbsolutePath() + ")");
+				historyFile = null;
+			}
+		}
+	}
+
+	/**
+	 * Predicts the execution time of a model optimization
+	 *
+	 * @param model
+	 *            the model to optimize
+	 * @param options
+	 *            the application options
+	 * @param numberOfThreads
+	 *            the number of threads for PhyML
+	 *
+	 * @return the predicted time in milliseconds, or -1 if there is no
+	 *         information for this kind of optimization
+	 */
+	public synchronized long predict(Model model, ApplicationOptions options,
+			int numberOfThreads) {
+		int patterns = getNumPatterns(options);
+		if (patterns <= 0 || options.getNumTaxa() <= 0)
+			return -1;
+		numberOfThreads = Math.max(numberOfThreads, 1);
+		LinkedList<Sample> familySamples = samples.get(getFamily(model,
+				options) + " " + getSearchMode(options));
+		if (familySamples == null)
+			return -1;
+
+		/* prefer samples with the same number of threads */
+		List<double[]> points = new ArrayList<double[]>();
+		for (Sample sample : familySamples) {
+			if (sample.threads == numberOfThreads) {
+				points.add(new double[] { sample.getLogSize(),
+						Math.log(sample.time) });
+			}
+		}
+		if (points.isEmpty()) {
+			/* scale with the ideal speedup */
+			for (Sample sample : familySamples) {
+				double time = (double) sample.time * sample.threads
+						/ numberOfThreads;
+				points.add(new double[] { sample.getLogSize(), Math.log(time) });
+			}
+		}
+
+		double logSize = Math.log((double) options.getNumTaxa() * patterns);
+		return Math.round(Math.exp(fit(points, logSize)));
+	}
+
+	/**
+	 * Predicts the time left for optimizing a set of models
+	 *
+	 * @param models
+	 *            the pending models
+	 * @param options
+	 *            the application options
+	 * @param numberOfThreads
+	 *            the number of threads for each PhyML execution
+	 * @param slots
+	 *            the number of concurrent executions
+	 *
+	 * @return the predicted time in milliseconds, or -1 if some model cannot
+	 *         be predicted
+	 */
+	public long predictRemainingTime(List<Model> models,
+			ApplicationOptions options, int numberOfThreads, int slots) {
+		long total = 0;
+		for (Model model : models) {
+			long time = predict(model, options, numberOfThreads);
+			if (time < 0)
+				return -1;
+			total += time;
+		}
+		return total / Math.max(slots, 1);
+	}
+
+	/**
+	 * Least squares fit of log(time) against log(size), evaluated at the
+	 * given size. With a single sample size the time is assumed to grow
+	 * linearly.
+	 */
+	private static double fit(List<double[]> points, double x) {
+		int n = points.size();
+		double sumX = 0.0, sumY = 0.0;
+		for (double[] point : points) {
+			sumX += point[0];
+			sumY += point[1];
+		}
+		double meanX = sumX / n;
+		double meanY = sumY / n;
+		double sxx = 0.0, sxy = 0.0;
+		for (double[] point : points) {
+			sxx += (point[0] - meanX) * (point[0] - meanX);
+			sxy += (point[0] - meanX) * (point[1] - meanY);
+		}
+		double slope = 1.0;
+		if (sxx > 1e-6) {
+			slope = Math.min(Math.max(sxy / sxx, MIN_EXPONENT), MAX_EXPONENT);
+		}
+		return meanY + slope * (x - meanX);
+	}
+
+	private void add(Sample sample) {
+		String key = sample.family + " " + sample.searchMode;
+		LinkedList<Sample> familySamples = samples.get(key);
+		if (familySamples == null) {
+			familySamples = new LinkedList<Sample>();
+			samples.put(key, familySamples);
+		}
+		familySamples.add(sample);
+		if (familySamples.size() > MAX_SAMPLES) {
+			familySamples.removeFirst();
+		}
+	}
+
+	private void load() {
+		if (historyFile == null || !historyFile.exists())
+			return;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(
+					historyFile));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] tokens = line.split("\\s+");
+				if (tokens.length < 6)
+					continue;
+				try {
+					if (Long.parseLong(tokens[5]) <= 0)
+						continue;
+					add(new Sample(tokens[0], Integer.parseInt(tokens[1]),
+							Integer.parseInt(tokens[2]),
+							Integer.parseInt(tokens[3]), tokens[4],
+							Long.parseLong(tokens[5])));
+				} catch (NumberFormatException e) {
+					/* ignore corrupted lines */
+				}
+			}
+			reader.close();
+		} catch (IOException e) {
+			System.err.println("WARNING: Cannot read runtime history ("
+					+ historyFile.getAbsolutePath() + ")");
+		}
+	}
+
+	private static int getNumPatterns(ApplicationOptions options) {
+		return options.getNumPatterns() > 0 ? options.getNumPatterns()
+				: options.getNumSites();
+	}
+
+	/**
+	 * Gets the family of a model: number of substitution rates, and whether
+	 * it includes unequal frequencies, invariable sites and gamma rate
+	 * categories (e.g., R6+F+I+G4 for GTR+I+G with 4 categories)
+	 */
+	static String getFamily(Model model, ApplicationOptions options) {
+		StringBuilder family = new StringBuilder("R");
+		int rates = 0;
+		String partition = model.getPartition();
+		for (int i = 0; i < partition.length(); i++) {
+			if (partition.indexOf(partition.charAt(i)) == i)
+				rates++;
+		}
+		family.append(rates);
+		if (model.ispF())
+			family.append("+F");
+		if (model.ispI())
+			family.append("+I");
+		if (model.ispG())
+			family.append("+G").append(options.numGammaCat);
+		return family.toString();
+	}
+
+	/**
+	 * Gets the tree search mode used for optimizing the models
+	 */
+	static String getSearchMode(ApplicationOptions options) {
+		if (options.userTopologyExists || options.fixedTopology)
+			return "fixed";
+		else if (!options.optimizeMLTopology)
+			return "bionj";
+		else
+			return options.treeSearchOperations.toString();
+	}
+
+	private static class Sample {
+
+		private String family;
+		private int taxa;
+		private int patterns;
+		private int threads;
+		private String searchMode;
+		private long time;
+
+		Sample(String family, int taxa, int patterns, int threads,
+				String searchMode, long time) {
+			this.family = family;
+			this.taxa = taxa;
+			this.patterns = patterns;
+			this.threads = threads;
+			this.searchMode = searchMode;
+			this.time = time;
+		}
+
+		double getLogSize() {
+			return Math.log((double) taxa * patterns);
+		}
+
+		public String toString() {
+			return family + " " + taxa + " " + patterns + " " + threads + " "
+					+ searchMode + " " + time;
+		}
+	}
+}
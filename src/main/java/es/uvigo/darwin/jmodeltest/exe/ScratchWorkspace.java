@@ -0,0 +1,210 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.utilities.Utilities;
+
+/**
+ * Private workspace for the PhyML input and output files of one execution.
+ *
+ * The working copies of the alignment and the tree are staged into a
+ * directory created for this run only, inside the configured scratch
+ * directory (e.g., a RAM filesystem or a local disk), and PhyML runs there,
+ * so concurrent executions on the same node never share their files.
+ *
+ * The workspace is first renamed, so that it disappears at once, and then
+ * removed with all its contents when the execution finishes.
+ *
+ * @author Diego Darriba
+ */
+public class ScratchWorkspace {
+
+	private static final String WORKSPACE_PREFIX = "jmodeltest-";
+	private static final String REMOVED_SUFFIX = ".removed";
+
+	private static ScratchWorkspace instance;
+
+	private File directory;
+	/** Input files staged into the workspace */
+	private List<File> stagedFiles = new ArrayList<File>();
+	private long stagedBytes = 0;
+	private AtomicLong resultBytes = new AtomicLong();
+	private boolean removed = false;
+
+	private ScratchWorkspace(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Gets the workspace of this execution, creating it if needed
+	 *
+	 * @return the workspace, or null if there is no usable scratch directory
+	 */
+	public static synchronized ScratchWorkspace getInstance() {
+		if (instance == null) {
+			File scratchDir = ModelTestConfiguration.getScratchDir();
+			if (scratchDir == null)
+				return null;
+			File directory;
+			try {
+				/* reserve a unique name and replace it with a directory */
+				directory = File.createTempFile(WORKSPACE_PREFIX
+						+ Utilities.getCurrentTime("yyyyMMddHHmmss") + "-", "",
+						scratchDir);
+				if (!(directory.delete() && directory.mkdir())) {
+					throw new IOException("Cannot create "
+							+ directory.getAbsolutePath());
+				}
+			} catch (IOException e) {
+				System.err.println("WARNING: Cannot create a workspace in scratch directory ("
+						+ scratchDir.getAbsolutePath() + "): Using the temporary directory");
+				ModelTestConfiguration.disableScratchDir();
+				return null;
+			}
+			final ScratchWorkspace workspace = new ScratchWorkspace(directory);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					workspace.remove();
+				}
+			});
+			instance = workspace;
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new file in the scratch workspace, or in the temporary
+	 * directory if there is no workspace. The file is deleted on exit.
+	 *
+	 * @param prefix
+	 *            the prefix of the file name
+	 * @param suffix
+	 *            the suffix of the file name
+	 *
+	 * @return the new empty file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	public static File createFile(String prefix, String suffix)
+			throws IOException {
+		ScratchWorkspace workspace = getInstance();
+		File file;
+		if (workspace != null) {
+			file = File.createTempFile(prefix, suffix, workspace.directory);
+			synchronized (workspace) {
+				workspace.stagedFiles.add(file);
+			}
+		} else {
+			file = File.createTempFile(prefix, suffix);
+		}
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Gets the directory where PhyML should run
+	 *
+	 * @return the workspace directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Accounts for a PhyML output file read from the workspace
+	 *
+	 * @param file
+	 *            the output file
+	 */
+	public void addResultFile(File file) {
+		resultBytes.addAndGet(file.length());
+	}
+
+	/**
+	 * Gets the size of the input files staged into the workspace
+	 */
+	public synchronized long getStagedBytes() {
+		if (!removed) {
+			stagedBytes = 0;
+			for (File file : stagedFiles) {
+				stagedBytes += file.length();
+			}
+		}
+		return stagedBytes;
+	}
+
+	public long getResultBytes() {
+		return resultBytes.get();
+	}
+
+	/**
+	 * Removes the workspace and all its contents. The directory is renamed
+	 * before, so a partially removed workspace is never seen under its
+	 * original name.
+	 *
+	 * @return a summary of the bytes moved through the workspace, or null
+	 *         if it was already removed
+	 */
+	public synchronized String remove() {
+		if (removed)
+			return null;
+		getStagedBytes();
+		removed = true;
+		File target = new File(directory.getParentFile(), directory.getName()
+				+ REMOVED_SUFFIX);
+		if (!directory.renameTo(target)) {
+			target = directory;
+		}
+		deleteRecursively(target);
+		return "Scratch workspace " + directory.getAbsolutePath() + ": "
+				+ getStagedBytes() + " bytes staged, " + getResultBytes()
+				+ " bytes of results read";
+	}
+
+	/**
+	 * Removes the workspace of this execution, if any
+	 *
+	 * @return a summary of the bytes moved through the workspace, or null if
+	 *         there was no workspace
+	 */
+	public static String release() {
+		ScratchWorkspace workspace;
+		synchronized (ScratchWorkspace.class) {
+			workspace = instance;
+		}
+		return workspace != null ? workspace.remove() : null;
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,642 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+
+/**
+ * Transport of the model requests over plain TCP sockets, so that an
+ * execution can be spread over several machines (or several JVMs in the
+ * same machine) without MPJ Express.
+ *
+ * The coordinator listens on a port. Each worker connects to it and
+ * registers with its number of cores, and the coordinator answers with the
+ * worker id and the options of the analysis. Afterwards, both sides
+ * exchange length-prefixed frames encoded with the ModelWireCodec.
+ *
+ * Both sides send an empty frame (a heartbeat) every HEARTBEAT_INTERVAL ms.
+ * A connection that stays silent for LEASE_TIMEOUT ms is closed, so a dead
+ * or unreachable worker is reported to the distributor as lost, and its
+ * models are leased to other workers.
+ *
+ * The coordinator writes to each worker from its own sender thread, so a
+ * worker that stops reading only delays its own frames. A connection whose
+ * pending write lasts longer than LEASE_TIMEOUT ms is closed as well.
+ *
+ * @author Diego Darriba
+ */
+public class SocketTransport {
+
+	/** Magic number of the registration of a worker ("JMTW") */
+	public static final int MAGIC = 0x4A4D5457;
+	public static final byte VERSION = 1;
+
+	/** Maximum time for the registration of a worker, in ms */
+	private static final int HANDSHAKE_TIMEOUT = 30000;
+	/** Time between connection attempts of a worker, in ms */
+	private static final long CONNECT_INTERVAL = 2000;
+
+	/** Time between heartbeats, in ms */
+	public static final int HEARTBEAT_INTERVAL = 5000;
+	/** Maximum silence of a connection before it is considered lost, in ms */
+	public static final int LEASE_TIMEOUT = 30000;
+	private static final byte[] HEARTBEAT = new byte[0];
+
+	private SocketTransport() {
+	}
+
+	private static void writeFrame(DataOutputStream out, byte[] data)
+			throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+	}
+
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Malformed frame");
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Starts a daemon thread that runs the given task every
+	 * HEARTBEAT_INTERVAL ms, until it returns false
+	 */
+	private static void startHeartbeat(String name, final Heartbeat task) {
+		Thread heartbeat = new Thread(name) {
+			public void run() {
+				try {
+					do {
+						Thread.sleep(HEARTBEAT_INTERVAL);
+					} while (task.beat());
+				} catch (InterruptedException e) {
+					/* stop beating */
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+	private static abstract class Heartbeat {
+
+		/**
+		 * Sends the heartbeats
+		 *
+		 * @return false, if no more heartbeats must be sent
+		 */
+		abstract boolean beat();
+	}
+
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
+		}
+	}
+
+	/**
+	 * The coordinator, which accepts workers while the execution runs
+	 */
+	public static class Coordinator extends CoordinatorTransport {
+
+		/** Marks the end of the connection in the outbox of a worker */
+		private static final byte[] CLOSED = new byte[0];
+
+		private ServerSocket server;
+		private byte[] serializedOptions;
+		private BlockingQueue<Message> requests = new LinkedBlockingQueue<Message>();
+		/** The connected workers. Guarded by this object. */
+		private Map<Integer, Connection> connections = new HashMap<Integer, Connection>();
+		private int numberOfWorkers = 0;
+		private volatile boolean closed = false;
+
+		/**
+		 * Starts listening for workers
+		 *
+		 * @param port
+		 *            the port to listen on
+		 * @param options
+		 *            the options of the analysis, sent to every worker
+		 *
+		 * @throws IOException
+		 *             if the port cannot be opened
+		 */
+		public Coordinator(int port, ApplicationOptions options)
+				throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(options);
+			out.close();
+			serializedOptions = bytes.toByteArray();
+
+			server = new ServerSocket(port);
+			Thread acceptor = new Thread("Coordinator acceptor") {
+				public void run() {
+					accept();
+				}
+			};
+			acceptor.setDaemon(true);
+			acceptor.start();
+			startHeartbeat("Coordinator heartbeat", new Heartbeat() {
+				boolean beat() {
+					List<Connection> open;
+					synchronized (Coordinator.this) {
+						open = new ArrayList<Connection>(connections.values());
+					}
+					long now = System.currentTimeMillis();
+					for (Connection connection : open) {
+						if (connection.isStalled(now)) {
+							System.err.println("WARNING: Worker "
+									+ connection.id + " (" + connection.host
+									+ ") did not accept data in "
+									+ (LEASE_TIMEOUT / 1000) + " seconds");
+							// the reader reports the worker as lost
+							connection.close();
+						} else if (connection.outbox.isEmpty()) {
+							connection.outbox.add(HEARTBEAT);
+						}
+					}
+					return !closed;
+				}
+			});
+		}
+
+		public int getPort() {
+			return server.getLocalPort();
+		}
+
+		@Override
+		public synchronized int getNumberOfWorkers() {
+			return numberOfWorkers;
+		}
+
+		@Override
+		public boolean acceptsWorkers() {
+			return !closed;
+		}
+
+		/**
+		 * Gets the number of cores of a worker
+		 *
+		 * @return the number of cores, or 0 if the worker is unknown
+		 */
+		public synchronized int getCores(int worker) {
+			Connection connection = connections.get(worker);
+			return connection != null ? connection.cores : 0;
+		}
+
+		/**
+		 * Gets the host of a worker
+		 *
+		 * @return the host name, or null if the worker is unknown
+		 */
+		public synchronized String getHost(int worker) {
+			Connection connection = connections.get(worker);
+			return connection != null ? connection.host : null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 *
+		 * Workers whose connection is closed or silent for longer than
+		 * LEASE_TIMEOUT are reported as lost.
+		 */
+		@Override
+		public Message poll() {
+			return requests.poll();
+		}
+
+		@Override
+		public Message take() throws InterruptedException {
+			return requests.take();
+		}
+
+		@Override
+		public boolean supportsWakeUp() {
+			return true;
+		}
+
+		@Override
+		public void wakeUp() {
+			requests.add(new Message(0, null));
+		}
+
+		@Override
+		public void send(int worker, byte[] data) {
+			Connection connection;
+			synchronized (this) {
+				connection = connections.get(worker);
+			}
+			if (connection == null)
+				return;
+			connection.outbox.add(data);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			List<Connection> open;
+			synchronized (this) {
+				open = new ArrayList<Connection>(connections.values());
+			}
+			try {
+				server.close();
+			} catch (IOException e) {
+				/* already closed */
+			}
+			for (Connection connection : open) {
+				connection.close();
+			}
+		}
+
+		private void accept() {
+			while (!closed) {
+				final Socket socket;
+				try {
+					socket = server.accept();
+				} catch (IOException e) {
+					if (!closed)
+						System.err.println("WARNING: Cannot accept workers: "
+								+ e.getMessage());
+					return;
+				}
+				/* a slow worker must not delay the others */
+				Thread handshake = new Thread("Coordinator handshake") {
+					public void run() {
+						register(socket);
+					}
+				};
+				handshake.setDaemon(true);
+				handshake.start();
+			}
+		}
+
+		private void register(Socket socket) {
+			Connection connection = null;
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(socket.getOutputStream()));
+				if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+					socket.close();
+					return;
+				}
+				int cores = Math.max(in.readInt(), 1);
+				String host = in.readUTF();
+				socket.setSoTimeout(LEASE_TIMEOUT);
+				synchronized (this) {
+					if (closed) {
+						socket.close();
+						return;
+					}
+					numberOfWorkers++;
+					connection = new Connection(numberOfWorkers, socket, in,
+							out, cores, host);
+				}
+				out.writeInt(connection.id);
+				writeFrame(out, serializedOptions);
+				// heartbeats and batches are sent once the worker knows its id
+				connection.startSender();
+				synchronized (this) {
+					connections.put(connection.id, connection);
+					if (closed)
+						connection.close();
+				}
+			} catch (IOException e) {
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+				if (connection != null) {
+					// the worker was already counted
+					requests.add(new Message(connection.id, null));
+				}
+				return;
+			}
+			System.err.println("[Coordinator] Worker " + connection.id
+					+ " joined from " + connection.host + " ("
+					+ connection.cores + " cores)");
+			read(connection);
+		}
+
+		private void read(Connection connection) {
+			try {
+				while (true) {
+					byte[] data = readFrame(connection.in);
+					if (data.length > 0) {
+						requests.add(new Message(connection.id, data));
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				System.err.println("WARNING: Worker " + connection.id + " ("
+						+ connection.host + ") did not renew its lease in "
+						+ (LEASE_TIMEOUT / 1000) + " seconds");
+			} catch (IOException e) {
+				if (!closed) {
+					System.err.println("[Coordinator] Worker "
+							+ connection.id + " (" + connection.host + ") left");
+				}
+			} finally {
+				connection.close();
+				requests.add(new Message(connection.id, null));
+			}
+		}
+
+		private class Connection {
+
+			private int id;
+			private Socket socket;
+			private DataInputStream in;
+			private DataOutputStream out;
+			private int cores;
+			private String host;
+			/** Frames waiting for the sender thread */
+			private BlockingQueue<byte[]> outbox = new LinkedBlockingQueue<byte[]>();
+			/** Start time of the write in progress, or 0 if there is none */
+			private volatile long writeStart = 0;
+
+			Connection(int id, Socket socket, DataInputStream in,
+					DataOutputStream out, int cores, String host) {
+				this.id = id;
+				this.socket = socket;
+				this.in = in;
+				this.out = out;
+				this.cores = cores;
+				this.host = host;
+			}
+
+			/**
+			 * Starts the thread writing the frames of the outbox
+			 */
+			void startSender() {
+				Thread sender = new Thread("Coordinator sender " + id) {
+					public void run() {
+						send();
+					}
+				};
+				sender.setDaemon(true);
+				sender.start();
+			}
+
+			private void send() {
+				try {
+					while (true) {
+						byte[] data = outbox.take();
+						if (data == CLOSED)
+							return;
+						writeStart = System.currentTimeMillis();
+						writeFrame(out, data);
+						writeStart = 0;
+					}
+				} catch (InterruptedException e) {
+					/* stop sending */
+				} catch (IOException e) {
+					if (!closed && !socket.isClosed()) {
+						System.err.println("WARNING: Cannot send models to worker "
+								+ id + " (" + host + "): " + e.getMessage());
+					}
+					close();
+				}
+			}
+
+			/**
+			 * Checks whether a write has been blocked for longer than
+			 * LEASE_TIMEOUT
+			 */
+			boolean isStalled(long now) {
+				long start = writeStart;
+				return start > 0 && now - start > LEASE_TIMEOUT;
+			}
+
+			void close() {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					/* already closed */
+				}
+				outbox.add(CLOSED);
+			}
+		}
+	}
+
+	/**
+	 * A worker, connected to a coordinator
+	 */
+	public static class Worker extends WorkerTransport {
+
+		/** Marks the end of the connection in the queue of answers */
+		private static final byte[] CLOSED = new byte[0];
+
+		private Socket socket;
+		/** Guarded by itself */
+		private DataOutputStream out;
+		private int id;
+		private ApplicationOptions options;
+		private BlockingQueue<byte[]> answers = new LinkedBlockingQueue<byte[]>();
+		private volatile boolean closed = false;
+
+		/**
+		 * Connects to a coordinator and registers this worker, retrying until
+		 * the coordinator accepts it
+		 *
+		 * @param host
+		 *            the host of the coordinator
+		 * @param port
+		 *            the port of the coordinator
+		 * @param cores
+		 *            the number of models computed concurrently
+		 * @param timeout
+		 *            the maximum time to wait for the coordinator, in ms
+		 *
+		 * @throws IOException
+		 *             if the worker cannot register
+		 */
+		public Worker(String host, int port, int cores, long timeout)
+				throws IOException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (socket == null) {
+				try {
+					socket = new Socket(host, port);
+				} catch (ConnectException e) {
+					if (System.currentTimeMillis() > deadline)
+						throw e;
+					try {
+						Thread.sleep(CONNECT_INTERVAL);
+					} catch (InterruptedException ie) {
+						throw new IOException("Interrupted");
+					}
+				}
+			}
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(LEASE_TIMEOUT);
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(cores);
+			out.writeUTF(getHostName());
+			out.flush();
+
+			id = in.readInt();
+			try {
+				ObjectInputStream optionsIn = new ObjectInputStream(
+						new ByteArrayInputStream(readFrame(in)));
+				options = (ApplicationOptions) optionsIn.readObject();
+			} catch (ClassNotFoundException e) {
+				socket.close();
+				throw new IOException("Incompatible coordinator: "
+						+ e.getMessage());
+			}
+
+			Thread reader = new Thread("Worker reader") {
+				public void run() {
+					try {
+						while (true) {
+							byte[] answer = readFrame(in);
+							if (answer.length > 0) {
+								answers.add(answer);
+							}
+						}
+					} catch (IOException e) {
+						/* the coordinator closed the connection or is silent */
+					} finally {
+						answers.add(CLOSED);
+					}
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+			startHeartbeat("Worker heartbeat", new Heartbeat() {
+				boolean beat() {
+					if (closed)
+						return false;
+					try {
+						synchronized (out) {
+							writeFrame(out, HEARTBEAT);
+						}
+						return true;
+					} catch (IOException e) {
+						return false;
+					}
+				}
+			});
+		}
+
+		/**
+		 * Gets the id assigned by the coordinator
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Gets the options of the analysis, received from the coordinator
+		 */
+		public ApplicationOptions getOptions() {
+			return options;
+		}
+
+		@Override
+		public void send(byte[] data) {
+			try {
+				synchronized (out) {
+					writeFrame(out, data);
+				}
+			} catch (IOException e) {
+				/* the reader will find the connection closed */
+			}
+		}
+
+		@Override
+		public byte[] poll() {
+			return receive(answers.poll());
+		}
+
+		@Override
+		public byte[] take() throws InterruptedException {
+			if (closed)
+				return null;
+			return receive(answers.take());
+		}
+
+		@Override
+		public boolean supportsWakeUp() {
+			return true;
+		}
+
+		@Override
+		public void wakeUp() {
+			answers.add(WAKE_UP);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				/* already closed */
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		private byte[] receive(byte[] answer) {
+			if (answer == CLOSED) {
+				closed = true;
+				return null;
+			}
+			return answer;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import es.uvigo.darwin.jmodeltest.ApplicationOptions;
+import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
+import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
+import es.uvigo.darwin.jmodeltest.model.Model;
+import es.uvigo.darwin.jmodeltest.utilities.Utilities;
+
+/**
+ * Calibration of the number of PhyML threads for each sort of model (+G, +I
+ * and uniform) in this machine.
+ *
+ * For the most complex candidate model of each sort, short PhyML fits with a
+ * fixed BIONJ topology are run on the input alignment with an increasing
+ * number of threads. For each number of threads, as many fits run
+ * concurrently as fit in the processors, so the measured throughput (fits
+ * per second) includes the contention among processes for the memory
+ * bandwidth and the hardware threads. The largest number of threads whose
+ * throughput is close to the best one is chosen, since fewer and faster
+ * fits shorten the tail of the execution.
+ *
+ * The result is stored next to the configuration file, where it replaces
+ * the gamma-threads, inv-threads and uniform-threads properties in later
+ * runs.
+ *
+ * @author Diego Darriba
+ */
+public class ThreadCalibration {
+
+	/** Throughput loss accepted for running each fit with more threads */
+	private static final double TOLERANCE = 0.05;
+
+	private static final String[] FAMILY_KEYS = {
+			ModelTestConfiguration.G_THREADS,
+			ModelTestConfiguration.I_THREADS,
+			ModelTestConfiguration.U_THREADS };
+	private static final String[] FAMILY_NAMES = { "+G", "+I", "uniform" };
+	private static final String RUN_SUFFIX = ".calibration";
+
+	private ApplicationOptions options;
+	private TextOutputStream console;
+	private int processors;
+	private int runId = 0;
+
+	public ThreadCalibration(ApplicationOptions options,
+			TextOutputStream console) {
+		this.options = options;
+		this.console = console;
+		this.processors = getProcessors(options.getNumberOfThreads());
+	}
+
+	/**
+	 * Gets the number of processors a calibration measures on, which must
+	 * match that of the analysis for its thread counts to be used
+	 *
+	 * @param numberOfThreads
+	 *            the number of threads of the analysis (-tr)
+	 *
+	 * @return the number of processors, within the CPU token budget
+	 */
+	public static int getProcessors(int numberOfThreads) {
+		return Math.max(1, Math.min(numberOfThreads, CpuTokenManager
+				.getInstance().getCapacity()));
+	}
+
+	/**
+	 * Calibrates the number of threads for the sorts of models in the
+	 * candidate set, and stores the result
+	 *
+	 * @param models
+	 *            the candidate models
+	 *
+	 * @return true, if the calibration was stored
+	 */
+	public boolean calibrate(Model[] models) {
+		/* cached results would hide the running times */
+		ModelTestConfiguration.disableResultCache();
+
+		Model[] representatives = new Model[FAMILY_KEYS.length];
+		for (Model model : models) {
+			int family = getFamily(model);
+			if (representatives[family] == null
+					|| model.getK() > representatives[family].getK()) {
+				representatives[family] = model;
+			}
+		}
+
+		console.println(" ");
+		console.println("Calibrating PhyML threads on " + processors
+				+ " processors");
+		Properties calibration = new Properties();
+		/* short fits: BIONJ topology, no ML tree search */
+		boolean fixedTopology = options.fixedTopology;
+		boolean optimizeMLTopology = options.optimizeMLTopology;
+		options.fixedTopology = false;
+		options.optimizeMLTopology = false;
+		try {
+			for (int family = 0; family < FAMILY_KEYS.length; family++) {
+				if (representatives[family] == null)
+					continue;
+				int threads = calibrate(representatives[family], family);
+				if (threads < 0) {
+					System.err.println("ERROR: PhyML failed during the calibration of "
+							+ FAMILY_NAMES[family] + " models");
+					return false;
+				}
+				calibration.setProperty(FAMILY_KEYS[family],
+						String.valueOf(threads));
+			}
+		} finally {
+			options.fixedTopology = fixedTopology;
+			options.optimizeMLTopology = optimizeMLTopology;
+		}
+		if (calibration.isEmpty())
+			return false;
+		calibration.setProperty(ModelTestConfiguration.CALIBRATION_PROCESSORS,
+				String.valueOf(processors));
+
+		File calibrationFile = ModelTestConfiguration.getCalibrationFile();
+		try {
+			FileOutputStream out = new FileOutputStream(calibrationFile);
+			try {
+				calibration.store(out, "jModelTest thread calibration ("
+						+ options.getInputFile().getName() + ")");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: Cannot write the thread calibration ("
+					+ calibrationFile.getAbsolutePath() + "): "
+					+ e.getMessage());
+			return false;
+		}
+		console.println("Thread calibration stored in "
+				+ calibrationFile.getAbsolutePath());
+		return true;
+	}
+
+	/**
+	 * Measures the throughput of a model with an increasing number of
+	 * threads per fit
+	 *
+	 * @return the chosen number of threads, or -1 if PhyML failed
+	 */
+	private int calibrate(Model model, int family) {
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		for (int threads = 1; threads < processors; threads *= 2) {
+			threadCounts.add(threads);
+		}
+		threadCounts.add(processors);
+
+		console.println(" ");
+		console.println("  " + FAMILY_NAMES[family] + " models ("
+				+ model.getName() + ")");
+		double[] throughput = new double[threadCounts.size()];
+		double bestThroughput = 0.0;
+		for (int i = 0; i < threadCounts.size(); i++) {
+			int threads = threadCounts.get(i);
+			int fits = processors / threads;
+			long time = runFits(model, threads, fits);
+			if (time < 0)
+				return -1;
+			throughput[i] = fits * 1000.0 / Math.max(time, 1);
+			bestThroughput = Math.max(bestThroughput, throughput[i]);
+			console.println("    " + threads + " threads x " + fits
+					+ " concurrent fits: " + Utilities.displayRuntime(time)
+					+ ", " + String.format("%.3f", throughput[i]) + " fits/s");
+		}
+
+		int chosen = 1;
+		for (int i = 0; i < threadCounts.size(); i++) {
+			if (throughput[i] >= (1.0 - TOLERANCE) * bestThroughput) {
+				chosen = threadCounts.get(i);
+			}
+		}
+		console.println("    " + FAMILY_KEYS[family] + " = " + chosen);
+		return chosen;
+	}
+
+	/**
+	 * Runs several concurrent fits of a model
+	 *
+	 * @return the elapsed time in ms, or -1 if any fit failed
+	 */
+	private long runFits(Model model, int threads, int fits) {
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(fits);
+		for (int i = 0; i < fits; i++) {
+			final Model copy = new Model(model.getId(), model.getName()
+					+ RUN_SUFFIX + (++runId), model.getPartition(),
+					model.getK(), model.ispF(), model.ispT(), model.ispV(),
+					model.ispR(), model.ispI(), model.ispG(),
+					model.getNumTi(), model.getNumTv());
+			// optimized on the BIONJ tree (-o lr), whatever the user tree,
+			// and not recorded in the runtime history
+			final PhymlSingleModel fit = new PhymlSingleModel(copy, 0, true,
+					options, threads);
+			tasks.add(new Callable<Boolean>() {
+				public Boolean call() {
+					return fit.compute() && copy.getLnL() > 0.0;
+				}
+			});
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(fits);
+		long startTime = System.currentTimeMillis();
+		try {
+			for (Future<Boolean> result : pool.invokeAll(tasks)) {
+				if (!result.get())
+					return -1;
+			}
+		} catch (InterruptedException e) {
+			return -1;
+		} catch (ExecutionException e) {
+			return -1;
+		} finally {
+			pool.shutdownNow();
+		}
+		return System.currentTimeMillis() - startTime;
+	}
+
+	private static int getFamily(Model model) {
+		if (model.ispG()) {
+			return 0;
+		} else if (model.ispI()) {
+			return 1;
+		} else {
+			return 2;
+		}
+	}
+}
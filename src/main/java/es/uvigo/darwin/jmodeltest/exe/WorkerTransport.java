@@ -0,0 +1,90 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.exe;
+
+/**
+ * Worker side of the communication with the coordinator.
+ *
+ * Every request sent to the coordinator is answered with exactly one batch
+ * of models, which can be received without blocking while the worker
+ * computes.
+ *
+ * @author Diego Darriba
+ */
+public abstract class WorkerTransport {
+
+	/** Returned by poll() or take() after a wakeUp(), instead of a batch */
+	public static final byte[] WAKE_UP = new byte[0];
+
+	/**
+	 * Sends a request to the coordinator
+	 *
+	 * @param data
+	 *            the encoded request
+	 */
+	public abstract void send(byte[] data);
+
+	/**
+	 * Receives the answer to the last request, if it arrived
+	 *
+	 * @return the encoded batch of models, or null if it did not arrive yet
+	 *         or the connection was closed
+	 */
+	public abstract byte[] poll();
+
+	/**
+	 * Waits for the answer to the last request
+	 *
+	 * @return the encoded batch of models, or null if the connection was
+	 *         closed
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public abstract byte[] take() throws InterruptedException;
+
+	/**
+	 * Checks whether wakeUp() is supported. Otherwise, the worker tests the
+	 * transport between short waits for its running models.
+	 *
+	 * @return true, if the transport can be woken up (false by default)
+	 */
+	public boolean supportsWakeUp() {
+		return false;
+	}
+
+	/**
+	 * Makes the current or next take() return WAKE_UP, so that the worker
+	 * checks its finished models. Called from any thread. By default, it
+	 * does nothing.
+	 */
+	public void wakeUp() {
+	}
+
+	/**
+	 * Checks whether the connection with the coordinator is open
+	 */
+	public boolean isOpen() {
+		return true;
+	}
+
+	/**
+	 * Closes the communication with the coordinator
+	 */
+	public abstract void close();
+}
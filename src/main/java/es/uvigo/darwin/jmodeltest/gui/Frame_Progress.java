@@ -25,12 +25,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Observable;
 import java.util.Observer;
@@ -52,6 +48,8 @@ import es.uvigo.darwin.jmodeltest.ModelTest;
 import es.uvigo.darwin.jmodeltest.ModelTestConfiguration;
 import es.uvigo.darwin.jmodeltest.exe.ExternalExecutionManager;
 import es.uvigo.darwin.jmodeltest.exe.ProcessManager;
+import es.uvigo.darwin.jmodeltest.exe.RuntimeHistory;
+import es.uvigo.darwin.jmodeltest.io.CheckpointJournal;
 import es.uvigo.darwin.jmodeltest.io.TextOutputStream;
 import es.uvigo.darwin.jmodeltest.model.Model;
 import es.uvigo.darwin.jmodeltest.observer.ProgressInfo;
@@ -109,6 +107,8 @@ public class Frame_Progress extends JModelTestFrame implements Observer,
 	/** Timer for calculate the elapsed time **/
 	private volatile long startTime;
 	private volatile long lockTimer = 0;
+	/** Expected finishing time, or -1 if it cannot be predicted */
+	private volatile long expectedEndTime = -1;
 	
 	private Frame_CalcLike frameCalcLike;
 	private Timer timer;
@@ -427,6 +427,20 @@ public class Frame_Progress extends JModelTestFrame implements Observer,
 				}
 				break;
 
+			case ProgressInfo.SINGLE_OPTIMIZATION_CANCELLED:
+				/* free the thread label, the model is not completed */
+				for (int i = 0; i < numberOfThreads; i++) {
+					JLabel progressLabel = threadProgressModelLabel[i];
+					if (progressLabel.getText().equals(
+							"Computing " + info.getModel().getName() + "...")) {
+						progressLabel.setText(NO_MODEL);
+						progressLabel.setForeground(XManager.LABEL_FAIL_COLOR);
+						threadProgressBar[i].setIndeterminate(false);
+						break;
+					}
+				}
+				break;
+
 			case ProgressInfo.OPTIMIZATION_INIT:
 				stream.println(" ");
 				stream.println("::Progress::");
@@ -439,6 +453,7 @@ public class Frame_Progress extends JModelTestFrame implements Observer,
 				ModelTest.setMyBIC(null);
 				ModelTest.setMyDT(null);
 
+				updateExpectedEndTime();
 				break;
 
 			case ProgressInfo.SINGLE_OPTIMIZATION_COMPLETED:
@@ -476,19 +491,15 @@ public class Frame_Progress extends JModelTestFrame implements Observer,
 					}
 
 					if (ModelTestConfiguration.isCkpEnabled()) {
-						try {
-							OutputStream file = new FileOutputStream(
-									options.getCkpFile());
-							OutputStream buffer = new BufferedOutputStream(file);
-							ObjectOutput output = new ObjectOutputStream(buffer);
-							output.writeObject(ModelTest.getCandidateModels());
-							output.close();
-						} catch (IOException ex) {
-							System.err.println("Cannot perform output.");
+						CheckpointJournal journal = CheckpointJournal
+								.getInstance(options.getCkpFile());
+						if (journal != null) {
+							journal.append(info.getModel());
 						}
 					}
 					
 					progressBarLike.setValue(completedModels);
+					updateExpectedEndTime();
 				} catch (NullPointerException e) {
 					/* Ignore... */
 				}
@@ -655,9 +666,41 @@ public class Frame_Progress extends JModelTestFrame implements Observer,
 
 	public void actionPerformed(ActionEvent e) {
 		/* if the timer caused this event */
+		long currentTime = System.currentTimeMillis();
 		timerLabel.setText("Elapsed time: "
-				+ Utilities.calculateRuntimeMinutes(startTime,
-						System.currentTimeMillis()));
+				+ Utilities.calculateRuntimeMinutes(startTime, currentTime));
+		if (expectedEndTime > 0) {
+			progressBarLike.setString(Math.round(100 * progressBarLike
+					.getPercentComplete())
+					+ "% (about "
+					+ Utilities.calculateRuntimeMinutes(currentTime,
+							Math.max(expectedEndTime, currentTime)) + " left)");
+		} else {
+			progressBarLike.setString(null);
+		}
+	}
+
+	/**
+	 * Predicts the finishing time from the runtime history of the pending
+	 * models. The heuristic search is not predictable, since the number of
+	 * models to optimize is unknown.
+	 */
+	private void updateExpectedEndTime() {
+		if (options.isClusteringSearch()) {
+			expectedEndTime = -1;
+			return;
+		}
+		List<Model> pendingModels = new ArrayList<Model>();
+		for (Model model : ModelTest.getCandidateModels()) {
+			if (model.getLnL() < 1e-5) {
+				pendingModels.add(model);
+			}
+		}
+		long remainingTime = RuntimeHistory.getInstance()
+				.predictRemainingTime(pendingModels, options, 1,
+						numberOfThreads);
+		expectedEndTime = remainingTime < 0 ? -1 : System
+				.currentTimeMillis() + remainingTime;
 	}
 
 }
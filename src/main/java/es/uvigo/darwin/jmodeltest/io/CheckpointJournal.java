@@ -0,0 +1,460 @@
+/*
+Copyright (C) 2011  Diego Darriba, David Posada
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package es.uvigo.darwin.jmodeltest.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import pal.tree.TreeParseException;
+import es.uvigo.darwin.jmodeltest.model.Model;
+
+/**
+ * Append-only checkpoint journal.
+ *
+ * Instead of serializing the whole set of candidate models after every
+ * optimization, each completed model is appended as a small binary record.
+ * Records are written by a background thread, which syncs the file once per
+ * batch of pending records. Every record carries its length and checksum, so
+ * a record truncated by a crash is simply ignored on replay.
+ *
+ * A journal holds the records of a single analysis: an existing file is
+ * overwritten, unless it is the checkpoint being resumed (see
+ * setResumedFile), in which case the new records are appended to it.
+ *
+ * @author Diego Darriba
+ */
+public class CheckpointJournal {
+
+	/** Magic number of journal files ("JMTJ") */
+	public static final int MAGIC = 0x4A4D544A;
+	public static final short VERSION = 1;
+
+	/** Record storing the state of an optimized model */
+	public static final byte RECORD_MODEL = 1;
+	/** Record storing the hash of the options of the analysis */
+	public static final byte RECORD_OPTIONS = 2;
+
+	private static CheckpointJournal instance;
+	/** The checkpoint resumed by this execution, if any */
+	private static File resumedFile;
+
+	private File file;
+	private FileOutputStream fileStream;
+	private DataOutputStream output;
+	private BlockingQueue<byte[]> pendingRecords = new LinkedBlockingQueue<byte[]>();
+	private Thread writerThread;
+	private volatile boolean closed = false;
+
+	private CheckpointJournal(File file) throws IOException {
+		this.file = file;
+		boolean newFile = !file.exists() || file.length() == 0
+				|| !isJournal(file) || !file.equals(resumedFile);
+		if (!newFile) {
+			/* drop any record truncated by a previous crash */
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(scan(file, (byte) 0, null, null));
+			} finally {
+				raf.close();
+			}
+		}
+		this.fileStream = new FileOutputStream(file, !newFile);
+		this.output = new DataOutputStream(fileStream);
+		if (newFile) {
+			output.writeInt(MAGIC);
+			output.writeShort(VERSION);
+			output.flush();
+		}
+		writerThread = new Thread(new Writer(), "checkpoint-journal");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Sets the checkpoint resumed by this execution. Its journal keeps the
+	 * existing records, while any other existing file is overwritten.
+	 *
+	 * @param file
+	 *            the resumed checkpoint file
+	 */
+	public static synchronized void setResumedFile(File file) {
+		resumedFile = file;
+	}
+
+	/**
+	 * Gets the journal for the given checkpoint file, creating it if needed
+	 *
+	 * @param file
+	 *            the checkpoint file
+	 *
+	 * @return the journal, or null if it cannot be created
+	 */
+	public static synchronized CheckpointJournal getInstance(File file) {
+		if (instance != null && !instance.file.equals(file)) {
+			instance.close();
+			instance = null;
+		}
+		if (instance == null && file != null) {
+			try {
+				instance = new CheckpointJournal(file);
+			} catch (IOException e) {
+				System.err.println("Cannot open checkpoint journal "
+						+ file.getAbsolutePath());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Appends the current state of a model to the journal. The record is
+	 * encoded in the calling thread, but written in background.
+	 *
+	 * @param model
+	 *            the model
+	 */
+	public void append(Model model) {
+		if (closed)
+			return;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			DataOutputStream record = new DataOutputStream(bytes);
+			writeModel(record, model);
+			record.close();
+			enqueue(RECORD_MODEL, bytes.toByteArray());
+		} catch (IOException e) {
+			System.err.println("Cannot perform output.");
+		}
+	}
+
+	/**
+	 * Appends the hash of the analysis options, so that a resumed execution
+	 * can check that the recorded models are still valid.
+	 *
+	 * @param optionsHash
+	 *            the hash of the options
+	 */
+	public void appendOptionsHash(String optionsHash) {
+		if (closed)
+			return;
+		try {
+			enqueue(RECORD_OPTIONS, optionsHash.getBytes("UTF-8"));
+		} catch (IOException e) {
+			System.err.println("Cannot perform output.");
+		}
+	}
+
+	/**
+	 * Waits until every pending record is written and closes the journal
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			/* pending records are lost */
+		}
+		try {
+			output.close();
+		} catch (IOException e) {
+			System.err.println("Cannot close checkpoint journal.");
+		}
+	}
+
+	private void enqueue(byte type, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				payload.length + 9);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(type);
+		record.writeInt(payload.length);
+		record.write(payload);
+		record.writeInt((int) crc.getValue());
+		record.close();
+		pendingRecords.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Checks whether a file is a checkpoint journal
+	 *
+	 * @param file
+	 *            the file
+	 *
+	 * @return true, if the file starts with the journal magic number
+	 */
+	public static boolean isJournal(File file) {
+		try {
+			DataInputStream input = new DataInputStream(new FileInputStream(
+					file));
+			try {
+				return input.readInt() == MAGIC;
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the models stored in a journal. If a model was recorded several
+	 * times, the last record is kept. Only the models recorded under the
+	 * last options hash are read: the records of a former analysis with
+	 * other options (in journals written by earlier versions) are skipped.
+	 *
+	 * @param file
+	 *            the journal file
+	 *
+	 * @return the recorded models, in order of first appearance
+	 *
+	 * @throws IOException
+	 *             if the file is not a valid journal
+	 */
+	public static Model[] replay(File file) throws IOException {
+		Map<String, Model> models = new LinkedHashMap<String, Model>();
+		List<byte[]> records = new ArrayList<byte[]>();
+		List<Byte> types = new ArrayList<Byte>();
+		scan(file, (byte) 0, records, types);
+		String optionsHash = null;
+		for (int i = 0; i < records.size(); i++) {
+			byte[] payload = records.get(i);
+			if (types.get(i) == RECORD_OPTIONS) {
+				String hash = new String(payload, "UTF-8");
+				if (optionsHash != null && !optionsHash.equals(hash)) {
+					/* a new analysis starts */
+					models.clear();
+				}
+				optionsHash = hash;
+			} else if (types.get(i) == RECORD_MODEL) {
+				Model model = readModel(new DataInputStream(
+						new ByteArrayInputStream(payload)));
+				models.put(model.getName(), model);
+			}
+		}
+		return models.values().toArray(new Model[0]);
+	}
+
+	/**
+	 * Reads the last options hash stored in a journal
+	 *
+	 * @param file
+	 *            the journal file
+	 *
+	 * @return the options hash, or null if the journal has no hash
+	 *
+	 * @throws IOException
+	 *             if the file is not a valid journal
+	 */
+	public static String readOptionsHash(File file) throws IOException {
+		List<byte[]> records = readRecords(file, RECORD_OPTIONS);
+		if (records.isEmpty())
+			return null;
+		return new String(records.get(records.size() - 1), "UTF-8");
+	}
+
+	/**
+	 * Reads the payload of every valid record of the given type. Reading
+	 * stops at the first truncated or corrupted record.
+	 */
+	protected static List<byte[]> readRecords(File file, byte type)
+			throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		scan(file, type, records, null);
+		return records;
+	}
+
+	/**
+	 * Scans the records of a journal, collecting the payloads of the given
+	 * type if a list is provided. If a list of types is provided too, every
+	 * record is collected along with its type.
+	 *
+	 * @return the length of the valid part of the journal
+	 */
+	private static long scan(File file, byte type, List<byte[]> records,
+			List<Byte> types) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		long validLength = 0;
+		try {
+			if (input.readInt() != MAGIC || input.readShort() > VERSION) {
+				throw new IOException("Unsupported checkpoint format");
+			}
+			validLength = 6;
+			while (true) {
+				byte recordType = input.readByte();
+				int length = input.readInt();
+				if (length < 0 || length > file.length())
+					break;
+				byte[] payload = new byte[length];
+				input.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (input.readInt() != (int) crc.getValue())
+					break;
+				validLength += length + 9;
+				if (types != null) {
+					records.add(payload);
+					types.add(recordType);
+				} else if (records != null && recordType == type) {
+					records.add(payload);
+				}
+			}
+		} catch (EOFException e) {
+			/* end of journal, or truncated record */
+		} finally {
+			input.close();
+		}
+		return validLength;
+	}
+
+	private static void writeModel(DataOutputStream out, Model model)
+			throws IOException {
+		out.writeInt(model.getId());
+		out.writeUTF(model.getName());
+		out.writeUTF(model.getPartition());
+		out.writeInt(model.getK());
+		out.writeBoolean(model.ispF());
+		out.writeBoolean(model.ispI());
+		out.writeBoolean(model.ispG());
+		out.writeDouble(model.getLnL());
+		out.writeDouble(model.getLnLIgnoringGaps());
+		out.writeDouble(model.getUnconstrainedLnL());
+		out.writeInt(model.getNumGammaCat());
+		out.writeDouble(model.getShape());
+		out.writeDouble(model.getPinv());
+		out.writeDouble(model.getfA());
+		out.writeDouble(model.getfC());
+		out.writeDouble(model.getfG());
+		out.writeDouble(model.getfT());
+		out.writeDouble(model.getRa());
+		out.writeDouble(model.getRb());
+		out.writeDouble(model.getRc());
+		out.writeDouble(model.getRd());
+		out.writeDouble(model.getRe());
+		out.writeDouble(model.getRf());
+		out.writeDouble(model.getKappa());
+		out.writeDouble(model.getTitv());
+		out.writeLong(model.getComputationTime());
+		/* trees may exceed the writeUTF limit */
+		byte[] tree = model.getTreeString() != null ? model.getTreeString()
+				.getBytes("UTF-8") : new byte[0];
+		out.writeInt(tree.length);
+		out.write(tree);
+	}
+
+	private static Model readModel(DataInputStream in) throws IOException {
+		int id = in.readInt();
+		String name = in.readUTF();
+		String partition = in.readUTF();
+		int K = in.readInt();
+		boolean pF = in.readBoolean();
+		boolean pI = in.readBoolean();
+		boolean pG = in.readBoolean();
+		Model model = new Model(id, name, partition, K, pF, false, false,
+				false, pI, pG, 0, 0);
+		model.setLnL(in.readDouble());
+		model.setLnLIgnoringGaps(in.readDouble());
+		model.setUnconstrainedLnL(in.readDouble());
+		model.setNumGammaCat(in.readInt());
+		model.setShape(in.readDouble());
+		model.setPinv(in.readDouble());
+		model.setfA(in.readDouble());
+		model.setfC(in.readDouble());
+		model.setfG(in.readDouble());
+		model.setfT(in.readDouble());
+		model.setRa(in.readDouble());
+		model.setRb(in.readDouble());
+		model.setRc(in.readDouble());
+		model.setRd(in.readDouble());
+		model.setRe(in.readDouble());
+		model.setRf(in.readDouble());
+		model.setKappa(in.readDouble());
+		model.setTitv(in.readDouble());
+		model.setComputationTime(in.readLong());
+		byte[] tree = new byte[in.readInt()];
+		in.readFully(tree);
+		if (tree.length > 0) {
+			try {
+				model.setTreeString(new String(tree, "UTF-8"));
+			} catch (TreeParseException e) {
+				/* the model will be optimized again */
+				model.setLnL(0.0);
+			}
+		}
+		return model;
+	}
+
+	/**
+	 * Writes the pending records in batches, syncing the file after each
+	 * batch.
+	 */
+	private class Writer implements Runnable {
+
+		public void run() {
+			List<byte[]> batch = new ArrayList<byte[]>();
+			while (!(closed && pendingRecords.isEmpty())) {
+				try {
+					byte[] record = pendingRecords.poll(200,
+							TimeUnit.MILLISECONDS);
+					if (record == null)
+						continue;
+					batch.add(record);
+				} catch (InterruptedException e) {
+					break;
+				}
+				pendingRecords.drainTo(batch);
+				try {
+					for (byte[] record : batch) {
+						output.write(record);
+					}
+					output.flush();
+					fileStream.getFD().sync();
+				} catch (IOException e) {
+					System.err.println("Cannot perform output.");
+				}
+				batch.clear();
+			}
+		}
+	}
+}
@@ -612,10 +612,23 @@ public class Model implements Serializable {
 	public void update(Model model) {
 		if (this.equals(model)) {
 			lnL = model.lnL;
+			lnLIgnoringGaps = model.lnLIgnoringGaps;
+			unconstrainedLnL = model.unconstrainedLnL;
 			numGammaCat = model.numGammaCat;
 			shape = model.shape;
 			pinv = model.pinv;
 			kappa = model.kappa;
+			titv = model.titv;
+			fA = model.fA;
+			fC = model.fC;
+			fG = model.fG;
+			fT = model.fT;
+			Ra = model.Ra;
+			Rb = model.Rb;
+			Rc = model.Rc;
+			Rd = model.Rd;
+			Re = model.Re;
+			Rf = model.Rf;
 			treeString = model.treeString;
 			tree = model.tree;
 			computationTime = model.computationTime;
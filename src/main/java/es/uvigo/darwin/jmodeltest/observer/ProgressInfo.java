@@ -34,6 +34,7 @@ public class ProgressInfo {
 	public static final int GTR_OPTIMIZATION_INIT = 10;
 	public static final int GTR_OPTIMIZATION_COMPLETED = 11;
 	public static final int GTR_NOT_FOUND = 12;
+	public static final int SINGLE_OPTIMIZATION_CANCELLED = 13;
 	public static final int INTERRUPTED = 20;
 	public static final int ERROR = 21;
 	public static final int ERROR_BINARY_NOEXISTS = 22;